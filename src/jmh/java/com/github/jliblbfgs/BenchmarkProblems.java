@@ -0,0 +1,112 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Standard test problems for the solver benchmarks.
+ */
+public enum BenchmarkProblems {
+    /**
+     * The extended Rosenbrock function, as in the liblbfgs sample.
+     */
+    ROSENBROCK {
+        @Override
+        double[] start(int n) {
+            double[] x = new double[n];
+            for (int i = 0; i < n; i += 2) {
+                x[i] = -1.2;
+                x[i + 1] = 1d;
+            }
+            return x;
+        }
+
+        @Override
+        LBFGSEvaluate evaluate(int n) {
+            return (x, g, n1, step) -> {
+                double fx = 0d;
+                for (int i = 0; i < n1; i += 2) {
+                    double t1 = 1d - x[i];
+                    double t2 = 10d * (x[i + 1] - x[i] * x[i]);
+                    g[i + 1] = 20d * t2;
+                    g[i] = -2d * (x[i] * g[i + 1] + t1);
+                    fx += t1 * t1 + t2 * t2;
+                }
+                return fx;
+            };
+        }
+    },
+
+    /**
+     * A badly scaled convex quadratic.
+     */
+    QUADRATIC {
+        @Override
+        LBFGSEvaluate evaluate(int n) {
+            return (x, g, n1, step) -> {
+                double fx = 0d;
+                for (int i = 0; i < n1; i++) {
+                    double t = x[i] - 1d;
+                    g[i] = (i + 1) * t;
+                    fx += (i + 1) * t * t / 2d;
+                }
+                return fx;
+            };
+        }
+    },
+
+    /**
+     * L2-regularized logistic regression on a fixed synthetic dataset.
+     */
+    LOGISTIC {
+        static final int ROWS = 256;
+
+        @Override
+        LBFGSEvaluate evaluate(int n) {
+            Random random = new Random(42);
+            double[] features = new double[ROWS * n];
+            double[] labels = new double[ROWS];
+            double[] truth = new double[n];
+            for (int j = 0; j < n; j++) {
+                truth[j] = random.nextGaussian();
+            }
+            for (int r = 0; r < ROWS; r++) {
+                double margin = 0d;
+                for (int j = 0; j < n; j++) {
+                    features[r * n + j] = random.nextGaussian();
+                    margin += features[r * n + j] * truth[j];
+                }
+                labels[r] = random.nextDouble() < 1d / (1d + Math.exp(-margin)) ? 1d : -1d;
+            }
+            return (x, g, n1, step) -> {
+                double fx = 0d;
+                for (int j = 0; j < n1; j++) {
+                    g[j] = x[j];
+                    fx += x[j] * x[j] / 2d;
+                }
+                for (int r = 0; r < ROWS; r++) {
+                    double margin = 0d;
+                    for (int j = 0; j < n1; j++) {
+                        margin += features[r * n1 + j] * x[j];
+                    }
+                    double z = labels[r] * margin;
+                    fx += z > 0 ? Math.log1p(Math.exp(-z)) : -z + Math.log1p(Math.exp(z));
+                    double coefficient = -labels[r] / (1d + Math.exp(z));
+                    for (int j = 0; j < n1; j++) {
+                        g[j] += coefficient * features[r * n1 + j];
+                    }
+                }
+                return fx;
+            };
+        }
+    };
+
+    @NotNull
+    double[] start(int n) {
+        return new double[n];
+    }
+
+    @NotNull
+    abstract LBFGSEvaluate evaluate(int n);
+}
@@ -0,0 +1,55 @@
+package com.github.jliblbfgs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end solves of the standard test problems with every line search.
+ * <p>
+ * The status code is returned so that failed solves (Armijo backtracking on Rosenbrock, for instance) remain visible
+ * rather than being mistaken for fast ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LBFGSSolveBenchmark {
+    @Param({"100", "10000"})
+    public int n;
+
+    @Param({"ROSENBROCK", "QUADRATIC", "LOGISTIC"})
+    public BenchmarkProblems problem;
+
+    @Param({"MORETHUENTE", "BACKTRACKING_ARMIJO", "BACKTRACKING_WOLFE", "BACKTRACKING_STRONG_WOLFE"})
+    public LBFGSProto.Params.LineSearchAlgorithm lineSearch;
+
+    @Param({"adaptive"})
+    public String factory;
+
+    private LBFGSSolver solver;
+    private LBFGSEvaluate evaluate;
+    private double[] start;
+    private double[] x;
+    private final double[] fx = new double[1];
+
+    @Setup
+    public void setUp() {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(lineSearch)
+                .setMaxIterations(1000)
+                .build();
+        solver = new LBFGSSolver(n, params, LBFGSVectorBenchmark.factory(factory));
+        evaluate = problem.evaluate(n);
+        start = problem.start(n);
+        x = new double[n];
+    }
+
+    @Benchmark
+    public int solve() {
+        System.arraycopy(start, 0, x, 0, n);
+        return solver.solve(x, fx, evaluate, null);
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.jliblbfgs;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of every {@link LBFGSVector} kernel, per factory and size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LBFGSVectorBenchmark {
+    @Param({"10", "1000", "100000", "10000000", "100000000"})
+    public int size;
+
+    /**
+     * sequential and forkjoin force the kernels of {@link LBFGSVector.Factory} regardless of size; adaptive uses its
+     * default threshold.
+     */
+    @Param({"sequential", "forkjoin", "adaptive", "direct", "float"})
+    public String factory;
+
+    private LBFGSVector a;
+    private LBFGSVector b;
+    private LBFGSVector c;
+
+    static LBFGSVector.IFactory factory(String name) {
+        switch (name) {
+            case "sequential":
+                return new LBFGSVector.Factory(Integer.MAX_VALUE, LBFGSVector.Factory.DEFAULT_CHUNK_SIZE);
+            case "forkjoin":
+                return new LBFGSVector.Factory(0, LBFGSVector.Factory.DEFAULT_CHUNK_SIZE);
+            case "adaptive":
+                return new LBFGSVector.Factory();
+            case "direct":
+                return new LBFGSBufferVector.DirectFactory();
+            case "float":
+                return new LBFGSFloatVector.Factory();
+            default:
+                throw new IllegalArgumentException("Unknown factory: " + name);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        LBFGSVector.IFactory vectorFactory = factory(factory);
+        Random random = new Random(1);
+        double[] values = new double[size];
+        a = vectorFactory.createVector(size);
+        b = vectorFactory.createVector(size);
+        c = vectorFactory.createVector(size);
+        for (LBFGSVector v : new LBFGSVector[]{a, b, c}) {
+            for (int i = 0; i < size; i++) {
+                values[i] = random.nextDouble() - 0.5;
+            }
+            v.copyFrom(new LBFGSVector.Factory(Integer.MAX_VALUE, 1).createVector(values));
+        }
+    }
+
+    @Benchmark
+    public void fill() {
+        a.fill(0.5);
+    }
+
+    @Benchmark
+    public void copyFrom() {
+        a.copyFrom(b);
+    }
+
+    @Benchmark
+    public void copyNegativeFrom() {
+        a.copyNegativeFrom(b);
+    }
+
+    @Benchmark
+    public void addWithMultiplier() {
+        a.addWithMultiplier(b, 1e-9);
+    }
+
+    @Benchmark
+    public void copyDiff() {
+        a.copyDiff(b, c);
+    }
+
+    @Benchmark
+    public void scale() {
+        a.scale(1.0000001);
+    }
+
+    @Benchmark
+    public void mul() {
+        a.mul(b);
+    }
+
+    @Benchmark
+    public double dot() {
+        return a.dot(b);
+    }
+
+    @Benchmark
+    public double norm() {
+        return a.norm(a);
+    }
+
+    @Benchmark
+    public double copyNegativeFromAndDot() {
+        return a.copyNegativeFromAndDot(b, c);
+    }
+
+    @Benchmark
+    public double addWithMultiplierAndDot() {
+        return a.addWithMultiplierAndDot(b, 1e-9, c);
+    }
+
+    @Benchmark
+    public double copyDiffAndDot() {
+        return a.copyDiffAndDot(b, c, a);
+    }
+
+    @Benchmark
+    public double scaleAndDot() {
+        return a.scaleAndDot(1.0000001, b);
+    }
+}
@@ -1,11 +1,169 @@
 package com.github.jliblbfgs;
 
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
 /**
  * Created by scr on 3/14/16.
  */
 public class LBFGS {
+    /**
+     * L-BFGS reaches convergence.
+     */
+    public static final int LBFGS_SUCCESS = 0;
+    public static final int LBFGS_CONVERGENCE = 0;
+    public static final int LBFGS_STOP = 1;
+    /**
+     * The initial variables already minimize the objective function.
+     */
+    public static final int LBFGS_ALREADY_MINIMIZED = 2;
+
+    /**
+     * Unknown error.
+     */
+    public static final int LBFGSERR_UNKNOWNERROR = -1024;
+    /**
+     * Logic error.
+     */
+    public static final int LBFGSERR_LOGICERROR = -1023;
+    /**
+     * Insufficient memory.
+     */
+    public static final int LBFGSERR_OUTOFMEMORY = -1022;
+    /**
+     * The minimization process has been canceled.
+     */
+    public static final int LBFGSERR_CANCELED = -1021;
+    /**
+     * Invalid number of variables specified.
+     */
+    public static final int LBFGSERR_INVALID_N = -1020;
+    /**
+     * Invalid number of variables (for SSE) specified.
+     */
+    public static final int LBFGSERR_INVALID_N_SSE = -1019;
+    /**
+     * The array x must be aligned to 16 (for SSE).
+     */
+    public static final int LBFGSERR_INVALID_X_SSE = -1018;
+    /**
+     * Invalid parameter epsilon specified.
+     */
+    public static final int LBFGSERR_INVALID_EPSILON = -1017;
+    /**
+     * Invalid parameter past specified.
+     */
+    public static final int LBFGSERR_INVALID_TESTPERIOD = -1016;
+    /**
+     * Invalid parameter delta specified.
+     */
+    public static final int LBFGSERR_INVALID_DELTA = -1015;
+    /**
+     * Invalid parameter linesearch specified.
+     */
+    public static final int LBFGSERR_INVALID_LINESEARCH = -1014;
+    /**
+     * Invalid parameter min_step specified.
+     */
+    public static final int LBFGSERR_INVALID_MINSTEP = -1013;
+    /**
+     * Invalid parameter max_step specified.
+     */
+    public static final int LBFGSERR_INVALID_MAXSTEP = -1012;
+    /**
+     * Invalid parameter ftol specified.
+     */
+    public static final int LBFGSERR_INVALID_FTOL = -1011;
+    /**
+     * Invalid parameter wolfe specified.
+     */
+    public static final int LBFGSERR_INVALID_WOLFE = -1010;
+    /**
+     * Invalid parameter gtol specified.
+     */
+    public static final int LBFGSERR_INVALID_GTOL = -1009;
+    /**
+     * Invalid parameter xtol specified.
+     */
+    public static final int LBFGSERR_INVALID_XTOL = -1008;
+    /**
+     * Invalid parameter max_linesearch specified.
+     */
+    public static final int LBFGSERR_INVALID_MAXLINESEARCH = -1007;
+    /**
+     * Invalid parameter orthantwise_c specified.
+     */
+    public static final int LBFGSERR_INVALID_ORTHANTWISE = -1006;
+    /**
+     * Invalid parameter orthantwise_start specified.
+     */
+    public static final int LBFGSERR_INVALID_ORTHANTWISE_START = -1005;
+    /**
+     * Invalid parameter orthantwise_end specified.
+     */
+    public static final int LBFGSERR_INVALID_ORTHANTWISE_END = -1004;
+    /**
+     * The line-search step went out of the interval of uncertainty.
+     */
+    public static final int LBFGSERR_OUTOFINTERVAL = -1003;
+    /**
+     * A logic error occurred; alternatively, the interval of uncertainty
+     * became too small.
+     */
+    public static final int LBFGSERR_INCORRECT_TMINMAX = -1002;
+    /**
+     * A rounding error occurred; alternatively, no line-search step
+     * satisfies the sufficient decrease and curvature conditions.
+     */
+    public static final int LBFGSERR_ROUNDING_ERROR = -1001;
+    /**
+     * The line-search step became smaller than min_step.
+     */
+    public static final int LBFGSERR_MINIMUMSTEP = -1000;
+    /**
+     * The line-search step became larger than max_step.
+     */
+    public static final int LBFGSERR_MAXIMUMSTEP = -999;
+    /**
+     * The line-search routine reaches the maximum number of evaluations.
+     */
+    public static final int LBFGSERR_MAXIMUMLINESEARCH = -998;
+    /**
+     * The algorithm routine reaches the maximum number of iterations.
+     */
+    public static final int LBFGSERR_MAXIMUMITERATION = -997;
+    /**
+     * Relative width of the interval of uncertainty is at most xtol.
+     */
+    public static final int LBFGSERR_WIDTHTOOSMALL = -996;
+    /**
+     * A logic error (negative line-search step) occurred.
+     */
+    public static final int LBFGSERR_INVALIDPARAMETERS = -995;
+    /**
+     * The current search direction increases the objective function value.
+     */
+    public static final int LBFGSERR_INCREASEGRADIENT = -994;
+    /**
+     * The solve stopped before exceeding its time or evaluation budget; x holds the best point found so far.
+     */
+    public static final int LBFGSERR_BUDGET = -993;
+
+    /**
+     * Start a L-BFGS optimization.
+     * <p>
+     * This is a convenience wrapper that allocates a fresh {@link LBFGSSolver} for the call; callers that run many
+     * solves of the same dimension should hold on to a solver instead so that its workspace is reused. It is safe to
+     * call concurrently from several threads as long as the callbacks are; see also {@link LBFGSBatchSolver}.
+     *
+     * @param n        The number of variables.
+     * @param x        The array of variables. A client program can set default values for the optimization and
+     *                 receive the optimization result through this array.
+     * @param fx       If not null, {@code fx[0]} receives the final value of the objective function.
+     * @param evaluate The callback function to provide function and gradient evaluations.
+     * @param progress The callback function to receive the progress (the number of iterations, the current value of
+     *                 the objective function) of the minimization process. May be null.
+     * @param params   The parameters for L-BFGS optimization. If null, the default parameters are used.
+     * @return The status code. This function returns zero (or a positive value) if the minimization process
+     * terminates without an error. A negative value indicates an error.
+     */
     public static int lbfgs(
             int n,
             double[] x,
@@ -13,6 +171,32 @@ public class LBFGS {
             LBFGSEvaluate evaluate,
             LBFGSProgress progress,
             LBFGSProto.Params params) {
-        throw new NotImplementedException();
+        return lbfgs(n, x, fx, evaluate, progress, params, null);
+    }
+
+    /**
+     * Start a L-BFGS optimization from the curvature information of a previous, related solve.
+     * <p>
+     * Successive solves of slowly changing problems, such as a model re-fit on shifted data, pass the same state to
+     * each call, so that each starts from the approximation of the inverse hessian where the previous one ended
+     * instead of the identity; see
+     * {@link LBFGSSolver#solve(double[], double[], LBFGSEvaluate, LBFGSProgress, LBFGSState)}.
+     *
+     * @param state The curvature information to start from, which receives the final one. If null, or empty, the
+     *              solve starts from the identity.
+     * @see #lbfgs(int, double[], double[], LBFGSEvaluate, LBFGSProgress, LBFGSProto.Params)
+     */
+    public static int lbfgs(
+            int n,
+            double[] x,
+            double[] fx,
+            LBFGSEvaluate evaluate,
+            LBFGSProgress progress,
+            LBFGSProto.Params params,
+            LBFGSState state) {
+        if (n <= 0) {
+            return LBFGSERR_INVALID_N;
+        }
+        return new LBFGSSolver(n, params, new LBFGSVector.Factory()).solve(x, fx, evaluate, progress, state);
     }
 }
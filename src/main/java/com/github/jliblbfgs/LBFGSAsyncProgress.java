@@ -0,0 +1,241 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A progress callback that hands the progress of a solve over to another thread, so that logging, metrics or user
+ * interface updates never stall the solver.
+ * <p>
+ * Each call from the solver copies a compact record of the iteration into a preallocated single-producer,
+ * single-consumer ring buffer and returns at once; no lock is taken and nothing is allocated. If the consumer falls
+ * behind and the ring is full, the record is dropped and counted in {@link #getDropped()}. The variables are copied
+ * only every {@code snapshotInterval} iterations, or at the next iteration after {@link #requestSnapshot()}. The
+ * records are consumed either with {@link #drain}, from any one thread, or by a daemon thread started with
+ * {@link #start}. {@link #cancel()} stops the solve at its next iteration with {@link LBFGS#LBFGSERR_CANCELED}.
+ * <p>
+ * An instance serves one solve at a time.
+ */
+public class LBFGSAsyncProgress implements LBFGSProgress, AutoCloseable {
+    /**
+     * The progress of one iteration, as passed to {@link LBFGSProgress#lbfgsProgress}.
+     * <p>
+     * The listener receives the same instance for every record; it is only valid during the call.
+     */
+    public static final class Record {
+        public int k;
+        public int ls;
+        public double fx;
+        public double xnorm;
+        public double gnorm;
+        public double step;
+        /**
+         * The time spent on the iteration, from the previous record of the same solve; zero for the first record of
+         * each solve, since the callback does not see the solve begin.
+         */
+        public long nanos;
+        /**
+         * A copy of the variables, or null if no snapshot was taken at this iteration.
+         */
+        @Nullable
+        public double[] x;
+    }
+
+    public interface Listener {
+        void onProgress(@NotNull Record record);
+    }
+
+    private final int mask;
+    private final int snapshotInterval;
+
+    private final int[] ks;
+    private final int[] lss;
+    private final double[] fxs;
+    private final double[] xnorms;
+    private final double[] gnorms;
+    private final double[] steps;
+    private final long[] nanos;
+    private final double[][] snapshots;
+    private final Queue<double[]> freeSnapshots = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The next slot to write, only advanced by the producer, and the next slot to read, only advanced by the
+     * consumer; each is published with an ordered write once its slot is complete.
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean canceled;
+    private volatile boolean snapshotRequested;
+    private volatile boolean closed;
+    /**
+     * The time and iteration of the previous call, only used by the producer; an iteration that does not follow
+     * the previous one starts a new solve.
+     */
+    private long last;
+    private int lastK = Integer.MAX_VALUE;
+    private final Record record = new Record();
+    private Thread consumer;
+
+    /**
+     * @param capacity         The number of records the ring holds, rounded up to a power of two.
+     * @param snapshotInterval Copy the variables every this many iterations, or never if zero.
+     */
+    public LBFGSAsyncProgress(int capacity, int snapshotInterval) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (snapshotInterval < 0) {
+            throw new IllegalArgumentException("snapshotInterval must not be negative: " + snapshotInterval);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        if (capacity == 1) {
+            size = 1;
+        }
+        this.mask = size - 1;
+        this.snapshotInterval = snapshotInterval;
+        ks = new int[size];
+        lss = new int[size];
+        fxs = new double[size];
+        xnorms = new double[size];
+        gnorms = new double[size];
+        steps = new double[size];
+        nanos = new long[size];
+        snapshots = new double[size][];
+    }
+
+    @Override
+    public int lbfgsProgress(
+            double[] x,
+            double[] g,
+            double fx,
+            double xnorm,
+            double gnorm,
+            double step,
+            int n,
+            int k,
+            int ls) {
+        long now = System.nanoTime();
+        if (k <= lastK) {
+            last = now;
+        }
+        lastK = k;
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            dropped.lazySet(dropped.get() + 1);
+        } else {
+            int slot = (int) h & mask;
+            ks[slot] = k;
+            lss[slot] = ls;
+            fxs[slot] = fx;
+            xnorms[slot] = xnorm;
+            gnorms[slot] = gnorm;
+            steps[slot] = step;
+            nanos[slot] = now - last;
+            double[] snapshot = null;
+            if (snapshotRequested || (snapshotInterval > 0 && k % snapshotInterval == 0)) {
+                snapshotRequested = false;
+                snapshot = freeSnapshots.poll();
+                if (snapshot == null || snapshot.length != n) {
+                    snapshot = new double[n];
+                }
+                System.arraycopy(x, 0, snapshot, 0, n);
+            }
+            snapshots[slot] = snapshot;
+            head.lazySet(h + 1);
+        }
+        last = now;
+        return canceled ? LBFGS.LBFGSERR_CANCELED : 0;
+    }
+
+    /**
+     * Pass the pending records to a listener, in order, without blocking. Only one thread may drain at a time.
+     *
+     * @return The number of records passed.
+     */
+    public int drain(@NotNull Listener listener) {
+        long t = tail.get();
+        long h = head.get();
+        int ret = 0;
+        for (; t < h; t++, ret++) {
+            int slot = (int) t & mask;
+            record.k = ks[slot];
+            record.ls = lss[slot];
+            record.fx = fxs[slot];
+            record.xnorm = xnorms[slot];
+            record.gnorm = gnorms[slot];
+            record.step = steps[slot];
+            record.nanos = nanos[slot];
+            record.x = snapshots[slot];
+            snapshots[slot] = null;
+            try {
+                listener.onProgress(record);
+            } finally {
+                if (record.x != null) {
+                    freeSnapshots.offer(record.x);
+                    record.x = null;
+                }
+                tail.lazySet(t + 1);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Drain the records on a new daemon thread until {@link #close()}.
+     */
+    public synchronized void start(@NotNull Listener listener) {
+        if (consumer != null) {
+            throw new IllegalStateException("Already started");
+        }
+        consumer = new Thread(() -> {
+            while (!closed) {
+                if (drain(listener) == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+            drain(listener);
+        }, "lbfgs-progress");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stop the thread started by {@link #start}, once it has passed all the pending records.
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+        closed = true;
+        if (consumer != null) {
+            consumer.join();
+        }
+    }
+
+    /**
+     * Stop the solve at its next iteration.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * Copy the variables at the next iteration.
+     */
+    public void requestSnapshot() {
+        snapshotRequested = true;
+    }
+
+    /**
+     * @return The number of records that were dropped because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
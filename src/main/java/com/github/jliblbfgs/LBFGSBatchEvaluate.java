@@ -0,0 +1,27 @@
+package com.github.jliblbfgs;
+
+/**
+ * Callback interface to evaluate a whole batch of problems at once, for {@link LBFGSLockstepSolver}.
+ */
+interface LBFGSBatchEvaluate {
+    /**
+     * Compute the objective function values and gradients of the active problems of a batch.
+     * <p>
+     * The variables and gradients are interleaved: variable i of problem b is at index {@code i * batch + b}. Only
+     * the entries of the active problems must be written; the others have to be left untouched.
+     *
+     * @param x      The current values of variables of every problem.
+     * @param g      The gradient vectors, in the same layout as x.
+     * @param fx     Receives the value of the objective function of each active problem.
+     * @param active Which problems need to be evaluated.
+     * @param n      The number of variables of each problem.
+     * @param batch  The number of problems.
+     */
+    void lbfgsEvaluate(
+            double[] x,
+            double[] g,
+            double[] fx,
+            boolean[] active,
+            int n,
+            int batch);
+}
@@ -0,0 +1,147 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * Solves many independent problems concurrently on a caller-supplied {@link Executor}.
+ * <p>
+ * Each task borrows an {@link LBFGSSolver} of the right dimension from a lock-free pool and returns it when done, so
+ * workspaces are reused across problems without ever being shared by two running solves. Any executor works,
+ * including a virtual-thread-per-task executor on Java 21 or later, since reuse does not rely on thread identity.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class LBFGSBatchSolver {
+    /**
+     * A single optimization problem; its dimension is the length of x.
+     */
+    public static class Problem {
+        @NotNull
+        final double[] x;
+        @NotNull
+        final LBFGSEvaluate evaluate;
+        @Nullable
+        final LBFGSProgress progress;
+
+        /**
+         * @param x        The starting point. It receives the result, as in {@link LBFGS#lbfgs}.
+         * @param evaluate The callback function to provide function and gradient evaluations.
+         * @param progress The callback function to receive the progress. May be null.
+         */
+        public Problem(@NotNull double[] x, @NotNull LBFGSEvaluate evaluate, @Nullable LBFGSProgress progress) {
+            this.x = x;
+            this.evaluate = evaluate;
+            this.progress = progress;
+        }
+
+        public Problem(@NotNull double[] x, @NotNull LBFGSEvaluate evaluate) {
+            this(x, evaluate, null);
+        }
+
+        @NotNull
+        public double[] getX() {
+            return x;
+        }
+    }
+
+    public static class Result {
+        @NotNull
+        public final Problem problem;
+        /**
+         * The status code returned by the solver.
+         */
+        public final int ret;
+        /**
+         * The final value of the objective function.
+         */
+        public final double fx;
+
+        Result(@NotNull Problem problem, int ret, double fx) {
+            this.problem = problem;
+            this.ret = ret;
+            this.fx = fx;
+        }
+    }
+
+    private final LBFGSProto.Params params;
+    private final LBFGSVector.IFactory factory;
+    private final Executor executor;
+    private final ConcurrentHashMap<Integer, Queue<LBFGSSolver>> solvers = new ConcurrentHashMap<>();
+
+    /**
+     * @param params   The parameters for every problem. If null, the default parameters are used.
+     * @param factory  The factory used to allocate the solver workspaces.
+     * @param executor Where the problems are solved.
+     */
+    public LBFGSBatchSolver(
+            @Nullable LBFGSProto.Params params,
+            @NotNull LBFGSVector.IFactory factory,
+            @NotNull Executor executor) {
+        this.params = params;
+        this.factory = factory;
+        this.executor = executor;
+    }
+
+    /**
+     * Solve a single problem asynchronously. The future completes exceptionally if a callback throws.
+     */
+    @NotNull
+    public CompletableFuture<Result> submit(@NotNull Problem problem) {
+        return CompletableFuture.supplyAsync(() -> solve(problem), executor);
+    }
+
+    /**
+     * Solve every problem asynchronously.
+     *
+     * @return One future per problem, in the iteration order of problems.
+     */
+    @NotNull
+    public List<CompletableFuture<Result>> submitAll(@NotNull Collection<Problem> problems) {
+        List<CompletableFuture<Result>> ret = new ArrayList<>(problems.size());
+        for (Problem problem : problems) {
+            ret.add(submit(problem));
+        }
+        return ret;
+    }
+
+    /**
+     * Solve every problem concurrently.
+     *
+     * @return The results, in the iteration order of problems. Each element blocks until its problem is solved.
+     */
+    @NotNull
+    public Stream<Result> solveAll(@NotNull Collection<Problem> problems) {
+        return submitAll(problems).stream().map(CompletableFuture::join);
+    }
+
+    @NotNull
+    private Result solve(@NotNull Problem problem) {
+        int n = problem.x.length;
+        if (n <= 0) {
+            return new Result(problem, LBFGS.LBFGSERR_INVALID_N, 0d);
+        }
+        Queue<LBFGSSolver> pool = solvers.computeIfAbsent(n, k -> new ConcurrentLinkedQueue<>());
+        LBFGSSolver solver = pool.poll();
+        if (solver == null) {
+            solver = new LBFGSSolver(n, params, factory);
+        }
+        try {
+            double[] fx = new double[1];
+            int ret = solver.solve(problem.x, fx, problem.evaluate, problem.progress);
+            return new Result(problem, ret, fx[0]);
+        } finally {
+            pool.offer(solver);
+        }
+    }
+}
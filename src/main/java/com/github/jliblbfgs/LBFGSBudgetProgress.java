@@ -0,0 +1,45 @@
+package com.github.jliblbfgs;
+
+/**
+ * A progress callback that also receives what is left of the budget of the solve, set with the {@code time_budget}
+ * and {@code max_evaluations} parameters, for instance to settle for a coarser solution when time runs short.
+ */
+interface LBFGSBudgetProgress extends LBFGSProgress {
+    /**
+     * Receive the progress of the optimization process; see {@link LBFGSProgress#lbfgsProgress}.
+     *
+     * @param remainingNanos       The time left in nanoseconds, or {@link Long#MAX_VALUE} without a time budget.
+     * @param remainingEvaluations The calls of the evaluation callback left, or {@link Integer#MAX_VALUE} without an
+     *                             evaluation budget.
+     * @return Zero to continue the optimization process. non-zero value will cancel the optimization process.
+     */
+    int lbfgsProgress(
+            double[] x,
+            double[] g,
+            double fx,
+            double xnorm,
+            double gnorm,
+            double step,
+            int n,
+            int k,
+            int ls,
+            long remainingNanos,
+            int remainingEvaluations);
+
+    /**
+     * Called without a budget: the budget is unlimited.
+     */
+    @Override
+    default int lbfgsProgress(
+            double[] x,
+            double[] g,
+            double fx,
+            double xnorm,
+            double gnorm,
+            double step,
+            int n,
+            int k,
+            int ls) {
+        return lbfgsProgress(x, g, fx, xnorm, gnorm, step, n, k, ls, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+}
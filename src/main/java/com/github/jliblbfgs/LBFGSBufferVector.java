@@ -0,0 +1,217 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link LBFGSVector} stored outside of the java heap, in direct or memory-mapped {@link DoubleBuffer}s.
+ * <p>
+ * Meant for the correction history of very large problems (see
+ * {@link LBFGSSolver#LBFGSSolver(int, LBFGSProto.Params, LBFGSVector.IFactory, LBFGSVector.IFactory)}), which then
+ * neither counts against the heap nor has to be scanned by the collector. A single {@link ByteBuffer} is limited to
+ * 2 GiB, so the values are spread over segments of {@link #SEGMENT_SIZE} elements and a vector can hold up to
+ * {@link #MAX_SIZE} of them, the same as a heap vector; a mapped vector is one file mapped region by region. The
+ * values have no backing array, so {@link #getValues()} is unsupported; use {@link #getBuffers()}, or
+ * {@link #getBuffer()} for a vector that fits in one segment.
+ */
+public class LBFGSBufferVector extends LBFGSVector {
+    private static final int SEGMENT_SHIFT = 27;
+    /**
+     * The number of elements in each buffer but the last: 1 GiB of doubles.
+     */
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    /**
+     * The largest vector; indices are ints, like those of every other vector.
+     */
+    public static final int MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Creates vectors in direct buffers, released when the vector is garbage collected.
+     */
+    public static class DirectFactory implements IFactory {
+        private final int segmentSize;
+
+        public DirectFactory() {
+            this(SEGMENT_SIZE);
+        }
+
+        /**
+         * @param segmentSize The number of elements per buffer, a power of two no larger than {@link #SEGMENT_SIZE}.
+         */
+        DirectFactory(int segmentSize) {
+            this.segmentSize = checkSegmentSize(segmentSize);
+        }
+
+        @Override
+        public LBFGSVector createVector(int n) {
+            DoubleBuffer[] segments = new DoubleBuffer[segments(n, segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = ByteBuffer.allocateDirect(segmentLength(n, segmentSize, i) * Double.BYTES)
+                        .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+            return new LBFGSBufferVector(n, segments);
+        }
+
+        @Override
+        public LBFGSVector createVector(@NotNull double[] values) {
+            LBFGSBufferVector ret = (LBFGSBufferVector) createVector(values.length);
+            ret.put(values);
+            return ret;
+        }
+    }
+
+    /**
+     * Creates vectors in memory-mapped temporary files, so that the operating system can page them out to disk.
+     * The files are unlinked as soon as they are mapped; the space is reclaimed when the vector is garbage
+     * collected.
+     */
+    public static class MappedFactory implements IFactory {
+        private final File directory;
+        private final int segmentSize;
+
+        /**
+         * @param directory Where to create the backing files, ideally on a local SSD.
+         */
+        public MappedFactory(@NotNull File directory) {
+            this(directory, SEGMENT_SIZE);
+        }
+
+        /**
+         * @param directory   Where to create the backing files.
+         * @param segmentSize The number of elements per mapped region, a power of two no larger than
+         *                    {@link #SEGMENT_SIZE}.
+         */
+        MappedFactory(@NotNull File directory, int segmentSize) {
+            this.directory = directory;
+            this.segmentSize = checkSegmentSize(segmentSize);
+        }
+
+        @Override
+        public LBFGSVector createVector(int n) {
+            DoubleBuffer[] segments = new DoubleBuffer[segments(n, segmentSize)];
+            try {
+                File file = File.createTempFile("lbfgs", ".vec", directory);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength((long) n * Double.BYTES);
+                    FileChannel channel = raf.getChannel();
+                    for (int i = 0; i < segments.length; i++) {
+                        long offset = (long) i * segmentSize * Double.BYTES;
+                        int bytes = segmentLength(n, segmentSize, i) * Double.BYTES;
+                        segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, bytes)
+                                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    }
+                    return new LBFGSBufferVector(n, segments);
+                } finally {
+                    if (!file.delete()) {
+                        file.deleteOnExit();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public LBFGSVector createVector(@NotNull double[] values) {
+            LBFGSBufferVector ret = (LBFGSBufferVector) createVector(values.length);
+            ret.put(values);
+            return ret;
+        }
+    }
+
+    private static int checkSegmentSize(int segmentSize) {
+        if (segmentSize <= 0 || segmentSize > SEGMENT_SIZE || Integer.bitCount(segmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size must be a power of two up to " + SEGMENT_SIZE + ": " +
+                    segmentSize);
+        }
+        return segmentSize;
+    }
+
+    private static int segments(int n, int segmentSize) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Buffer vectors hold between 0 and " + MAX_SIZE + " elements: " + n);
+        }
+        // At least one, possibly empty, segment.
+        return Math.max(1, (int) (((long) n + segmentSize - 1) / segmentSize));
+    }
+
+    private static int segmentLength(int n, int segmentSize, int segment) {
+        return (int) Math.min(segmentSize, n - (long) segment * segmentSize);
+    }
+
+    private final int size;
+    private final DoubleBuffer[] segments;
+    private final int shift;
+    private final int mask;
+
+    LBFGSBufferVector(int size, @NotNull DoubleBuffer... segments) {
+        this.size = size;
+        this.segments = segments;
+        // All segments but the last have the length of the first.
+        int segmentSize = segments.length > 1 ? segments[0].capacity() : SEGMENT_SIZE;
+        this.shift = Integer.numberOfTrailingZeros(segmentSize);
+        this.mask = segmentSize - 1;
+    }
+
+    private void put(@NotNull double[] values) {
+        for (int i = 0; i < segments.length; i++) {
+            DoubleBuffer segment = segments[i].duplicate();
+            segment.put(values, i << shift, segment.capacity());
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    double get(int i) {
+        return segments[i >>> shift].get(i & mask);
+    }
+
+    @Override
+    void set(int i, double val) {
+        segments[i >>> shift].put(i & mask, val);
+    }
+
+    @NotNull
+    @Override
+    public double[] getValues() {
+        throw new UnsupportedOperationException("Buffer vectors have no backing array; use getBuffers()");
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the values span more than one segment; use {@link #getBuffers()}.
+     */
+    @NotNull
+    @Override
+    public DoubleBuffer getBuffer() {
+        if (segments.length > 1) {
+            throw new UnsupportedOperationException(
+                    "Vector spans " + segments.length + " buffers; use getBuffers()");
+        }
+        return segments[0].duplicate();
+    }
+
+    /**
+     * @return Views of the segments in order, which do not copy the values; element {@code i} is at index
+     * {@code i % SEGMENT_SIZE} of buffer {@code i / SEGMENT_SIZE}.
+     */
+    @NotNull
+    public DoubleBuffer[] getBuffers() {
+        DoubleBuffer[] ret = new DoubleBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ret[i] = segments[i].duplicate();
+        }
+        return ret;
+    }
+}
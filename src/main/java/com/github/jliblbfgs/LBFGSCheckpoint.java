@@ -0,0 +1,154 @@
+package com.github.jliblbfgs;
+
+import com.google.protobuf.Descriptors;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the checkpoint files of {@link LBFGSSolver}; the layout is described with
+ * {@link LBFGSProto.Checkpoint}.
+ */
+final class LBFGSCheckpoint {
+    private static final byte[] MAGIC = "LBFGSCKP".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The number of doubles copied through the write buffer at a time.
+     */
+    private static final int WRITE_CHUNK = 1 << 16;
+    /**
+     * The number of doubles mapped at a time when reading.
+     */
+    private static final int MAP_CHUNK = 1 << 24;
+
+    private LBFGSCheckpoint() {
+    }
+
+    private static long vectorOffset(int headerLength) {
+        return (MAGIC.length + Integer.BYTES + headerLength + 7L) & ~7L;
+    }
+
+    /**
+     * Write a checkpoint to a temporary file next to file, then rename it, so that an interrupted write leaves any
+     * previous checkpoint intact.
+     */
+    static void write(
+            @NotNull File file,
+            @NotNull LBFGSProto.Checkpoint header,
+            @NotNull LBFGSVector... vectors) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] bytes = header.toByteArray();
+            ByteBuffer head = ByteBuffer.allocate((int) vectorOffset(bytes.length)).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(MAGIC).putInt(bytes.length).put(bytes);
+            head.clear();
+            writeFully(channel, head);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_CHUNK * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (LBFGSVector v : vectors) {
+                for (int from = 0; from < v.size(); from += WRITE_CHUNK) {
+                    int len = Math.min(WRITE_CHUNK, v.size() - from);
+                    buffer.clear();
+                    DoubleBuffer doubles = buffer.asDoubleBuffer();
+                    if (v.VALUES != null) {
+                        doubles.put(v.VALUES, from, len);
+                    } else {
+                        for (int i = from; i < from + len; i++) {
+                            doubles.put(v.get(i));
+                        }
+                    }
+                    buffer.limit(len * Double.BYTES);
+                    writeFully(channel, buffer);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the header of a checkpoint, leaving the channel positioned at the first vector.
+     */
+    @NotNull
+    static LBFGSProto.Checkpoint readHeader(@NotNull FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(MAGIC.length + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, head);
+        byte[] magic = new byte[MAGIC.length];
+        head.get(magic);
+        int length = head.getInt();
+        if (!Arrays.equals(magic, MAGIC) || length < 0 || channel.size() - channel.position() < length) {
+            throw new IllegalArgumentException("Not a checkpoint file");
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        readFully(channel, bytes);
+        LBFGSProto.Checkpoint header = LBFGSProto.Checkpoint.parseFrom(bytes.array());
+        channel.position(vectorOffset(length));
+        return header;
+    }
+
+    /**
+     * Whether two sets of parameters have the same values, whether or not these are set explicitly.
+     */
+    static boolean sameParams(@NotNull LBFGSProto.Params a, @NotNull LBFGSProto.Params b) {
+        for (Descriptors.FieldDescriptor field : LBFGSProto.Params.getDescriptor().getFields()) {
+            if (!a.getField(field).equals(b.getField(field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read vectors from the current position of the channel, by mapping the file.
+     */
+    static void readVectors(@NotNull FileChannel channel, @NotNull LBFGSVector... vectors) throws IOException {
+        long position = channel.position();
+        long bytes = 0;
+        for (LBFGSVector v : vectors) {
+            bytes += (long) v.size() * Double.BYTES;
+        }
+        if (channel.size() < position + bytes) {
+            throw new IllegalArgumentException("Truncated checkpoint file");
+        }
+        for (LBFGSVector v : vectors) {
+            for (int from = 0; from < v.size(); from += MAP_CHUNK) {
+                int len = Math.min(MAP_CHUNK, v.size() - from);
+                DoubleBuffer doubles = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) len * Double.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                if (v.VALUES != null) {
+                    doubles.get(v.VALUES, from, len);
+                } else {
+                    for (int i = from; i < from + len; i++) {
+                        v.set(i, doubles.get());
+                    }
+                }
+                position += (long) len * Double.BYTES;
+            }
+        }
+    }
+
+    private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IllegalArgumentException("Truncated checkpoint file");
+            }
+        }
+        buffer.flip();
+    }
+}
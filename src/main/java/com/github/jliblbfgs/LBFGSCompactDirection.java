@@ -0,0 +1,331 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the L-BFGS search direction from the compact representation of the inverse hessian approximation:
+ * <pre>
+ * H = gamma I + [S  gamma Y] [R^-t (D + gamma Y^t Y) R^-1   -R^-t] [S^t      ]
+ *                            [-R^-1                         0    ] [gamma Y^t]
+ * </pre>
+ * where the columns of S and Y are the correction pairs, oldest first, R is the upper triangle of S^t Y and D its
+ * diagonal (R. H. Byrd, J. Nocedal and R. B. Schnabel, Representations of quasi-Newton matrices and their use in
+ * limited memory methods, Mathematical Programming 63, 1994).
+ * <p>
+ * S^t Y and Y^t Y are kept up to date one pair at a time. A direction then takes two passes over the history: the
+ * first computes S^t g, Y^t g and the products of the new pair with every pair, the second forms d = -H g. Both
+ * passes go through the vectors in blocks of rows, so that g and the new pair stay in cache while each pair is read,
+ * and the blocks run as fork-join tasks whose sums are combined with a fixed tree, so the result does not depend on
+ * the number of threads.
+ * <p>
+ * The pairs stay in the {@link LBFGSVector}s of the solver, so checkpoints and warm starts work as with the two-loop
+ * recursion; they must be heap vectors.
+ */
+final class LBFGSCompactDirection {
+    /**
+     * The number of rows of a block.
+     */
+    static final int BLOCK_SIZE = 1 << 12;
+
+    private final int n;
+    private final int m;
+    @Nullable
+    private final ForkJoinPool pool;
+
+    /**
+     * s_i^t y_j and y_i^t y_j for the pairs in slots i and j of the ring buffer of the solver.
+     */
+    private final double[][] sy;
+    private final double[][] yy;
+    private boolean valid;
+    private int fresh = -1;
+
+    /**
+     * The slots of the pairs in time order, and scratch arrays for the small system, indexed in time order.
+     */
+    private final int[] order;
+    private final double[] sg;
+    private final double[] yg;
+    private final double[] t;
+    private final double[] u;
+    private final double[] cs;
+    private final double[] cy;
+
+    /**
+     * The columns of S and Y in time order, and the sums of the first pass for each block, all allocated here so that
+     * a direction allocates nothing but the tasks of several blocks.
+     */
+    private final double[][] sv;
+    private final double[][] yv;
+    private final double[][] blockSums;
+
+    /**
+     * @param pool The pool that runs the blocks, or null for the pool of the calling task or the common pool.
+     */
+    LBFGSCompactDirection(int n, int m, @Nullable ForkJoinPool pool) {
+        this.n = n;
+        this.m = m;
+        this.pool = pool;
+        sy = new double[m][m];
+        yy = new double[m][m];
+        order = new int[m];
+        sg = new double[m];
+        yg = new double[m];
+        t = new double[m];
+        u = new double[m];
+        cs = new double[m];
+        cy = new double[m];
+        sv = new double[m][];
+        yv = new double[m][];
+        blockSums = new double[blocks(n)][2 * m + 3 * m * m];
+    }
+
+    /**
+     * The number of blocks of a range of rows, split at the midpoint as the tasks do.
+     */
+    private static int blocks(int rows) {
+        if (rows <= BLOCK_SIZE) {
+            return 1;
+        }
+        int half = rows >>> 1;
+        return blocks(half) + blocks(rows - half);
+    }
+
+    /**
+     * The pairs were replaced, by a warm start or a checkpoint: recompute all of their products with the next
+     * direction.
+     */
+    void invalidate() {
+        valid = false;
+        fresh = -1;
+    }
+
+    /**
+     * The pair in this slot was just formed.
+     */
+    void formed(int slot) {
+        fresh = slot;
+    }
+
+    /**
+     * Compute d = -H g.
+     *
+     * @param s     The correction pairs of the solver, a ring buffer.
+     * @param y     The correction pairs of the solver, a ring buffer.
+     * @param end   The slot of the next pair, right after the newest one.
+     * @param pairs The number of stored pairs, at least one.
+     * @param gamma The scaling of the initial inverse hessian.
+     */
+    void direction(
+            @NotNull LBFGSVector[] s,
+            @NotNull LBFGSVector[] y,
+            int end,
+            int pairs,
+            double gamma,
+            @NotNull double[] g,
+            @NotNull double[] d) {
+        final int p = pairs;
+        for (int i = 0; i < p; i++) {
+            order[i] = (end - p + i + m) % m;
+        }
+        // The pairs whose products are not known yet are the newest ones: one after an update, all of them after
+        // invalidation.
+        int f = valid ? fresh >= 0 ? 1 : 0 : p;
+
+        for (int i = 0; i < p; i++) {
+            sv[i] = s[order[i]].getValues();
+            yv[i] = y[order[i]].getValues();
+        }
+
+        // The first pass: S^t g, Y^t g, and the products of the fresh pairs with all pairs.
+        if (n <= BLOCK_SIZE) {
+            products(p, f, g, 0, n, blockSums[0]);
+        } else {
+            invoke(new Products(p, f, g, 0, n, 0));
+        }
+        double[] sums = blockSums[0];
+        for (int i = 0; i < p; i++) {
+            sg[i] = sums[i];
+            yg[i] = sums[p + i];
+        }
+        for (int k = 0; k < f; k++) {
+            int e = order[p - f + k];
+            int offset = 2 * p + 3 * p * k;
+            for (int i = 0; i < p; i++) {
+                int q = order[i];
+                sy[q][e] = sums[offset + i];
+                sy[e][q] = sums[offset + p + i];
+                yy[q][e] = sums[offset + 2 * p + i];
+                yy[e][q] = yy[q][e];
+            }
+        }
+        valid = true;
+        fresh = -1;
+
+        // The small system, with R_ij = s_i^t y_j for i <= j in time order.
+        // t = R^-1 S^t g.
+        for (int i = p - 1; i >= 0; i--) {
+            double sum = sg[i];
+            for (int j = i + 1; j < p; j++) {
+                sum -= sy[order[i]][order[j]] * t[j];
+            }
+            t[i] = sum / sy[order[i]][order[i]];
+        }
+        // w = (D + gamma Y^t Y) t - gamma Y^t g, u = R^-t w.
+        for (int i = 0; i < p; i++) {
+            double w = sy[order[i]][order[i]] * t[i] - gamma * yg[i];
+            for (int j = 0; j < p; j++) {
+                w += gamma * yy[order[i]][order[j]] * t[j];
+            }
+            for (int j = 0; j < i; j++) {
+                w -= sy[order[j]][order[i]] * u[j];
+            }
+            u[i] = w / sy[order[i]][order[i]];
+        }
+        // d = -(gamma g + S u - gamma Y t).
+        for (int i = 0; i < p; i++) {
+            cs[i] = -u[i];
+            cy[i] = gamma * t[i];
+        }
+        if (n <= BLOCK_SIZE) {
+            combine(p, g, d, -gamma, 0, n);
+        } else {
+            invoke(new Combine(p, g, d, -gamma, 0, n));
+        }
+    }
+
+    private void invoke(@NotNull ForkJoinTask<?> task) {
+        if (pool == null || ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * The first pass over a block of rows: S^t g, Y^t g, then for each of the f newest pairs e: S^t y_e, Y^t s_e and
+     * Y^t y_e, in time order.
+     */
+    private void products(int p, int f, @NotNull double[] g, int from, int to, @NotNull double[] sums) {
+        for (int i = 0; i < p; i++) {
+            double[] si = sv[i];
+            double[] yi = yv[i];
+            double a = 0d;
+            double b = 0d;
+            for (int r = from; r < to; r++) {
+                a += si[r] * g[r];
+                b += yi[r] * g[r];
+            }
+            sums[i] = a;
+            sums[p + i] = b;
+            for (int k = 0; k < f; k++) {
+                double[] se = sv[p - f + k];
+                double[] ye = yv[p - f + k];
+                double c1 = 0d;
+                double c2 = 0d;
+                double c3 = 0d;
+                for (int r = from; r < to; r++) {
+                    c1 += si[r] * ye[r];
+                    c2 += se[r] * yi[r];
+                    c3 += yi[r] * ye[r];
+                }
+                int offset = 2 * p + 3 * p * k;
+                sums[offset + i] = c1;
+                sums[offset + p + i] = c2;
+                sums[offset + 2 * p + i] = c3;
+            }
+        }
+    }
+
+    /**
+     * The second pass over a block of rows: d = gg g + S cs + Y cy.
+     */
+    private void combine(int p, @NotNull double[] g, @NotNull double[] d, double gg, int from, int to) {
+        for (int r = from; r < to; r++) {
+            d[r] = gg * g[r];
+        }
+        for (int i = 0; i < p; i++) {
+            double[] si = sv[i];
+            double[] yi = yv[i];
+            double a = cs[i];
+            double b = cy[i];
+            for (int r = from; r < to; r++) {
+                d[r] += a * si[r] + b * yi[r];
+            }
+        }
+    }
+
+    /**
+     * Splits at the midpoint down to a block, and sums the products of the blocks up the same tree, into the sums of
+     * the first block of each range.
+     */
+    private final class Products extends RecursiveAction {
+        private final int p;
+        private final int f;
+        private final double[] g;
+        private final int from;
+        private final int to;
+        private final int block;
+
+        Products(int p, int f, double[] g, int from, int to, int block) {
+            this.p = p;
+            this.f = f;
+            this.g = g;
+            this.from = from;
+            this.to = to;
+            this.block = block;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK_SIZE) {
+                products(p, f, g, from, to, blockSums[block]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            int right = block + blocks(mid - from);
+            invokeAll(new Products(p, f, g, from, mid, block), new Products(p, f, g, mid, to, right));
+            double[] sums = blockSums[block];
+            double[] rightSums = blockSums[right];
+            for (int i = 0, length = 2 * p + 3 * p * f; i < length; i++) {
+                sums[i] += rightSums[i];
+            }
+        }
+    }
+
+    /**
+     * d = gg g + S cs + Y cy, block by block.
+     */
+    private final class Combine extends RecursiveAction {
+        private final int p;
+        private final double[] g;
+        private final double[] d;
+        private final double gg;
+        private final int from;
+        private final int to;
+
+        Combine(int p, double[] g, double[] d, double gg, int from, int to) {
+            this.p = p;
+            this.g = g;
+            this.d = d;
+            this.gg = gg;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BLOCK_SIZE) {
+                combine(p, g, d, gg, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Combine(p, g, d, gg, from, mid), new Combine(p, g, d, gg, mid, to));
+        }
+    }
+}
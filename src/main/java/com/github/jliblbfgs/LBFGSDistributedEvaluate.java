@@ -0,0 +1,187 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates an objective whose shards live in other processes, typically on other machines, each served by a
+ * {@link LBFGSDistributedWorker}; pass it to {@link LBFGS#lbfgs} or {@link LBFGSSolver#solve} like any other callback.
+ * <p>
+ * The coordinator and the workers form a binary tree over plain TCP connections: the coordinator is the root, and the
+ * worker of rank r, counted from one, is the child of rank (r - 1) / 2. Each evaluation sends x down the tree; every
+ * worker evaluates its shard, adds the partial losses and gradients of its children in rank order and sends the sum
+ * to its parent, so an evaluation takes a number of hops logarithmic in the number of workers and its result does not
+ * depend on timing. Worker r evaluates shard r - 1.
+ * <p>
+ * The workers connect to the coordinator, which assigns the ranks in the order in which they connect, then to their
+ * parents; the constructor returns once the tree is complete. {@link #close} shuts the workers down. An instance may
+ * be used by one solve at a time; a lost connection fails the evaluation with an {@link UncheckedIOException}.
+ */
+public class LBFGSDistributedEvaluate implements LBFGSEvaluate, Closeable {
+    /**
+     * The encoding of the gradients sent up the tree. x always travels as doubles, so that every shard sees the same
+     * point.
+     */
+    public enum Compression {
+        /**
+         * Doubles, exact.
+         */
+        NONE,
+        /**
+         * Floats, half the bytes of NONE.
+         */
+        FLOAT,
+        /**
+         * Floats holding the change from the previous gradient of the same connection. As large as FLOAT, but the
+         * rounding error is relative to the change rather than to the gradient, and does not accumulate.
+         */
+        FLOAT_DELTA,
+    }
+
+    private final int n;
+    private final int workers;
+    private final List<LBFGSLink> children = new ArrayList<>(2);
+    private final ByteBuffer frame;
+
+    /**
+     * Wait for the workers and build the tree.
+     *
+     * @param server      A bound server channel on which the workers connect. It is left open.
+     * @param n           The number of variables.
+     * @param workers     The number of workers, and of shards.
+     * @param compression The encoding of the gradients.
+     * @throws UncheckedIOException If a worker cannot be set up.
+     */
+    public LBFGSDistributedEvaluate(
+            @NotNull ServerSocketChannel server,
+            int n,
+            int workers,
+            @NotNull Compression compression) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.n = n;
+        this.workers = workers;
+        frame = LBFGSLink.frame(n);
+
+        List<SocketChannel> channels = new ArrayList<>(workers);
+        try {
+            int[] ports = new int[workers];
+            for (int i = 0; i < workers; i++) {
+                SocketChannel channel = server.accept();
+                channels.add(channel);
+                channel.socket().setTcpNoDelay(true);
+                ByteBuffer hello = LBFGSLink.readInts(channel, 2);
+                if (hello.getInt() != LBFGSLink.MAGIC) {
+                    throw new IOException("Not a worker: " + channel.getRemoteAddress());
+                }
+                ports[i] = hello.getInt();
+            }
+            for (int i = 0; i < workers; i++) {
+                int rank = i + 1;
+                int parent = (rank - 1) / 2;
+                SocketChannel channel = channels.get(i);
+                byte[] host = parent == 0 ? new byte[0] :
+                        ((InetSocketAddress) channels.get(parent - 1).getRemoteAddress())
+                                .getAddress().getHostAddress().getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer setup = ByteBuffer.allocate(6 * Integer.BYTES + host.length).order(ByteOrder.LITTLE_ENDIAN);
+                setup.putInt(rank)
+                        .putInt(workers)
+                        .putInt(n)
+                        .putInt(compression.ordinal())
+                        .putInt(parent == 0 ? 0 : ports[parent - 1])
+                        .putInt(host.length)
+                        .put(host);
+                setup.flip();
+                LBFGSLink.writeFully(channel, setup);
+                if (parent == 0) {
+                    children.add(new LBFGSLink(channel, n, compression));
+                }
+            }
+            // Every worker reports once it is connected to its parent and children, so that no evaluation starts
+            // before the tree is complete; the coordinator only keeps the connections to its own children.
+            for (int i = 0; i < workers; i++) {
+                LBFGSLink.readInts(channels.get(i), 1);
+                if (i / 2 != 0) {
+                    channels.get(i).close();
+                }
+            }
+        } catch (IOException e) {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public double lbfgsEvaluate(double[] x, double[] g, int n, double step) {
+        assert n == this.n : "The number of variables does not match";
+        frame.clear();
+        frame.putInt(LBFGSLink.EVALUATE).putDouble(step);
+        frame.asDoubleBuffer().put(x, 0, n);
+        frame.clear();
+        Arrays.fill(g, 0, n, 0d);
+        double fx = 0d;
+        try {
+            for (LBFGSLink child : children) {
+                child.send(frame);
+            }
+            for (LBFGSLink child : children) {
+                fx += child.receivePartial(g);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return fx;
+    }
+
+    /**
+     * Shut the workers down and close the connections.
+     */
+    @Override
+    public void close() {
+        IOException failure = null;
+        ByteBuffer shutdown = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        shutdown.putInt(LBFGSLink.SHUTDOWN).flip();
+        for (LBFGSLink child : children) {
+            try {
+                child.send(shutdown);
+                child.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        children.clear();
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Serves one shard of an objective to a {@link LBFGSDistributedEvaluate} in another process.
+ * <p>
+ * {@link #run} joins the tree of the coordinator, then evaluates the shard at every point sent down the tree until the
+ * coordinator is closed. It can also be started from the command line:
+ * <pre>
+ * java com.github.jliblbfgs.LBFGSDistributedWorker host port shardClass
+ * </pre>
+ * where shardClass implements {@link LBFGSShardEvaluate} and has a public constructor without arguments.
+ */
+public class LBFGSDistributedWorker implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(LBFGSDistributedWorker.class);
+
+    private final InetSocketAddress coordinator;
+    private final LBFGSShardEvaluate shardEvaluate;
+
+    /**
+     * @param coordinator   The address of the server channel of the coordinator.
+     * @param shardEvaluate The callback function to evaluate the shard of this worker. Its shard index is the rank of
+     *                      the worker, minus one.
+     */
+    public LBFGSDistributedWorker(@NotNull InetSocketAddress coordinator, @NotNull LBFGSShardEvaluate shardEvaluate) {
+        this.coordinator = coordinator;
+        this.shardEvaluate = shardEvaluate;
+    }
+
+    /**
+     * Join the tree and serve evaluations until the coordinator shuts the tree down.
+     *
+     * @throws UncheckedIOException If a connection fails.
+     */
+    @Override
+    public void run() {
+        LBFGSLink parent = null;
+        LBFGSLink[] children = new LBFGSLink[0];
+        try (SocketChannel channel = SocketChannel.open(coordinator);
+             ServerSocketChannel listener = ServerSocketChannel.open()) {
+            channel.socket().setTcpNoDelay(true);
+            listener.bind(new InetSocketAddress(((InetSocketAddress) channel.getLocalAddress()).getAddress(), 0));
+            LBFGSLink.writeInts(channel, LBFGSLink.MAGIC, ((InetSocketAddress) listener.getLocalAddress()).getPort());
+
+            ByteBuffer setup = LBFGSLink.readInts(channel, 6);
+            int rank = setup.getInt();
+            int workers = setup.getInt();
+            int n = setup.getInt();
+            LBFGSDistributedEvaluate.Compression compression =
+                    LBFGSDistributedEvaluate.Compression.values()[setup.getInt()];
+            int parentPort = setup.getInt();
+            ByteBuffer host = ByteBuffer.allocate(setup.getInt());
+            LBFGSLink.readFully(channel, host);
+            log.debug("Joined as worker {} of {}", rank, workers);
+
+            if (parentPort == 0) {
+                parent = new LBFGSLink(channel, n, compression);
+            } else {
+                SocketChannel up = SocketChannel.open(new InetSocketAddress(
+                        new String(host.array(), StandardCharsets.US_ASCII), parentPort));
+                up.socket().setTcpNoDelay(true);
+                parent = new LBFGSLink(up, n, compression);
+                LBFGSLink.writeInts(up, rank);
+            }
+
+            // The children are 2 r + 1 and 2 r + 2; order them by rank whatever the order of their connections.
+            int count = Math.max(Math.min(workers - 2 * rank, 2), 0);
+            children = new LBFGSLink[count];
+            for (int i = 0; i < count; i++) {
+                SocketChannel down = listener.accept();
+                down.socket().setTcpNoDelay(true);
+                int child = LBFGSLink.readInts(down, 1).getInt();
+                children[child - 2 * rank - 1] = new LBFGSLink(down, n, compression);
+            }
+            LBFGSLink.writeInts(channel, rank);
+            if (parentPort != 0) {
+                channel.close();
+            }
+
+            serve(rank - 1, n, parent, children);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closeQuietly(parent);
+            for (LBFGSLink child : children) {
+                closeQuietly(child);
+            }
+        }
+    }
+
+    private void serve(
+            int shard,
+            int n,
+            @NotNull LBFGSLink parent,
+            @NotNull LBFGSLink[] children) throws IOException {
+        ByteBuffer frame = LBFGSLink.frame(n);
+        double[] x = new double[n];
+        double[] g = new double[n];
+        while (true) {
+            int type = parent.receive(frame);
+            for (LBFGSLink child : children) {
+                child.send(frame);
+            }
+            if (type == LBFGSLink.SHUTDOWN) {
+                log.debug("Worker {} shut down", shard + 1);
+                return;
+            }
+            double step = frame.getDouble(Integer.BYTES);
+            frame.position(LBFGSLink.X_OFFSET);
+            frame.asDoubleBuffer().get(x);
+            frame.position(0);
+
+            Arrays.fill(g, 0d);
+            double fx = shardEvaluate.lbfgsEvaluateShard(shard, x, g, n, step);
+            for (LBFGSLink child : children) {
+                fx += child.receivePartial(g);
+            }
+            parent.sendPartial(fx, g);
+        }
+    }
+
+    private static void closeQuietly(@Nullable LBFGSLink link) {
+        if (link == null) {
+            return;
+        }
+        try {
+            link.close();
+        } catch (IOException e) {
+            log.debug("Failed to close a connection", e);
+        }
+    }
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        if (args.length != 3) {
+            System.err.println("Usage: LBFGSDistributedWorker host port shardClass");
+            System.exit(2);
+        }
+        LBFGSShardEvaluate shardEvaluate =
+                (LBFGSShardEvaluate) Class.forName(args[2]).getConstructor().newInstance();
+        new LBFGSDistributedWorker(
+                new InetSocketAddress(args[0], Integer.parseInt(args[1])), shardEvaluate).run();
+    }
+}
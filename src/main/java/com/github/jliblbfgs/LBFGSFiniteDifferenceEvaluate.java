@@ -0,0 +1,236 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates the gradient of a function that only provides its value, such as a black-box simulation, with finite
+ * differences computed in parallel.
+ * <p>
+ * The coordinates are split in blocks that run on a {@link ForkJoinPool}; each block perturbs its own copy of x, one
+ * coordinate at a time, so that a block costs one copy of x however many coordinates it has. The copies are pooled
+ * across evaluations. The step of coordinate i is {@code r max(|x_i|, 1)}, rounded so that x_i plus the step is
+ * exact, where r is the square root of the machine epsilon for forward differences and its cube root for central
+ * differences, which balances the truncation and rounding errors of each scheme.
+ * <p>
+ * As a {@link LBFGSValueEvaluate}, the backtracking line searches only ask for the gradient at the steps that pass the
+ * sufficient decrease test. With {@link #setReuseValue}, the value that they computed at such a step serves as the
+ * base point of the differences instead of a new call.
+ * <p>
+ * The gradient keeps no state across calls but the value to reuse, which is published whole, so that concurrent calls
+ * such as the lanes of a speculative line search may share an instance.
+ */
+public class LBFGSFiniteDifferenceEvaluate implements LBFGSValueEvaluate {
+    private final int n;
+    private final LBFGSFunction function;
+    private final boolean central;
+    private final ForkJoinPool pool;
+    private final double relativeStep;
+    private final int blockSize;
+    private final Queue<double[]> buffers = new ConcurrentLinkedQueue<>();
+
+    private boolean reuseValue;
+    /**
+     * The point and value of the last call to {@link #lbfgsValue} when reuseValue is set, else null.
+     */
+    private volatile Value last;
+
+    /**
+     * @param n        The number of variables.
+     * @param function The function to differentiate.
+     * @param central  Whether to use central differences, which take 2 n calls of the function per gradient instead
+     *                 of n + 1, but are much more accurate.
+     * @param pool     The pool that runs the calls of the function.
+     */
+    public LBFGSFiniteDifferenceEvaluate(
+            int n,
+            @NotNull LBFGSFunction function,
+            boolean central,
+            @NotNull ForkJoinPool pool) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        this.n = n;
+        this.function = function;
+        this.central = central;
+        this.pool = pool;
+        double epsilon = Math.ulp(1d);
+        relativeStep = central ? Math.cbrt(epsilon) : Math.sqrt(epsilon);
+        // A few blocks per thread, for balance.
+        blockSize = Math.max(n / (4 * pool.getParallelism()), 1);
+    }
+
+    /**
+     * Runs the calls of the function on the common pool.
+     */
+    public LBFGSFiniteDifferenceEvaluate(int n, @NotNull LBFGSFunction function, boolean central) {
+        this(n, function, central, ForkJoinPool.commonPool());
+    }
+
+    public boolean isCentral() {
+        return central;
+    }
+
+    public boolean isReuseValue() {
+        return reuseValue;
+    }
+
+    /**
+     * Reuse the value of the last {@link #lbfgsValue} call when the gradient is then asked for at the same point,
+     * which saves a call of the function for each accepted step of a backtracking line search. This keeps a copy of
+     * x, and needs a deterministic function.
+     */
+    public void setReuseValue(boolean reuseValue) {
+        this.reuseValue = reuseValue;
+        last = null;
+    }
+
+    @Override
+    public double lbfgsValue(double[] x, int n, double step) {
+        assert n == this.n : "The number of variables does not match";
+        double ret = function.lbfgsFunction(x, n);
+        if (reuseValue) {
+            last = new Value(x.clone(), ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public double lbfgsEvaluate(double[] x, double[] g, int n, double step) {
+        assert n == this.n : "The number of variables does not match";
+        Value known = last;
+        if (known != null && !known.at(x)) {
+            known = null;
+        }
+        Gradient gradient = new Gradient(x, g, known == null);
+        pool.invoke(gradient);
+        double fx = known != null ? known.fx : gradient.fx;
+        if (!central) {
+            // The steps only depend on x, so they are taken again rather than kept.
+            for (int i = 0; i < n; i++) {
+                g[i] = (g[i] - fx) / step(x[i]);
+            }
+        }
+        return fx;
+    }
+
+    /**
+     * The step of a coordinate, rounded so that it is exactly the difference between the perturbed and base values.
+     */
+    private double step(double xi) {
+        return (xi + relativeStep * Math.max(Math.abs(xi), 1d)) - xi;
+    }
+
+    private double[] acquire() {
+        double[] ret = buffers.poll();
+        return ret != null ? ret : new double[n];
+    }
+
+    private void release(@NotNull double[] buffer) {
+        buffers.offer(buffer);
+    }
+
+    /**
+     * A point and the value of the function there.
+     */
+    private static final class Value {
+        final double[] x;
+        final double fx;
+
+        Value(double[] x, double fx) {
+            this.x = x;
+            this.fx = fx;
+        }
+
+        boolean at(@NotNull double[] x) {
+            for (int i = 0; i < x.length; i++) {
+                if (Double.doubleToLongBits(x[i]) != Double.doubleToLongBits(this.x[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The value at x, if needed, next to the differences of all coordinates.
+     */
+    private final class Gradient extends RecursiveAction {
+        private final double[] x;
+        private final double[] g;
+        private final boolean base;
+        double fx;
+
+        Gradient(double[] x, double[] g, boolean base) {
+            this.x = x;
+            this.g = g;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute() {
+            Differences differences = new Differences(x, g, 0, n);
+            if (!base) {
+                differences.invoke();
+                return;
+            }
+            RecursiveAction value = new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    fx = function.lbfgsFunction(x, n);
+                }
+            };
+            invokeAll(value, differences);
+        }
+    }
+
+    /**
+     * Splits the coordinates in halves down to a block. For forward differences, g receives the values at the
+     * perturbed points, from which the caller subtracts the base value.
+     */
+    private final class Differences extends RecursiveAction {
+        private final double[] x;
+        private final double[] g;
+        private final int from;
+        private final int to;
+
+        Differences(double[] x, double[] g, int from, int to) {
+            this.x = x;
+            this.g = g;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > blockSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Differences(x, g, from, mid), new Differences(x, g, mid, to));
+                return;
+            }
+            double[] xc = acquire();
+            try {
+                System.arraycopy(x, 0, xc, 0, n);
+                for (int i = from; i < to; i++) {
+                    double xi = x[i];
+                    double hi = step(xi);
+                    xc[i] = xi + hi;
+                    double plus = function.lbfgsFunction(xc, n);
+                    if (central) {
+                        xc[i] = xi - hi;
+                        g[i] = (plus - function.lbfgsFunction(xc, n)) / (2d * hi);
+                    } else {
+                        g[i] = plus;
+                    }
+                    xc[i] = xi;
+                }
+            } finally {
+                release(xc);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A {@link LBFGSVector} that stores its values in single precision.
+ * <p>
+ * Used for the correction history when {@code float_history} is set: values are rounded to float when stored, but
+ * every operation, and in particular every dot product accumulator, is computed in double precision.
+ * <p>
+ * The kernels of the two-loop recursion read float operands straight from their arrays, on either side of the mixed
+ * operations: a double vector updated with or dotted with a float one, and a float vector dotted with either.
+ */
+public class LBFGSFloatVector extends LBFGSVector {
+    public static class Factory implements IFactory {
+        @Override
+        public LBFGSVector createVector(int n) {
+            return new LBFGSFloatVector(n);
+        }
+
+        @Override
+        public LBFGSVector createVector(@NotNull double[] values) {
+            LBFGSFloatVector ret = new LBFGSFloatVector(values.length);
+            for (int i = 0; i < values.length; i++) {
+                ret.FLOATS[i] = (float) values[i];
+            }
+            return ret;
+        }
+    }
+
+    private final float[] FLOATS;
+
+    LBFGSFloatVector(int size) {
+        FLOATS = new float[size];
+    }
+
+    @Override
+    public int size() {
+        return FLOATS.length;
+    }
+
+    @Override
+    double get(int i) {
+        return FLOATS[i];
+    }
+
+    @Override
+    void set(int i, double val) {
+        FLOATS[i] = (float) val;
+    }
+
+    @NotNull
+    public float[] getFloatValues() {
+        return FLOATS;
+    }
+
+    /**
+     * @return The backing array of a float vector, or null for any other vector.
+     */
+    @Nullable
+    static float[] floatsOf(@NotNull LBFGSVector v) {
+        return v instanceof LBFGSFloatVector ? ((LBFGSFloatVector) v).FLOATS : null;
+    }
+
+    @NotNull
+    @Override
+    public double[] getValues() {
+        throw new UnsupportedOperationException("Float vectors have no double array; use getFloatValues()");
+    }
+
+    @NotNull
+    @Override
+    public DoubleBuffer getBuffer() {
+        throw new UnsupportedOperationException("Float vectors have no double view; use getFloatValues()");
+    }
+
+    @Override
+    public double dot(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        final float[] otherFloats = floatsOf(other);
+        double ret = 0d;
+        if (otherFloats != null) {
+            for (int i = 0; i < FLOATS.length; i++) {
+                ret += (double) FLOATS[i] * otherFloats[i];
+            }
+        } else if (other.VALUES != null) {
+            final double[] otherValues = other.VALUES;
+            for (int i = 0; i < FLOATS.length; i++) {
+                ret += FLOATS[i] * otherValues[i];
+            }
+        } else {
+            return super.dot(other);
+        }
+        return ret;
+    }
+
+    @Override
+    public void copyDiff(@NotNull LBFGSVector a, @NotNull LBFGSVector b) {
+        assert size() == a.size() && size() == b.size() : "Vectors must be the same size";
+        if (a.VALUES == null || b.VALUES == null) {
+            super.copyDiff(a, b);
+            return;
+        }
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        for (int i = 0; i < FLOATS.length; i++) {
+            FLOATS[i] = (float) (aValues[i] - bValues[i]);
+        }
+    }
+
+    /**
+     * The dot product uses the rounded values, so that ys and yy are consistent with the stored pairs.
+     */
+    @Override
+    public double copyDiffAndDot(@NotNull LBFGSVector a, @NotNull LBFGSVector b, @NotNull LBFGSVector dotWith) {
+        assert size() == a.size() && size() == b.size() && size() == dotWith.size() :
+                "Vectors must be the same size";
+        if (a.VALUES == null || b.VALUES == null) {
+            return super.copyDiffAndDot(a, b, dotWith);
+        }
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        double ret = 0d;
+        if (dotWith instanceof LBFGSFloatVector) {
+            // Possibly this vector, so read back after writing.
+            final float[] dotFloats = ((LBFGSFloatVector) dotWith).FLOATS;
+            for (int i = 0; i < FLOATS.length; i++) {
+                FLOATS[i] = (float) (aValues[i] - bValues[i]);
+                ret += (double) FLOATS[i] * dotFloats[i];
+            }
+        } else if (dotWith.VALUES != null) {
+            final double[] dotValues = dotWith.VALUES;
+            for (int i = 0; i < FLOATS.length; i++) {
+                FLOATS[i] = (float) (aValues[i] - bValues[i]);
+                ret += FLOATS[i] * dotValues[i];
+            }
+        } else {
+            return super.copyDiffAndDot(a, b, dotWith);
+        }
+        return ret;
+    }
+}
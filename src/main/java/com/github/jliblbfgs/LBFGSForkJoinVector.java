@@ -0,0 +1,431 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link LBFGSVector} whose kernels split the vector into fixed-size chunks and run them on a fork-join pool: the
+ * pool of the calling task, or else a pool given to the vector, or else the common pool. Reductions combine the
+ * chunks with a fixed binary tree, so results do not depend on the pool or the number of threads.
+ * <p>
+ * Compensated vectors also carry the rounding error of every product and addition of their dot products, within the
+ * chunks and up the tree, and add it back at the end: the dot products are then about as accurate as if they were
+ * computed in twice the precision, for a couple dozen more operations per element and a second pass over each chunk,
+ * while it is in cache, for the fused kernels.
+ * <p>
+ * Only worth it for large vectors; see {@link LBFGSVector.Factory}. Operands stored outside of the heap fall back to
+ * the sequential kernels.
+ */
+class LBFGSForkJoinVector extends LBFGSVector {
+    interface RangeAction {
+        void apply(int from, int to);
+    }
+
+    interface RangeSum {
+        double apply(int from, int to);
+    }
+
+    /**
+     * 2^27 + 1, which splits a double into halves of 26 bits.
+     */
+    private static final double SPLITTER = 134217729d;
+
+    private final int chunkSize;
+    private final boolean compensated;
+    @Nullable
+    private final ForkJoinPool pool;
+
+    LBFGSForkJoinVector(int size, int chunkSize) {
+        this(size, chunkSize, false, null);
+    }
+
+    /**
+     * @param pool The pool that runs the kernels called from outside of any pool, or null for the common pool.
+     */
+    LBFGSForkJoinVector(int size, int chunkSize, boolean compensated, @Nullable ForkJoinPool pool) {
+        super(size);
+        this.chunkSize = chunkSize;
+        this.compensated = compensated;
+        this.pool = pool;
+    }
+
+    @Override
+    public void fill(double val) {
+        final double[] values = VALUES;
+        forEachChunk((from, to) -> Arrays.fill(values, from, to, val));
+    }
+
+    @Override
+    public void copyFrom(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.copyFrom(other);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        forEachChunk((from, to) -> System.arraycopy(otherValues, from, values, from, to - from));
+    }
+
+    @Override
+    public void copyNegativeFrom(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.copyNegativeFrom(other);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                values[i] = -otherValues[i];
+            }
+        });
+    }
+
+    @Override
+    public void addWithMultiplier(@NotNull LBFGSVector other, double multiplier) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.addWithMultiplier(other, multiplier);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                values[i] += multiplier * otherValues[i];
+            }
+        });
+    }
+
+    @Override
+    public void copyDiff(@NotNull LBFGSVector a, @NotNull LBFGSVector b) {
+        assert size() == a.size() && size() == b.size() : "Vectors must be the same size";
+        if (!onHeap(a, b)) {
+            super.copyDiff(a, b);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                values[i] = aValues[i] - bValues[i];
+            }
+        });
+    }
+
+    @Override
+    public void scale(double multiplier) {
+        final double[] values = VALUES;
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                values[i] *= multiplier;
+            }
+        });
+    }
+
+    @Override
+    public void mul(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.mul(other);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        forEachChunk((from, to) -> {
+            for (int i = from; i < to; i++) {
+                values[i] *= otherValues[i];
+            }
+        });
+    }
+
+    @Override
+    public double dot(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            return super.dot(other);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        if (compensated) {
+            return dotChunks(null, values, otherValues);
+        }
+        return sumChunks((from, to) -> {
+            double ret = 0d;
+            for (int i = from; i < to; i++) {
+                ret += values[i] * otherValues[i];
+            }
+            return ret;
+        });
+    }
+
+    @Override
+    public double copyNegativeFromAndDot(@NotNull LBFGSVector other, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() :
+                "Vectors must be the same size";
+        if (!onHeap(other, dotWith)) {
+            return super.copyNegativeFromAndDot(other, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        if (compensated) {
+            return dotChunks((from, to) -> {
+                for (int i = from; i < to; i++) {
+                    values[i] = -otherValues[i];
+                }
+            }, values, dotValues);
+        }
+        return sumChunks((from, to) -> {
+            double ret = 0d;
+            for (int i = from; i < to; i++) {
+                values[i] = -otherValues[i];
+                ret += values[i] * dotValues[i];
+            }
+            return ret;
+        });
+    }
+
+    @Override
+    public double addWithMultiplierAndDot(
+            @NotNull LBFGSVector other, double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() :
+                "Vectors must be the same size";
+        if (!onHeap(other, dotWith)) {
+            return super.addWithMultiplierAndDot(other, multiplier, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        if (compensated) {
+            return dotChunks((from, to) -> {
+                for (int i = from; i < to; i++) {
+                    values[i] += multiplier * otherValues[i];
+                }
+            }, values, dotValues);
+        }
+        return sumChunks((from, to) -> {
+            double ret = 0d;
+            for (int i = from; i < to; i++) {
+                values[i] += multiplier * otherValues[i];
+                ret += values[i] * dotValues[i];
+            }
+            return ret;
+        });
+    }
+
+    @Override
+    public double copyDiffAndDot(@NotNull LBFGSVector a, @NotNull LBFGSVector b, @NotNull LBFGSVector dotWith) {
+        assert size() == a.size() && size() == b.size() &&
+                size() == dotWith.size() : "Vectors must be the same size";
+        if (!onHeap(a, b) || dotWith.VALUES == null) {
+            return super.copyDiffAndDot(a, b, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        if (compensated) {
+            return dotChunks((from, to) -> {
+                for (int i = from; i < to; i++) {
+                    values[i] = aValues[i] - bValues[i];
+                }
+            }, values, dotValues);
+        }
+        return sumChunks((from, to) -> {
+            double ret = 0d;
+            for (int i = from; i < to; i++) {
+                values[i] = aValues[i] - bValues[i];
+                ret += values[i] * dotValues[i];
+            }
+            return ret;
+        });
+    }
+
+    @Override
+    public double scaleAndDot(double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == dotWith.size() : "Vectors must be the same size";
+        if (!onHeap(dotWith)) {
+            return super.scaleAndDot(multiplier, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        if (compensated) {
+            return dotChunks((from, to) -> {
+                for (int i = from; i < to; i++) {
+                    values[i] *= multiplier;
+                }
+            }, values, dotValues);
+        }
+        return sumChunks((from, to) -> {
+            double ret = 0d;
+            for (int i = from; i < to; i++) {
+                values[i] *= multiplier;
+                ret += values[i] * dotValues[i];
+            }
+            return ret;
+        });
+    }
+
+    void forEachChunk(@NotNull RangeAction action) {
+        invoke(new ChunkAction(action, 0, VALUES.length, chunkSize));
+    }
+
+    double sumChunks(@NotNull RangeSum sum) {
+        ChunkSum task = new ChunkSum(sum, 0, VALUES.length, chunkSize);
+        invoke(task);
+        return task.result;
+    }
+
+    /**
+     * The compensated dot product of a and b, after applying update to each chunk.
+     */
+    double dotChunks(@Nullable RangeAction update, @NotNull double[] a, @NotNull double[] b) {
+        ChunkDot task = new ChunkDot(update, a, b, 0, VALUES.length, chunkSize);
+        invoke(task);
+        return task.result + task.error;
+    }
+
+    /**
+     * Dekker's TwoProduct: the rounding error of p = a * b, exact unless it underflows, from the products of Veltkamp's
+     * splits of a and b, which are all exact.
+     */
+    static double productError(double a, double b, double p) {
+        double c = SPLITTER * a;
+        double aHigh = c - (c - a);
+        double aLow = a - aHigh;
+        c = SPLITTER * b;
+        double bHigh = c - (c - b);
+        double bLow = b - bHigh;
+        return aLow * bLow - (((p - aHigh * bHigh) - aLow * bHigh) - aHigh * bLow);
+    }
+
+    /**
+     * Run a task in the current pool if called from one, otherwise in the pool of this vector if it has one.
+     */
+    private void invoke(@NotNull ForkJoinTask<?> task) {
+        if (pool == null || ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    private static final class ChunkAction extends RecursiveAction {
+        private final RangeAction action;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        ChunkAction(RangeAction action, int from, int to, int chunkSize) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                action.apply(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkAction(action, from, mid, chunkSize), new ChunkAction(action, mid, to, chunkSize));
+        }
+    }
+
+    /**
+     * Splits at the midpoint until a range fits in a chunk, so the reduction tree only depends on the length and the
+     * chunk size.
+     */
+    private static final class ChunkSum extends RecursiveAction {
+        private final RangeSum sum;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        double result;
+
+        ChunkSum(RangeSum sum, int from, int to, int chunkSize) {
+            this.sum = sum;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                result = sum.apply(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ChunkSum left = new ChunkSum(sum, from, mid, chunkSize);
+            ChunkSum right = new ChunkSum(sum, mid, to, chunkSize);
+            invokeAll(left, right);
+            result = left.result + right.result;
+        }
+    }
+
+    /**
+     * A dot product that keeps the rounding error of every product and addition, with the same tree as
+     * {@link ChunkSum}.
+     */
+    private static final class ChunkDot extends RecursiveAction {
+        private final RangeAction update;
+        private final double[] a;
+        private final double[] b;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        double result;
+        double error;
+
+        ChunkDot(RangeAction update, double[] a, double[] b, int from, int to, int chunkSize) {
+            this.update = update;
+            this.a = a;
+            this.b = b;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                if (update != null) {
+                    update.apply(from, to);
+                }
+                double s = 0d;
+                double e = 0d;
+                for (int i = from; i < to; i++) {
+                    double p = a[i] * b[i];
+                    // Knuth's TwoSum: t + (the rounding error of t) = s + p exactly.
+                    double t = s + p;
+                    double z = t - s;
+                    e += ((s - (t - z)) + (p - z)) + productError(a[i], b[i], p);
+                    s = t;
+                }
+                result = s;
+                error = e;
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ChunkDot left = new ChunkDot(update, a, b, from, mid, chunkSize);
+            ChunkDot right = new ChunkDot(update, a, b, mid, to, chunkSize);
+            invokeAll(left, right);
+            double s = left.result + right.result;
+            double z = s - left.result;
+            result = s;
+            error = left.error + right.error + (left.result - (s - z)) + (right.result - z);
+        }
+    }
+}
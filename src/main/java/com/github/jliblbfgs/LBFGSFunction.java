@@ -0,0 +1,20 @@
+package com.github.jliblbfgs;
+
+/**
+ * Callback interface for an objective function without a gradient, for {@link LBFGSFiniteDifferenceEvaluate}.
+ */
+interface LBFGSFunction {
+    /**
+     * Compute the objective function.
+     * <p>
+     * The function is called concurrently for several points, so it must be thread-safe. It must not modify x, nor
+     * keep it after returning.
+     *
+     * @param x The values of variables.
+     * @param n The number of variables.
+     * @return The value of the objective function.
+     */
+    double lbfgsFunction(
+            double[] x,
+            int n);
+}
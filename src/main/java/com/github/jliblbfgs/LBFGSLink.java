@@ -0,0 +1,189 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One edge of the reduction tree of {@link LBFGSDistributedEvaluate}: a TCP connection between a parent and a child,
+ * with the frames that cross it.
+ * <p>
+ * All frames are little endian. A parent sends evaluation frames, {@code int EVALUATE, double step, double[n] x}, or
+ * {@code int SHUTDOWN}; the child answers each evaluation with a partial frame, {@code double fx} followed by the
+ * gradient encoded as set by the compression. The evaluation frames are built once in a direct buffer and written to
+ * every child as they are, and a worker forwards the frame it received without decoding it.
+ */
+final class LBFGSLink implements Closeable {
+    static final int MAGIC = 0x5346424c;
+    static final int EVALUATE = 1;
+    static final int SHUTDOWN = 2;
+
+    /**
+     * The offset of x in an evaluation frame.
+     */
+    static final int X_OFFSET = Integer.BYTES + Double.BYTES;
+
+    private final SocketChannel channel;
+    private final LBFGSDistributedEvaluate.Compression compression;
+    private final ByteBuffer partial;
+    /**
+     * For FLOAT_DELTA, the gradient as last decoded by the receiver, which both ends track.
+     */
+    private final double[] last;
+
+    LBFGSLink(
+            @NotNull SocketChannel channel,
+            int n,
+            @NotNull LBFGSDistributedEvaluate.Compression compression) {
+        this.channel = channel;
+        this.compression = compression;
+        int valueBytes = compression == LBFGSDistributedEvaluate.Compression.NONE ? Double.BYTES : Float.BYTES;
+        partial = ByteBuffer.allocateDirect(Double.BYTES + n * valueBytes).order(ByteOrder.LITTLE_ENDIAN);
+        last = compression == LBFGSDistributedEvaluate.Compression.FLOAT_DELTA ? new double[n] : null;
+    }
+
+    /**
+     * A direct buffer for the evaluation frames of n variables.
+     */
+    @NotNull
+    static ByteBuffer frame(int n) {
+        return ByteBuffer.allocateDirect(X_OFFSET + n * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write a whole frame, leaving its position and limit alone.
+     */
+    void send(@NotNull ByteBuffer frame) throws IOException {
+        writeFully(channel, frame.duplicate());
+    }
+
+    /**
+     * Read the next frame from the parent into frame.
+     *
+     * @return The type of the frame.
+     */
+    int receive(@NotNull ByteBuffer frame) throws IOException {
+        frame.clear().limit(Integer.BYTES);
+        readFully(channel, frame);
+        int type = frame.getInt(0);
+        if (type == EVALUATE) {
+            frame.limit(frame.capacity());
+            readFully(channel, frame);
+        } else if (type != SHUTDOWN) {
+            throw new IOException("Unknown frame type " + type);
+        }
+        frame.flip();
+        return type;
+    }
+
+    /**
+     * Send the loss and gradient of a subtree to the parent.
+     */
+    void sendPartial(double fx, @NotNull double[] g) throws IOException {
+        partial.clear();
+        partial.putDouble(fx);
+        switch (compression) {
+            case NONE:
+                partial.asDoubleBuffer().put(g);
+                break;
+            case FLOAT: {
+                FloatBuffer values = partial.asFloatBuffer();
+                for (double gi : g) {
+                    values.put((float) gi);
+                }
+                break;
+            }
+            case FLOAT_DELTA: {
+                FloatBuffer values = partial.asFloatBuffer();
+                for (int i = 0; i < g.length; i++) {
+                    float delta = (float) (g[i] - last[i]);
+                    last[i] += delta;
+                    values.put(delta);
+                }
+                break;
+            }
+        }
+        partial.clear();
+        writeFully(channel, partial);
+    }
+
+    /**
+     * Receive the loss and gradient of the subtree of the child, adding the gradient to g.
+     *
+     * @return The loss of the subtree.
+     */
+    double receivePartial(@NotNull double[] g) throws IOException {
+        partial.clear();
+        readFully(channel, partial);
+        double fx = partial.getDouble(0);
+        partial.position(Double.BYTES);
+        switch (compression) {
+            case NONE: {
+                DoubleBuffer values = partial.asDoubleBuffer();
+                for (int i = 0; i < g.length; i++) {
+                    g[i] += values.get(i);
+                }
+                break;
+            }
+            case FLOAT: {
+                FloatBuffer values = partial.asFloatBuffer();
+                for (int i = 0; i < g.length; i++) {
+                    g[i] += values.get(i);
+                }
+                break;
+            }
+            case FLOAT_DELTA: {
+                FloatBuffer values = partial.asFloatBuffer();
+                for (int i = 0; i < g.length; i++) {
+                    last[i] += values.get(i);
+                    g[i] += last[i];
+                }
+                break;
+            }
+        }
+        return fx;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    static void writeInts(@NotNull SocketChannel channel, int... values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v : values) {
+            buffer.putInt(v);
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    @NotNull
+    static ByteBuffer readInts(@NotNull SocketChannel channel, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void writeFully(@NotNull SocketChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static void readFully(@NotNull SocketChannel channel, @NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by the peer");
+            }
+        }
+    }
+}
@@ -0,0 +1,826 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+import static com.github.jliblbfgs.LBFGS.*;
+
+/**
+ * Solves a batch of problems of the same dimension together, advancing all of them one iteration at a time.
+ * <p>
+ * The vectors of the whole batch are interleaved in one contiguous array, variable i of problem b being at index
+ * {@code i * batch + b}, so every vector operation and every step of the two-loop recursion is a single wide pass over
+ * the batch, with one accumulator per problem, instead of many short loops. Problems are evaluated together through a
+ * {@link LBFGSBatchEvaluate}; those that converge or fail drop out of the active mask and are no longer updated. Once
+ * no more than half of the problems left in the vectors are running, the running ones are compacted to the front, so
+ * that the passes do not keep sweeping over finished problems; the callback still sees the layout of the whole batch.
+ * <p>
+ * Each problem follows exactly the iterates that {@link LBFGSSolver} would compute for it alone with heap vectors.
+ * All line searches except OWL-QN are supported. Like {@link LBFGSSolver}, all the workspace is allocated in the
+ * constructor and instances are not thread-safe.
+ */
+public class LBFGSLockstepSolver {
+    /**
+     * The running problems are compacted once they are no more than this fraction of the lanes.
+     */
+    private static final double COMPACT_FRACTION = 0.5;
+
+    private final int n;
+    private final int batch;
+    private final LBFGSProto.Params params;
+    private final int m;
+
+    private final double[] x;
+    private final double[] xp;
+    private final double[] g;
+    private final double[] gp;
+    private final double[] d;
+
+    /**
+     * The correction pairs of every problem, as a ring buffer of interleaved vectors.
+     */
+    private final double[][] s;
+    private final double[][] y;
+    /**
+     * rho[j][b] = 1 / (y_{j}^t s_{j}) of problem b.
+     */
+    private final double[][] rho;
+    private final double[][] alpha;
+
+    /**
+     * Previous values of the objective functions for the delta-based convergence test, null if past is zero.
+     */
+    private final double[][] pf;
+
+    /**
+     * The stride of the interleaved vectors, from the batch size down to the number of running problems at the last
+     * compaction.
+     */
+    private int lanes;
+    /**
+     * The problem in each lane, and the running lanes during a compaction.
+     */
+    private final int[] problem;
+    private final int[] kept;
+    /**
+     * The variables, gradients and values in the layout of the whole batch, once the vectors are compacted: the
+     * results of the problems compacted out, and the running problems at each evaluation.
+     */
+    private final double[] batchX;
+    private final double[] batchG;
+    private final double[] batchFx;
+    private final boolean[] batchActive;
+
+    // Per-problem scalars.
+    private final double[] fx;
+    private final double[] step;
+    private final double[] xnorm;
+    private final double[] gnorm;
+    private final double[] ys;
+    private final double[] yy;
+    private final double[] coef;
+    private final int[] status;
+    private final boolean[] running;
+
+    // Per-problem line search state.
+    private final boolean[] searching;
+    private final int[] count;
+    private final double[] finit;
+    private final double[] dginit;
+    private final double[] dgtest;
+    private final double[] dg;
+    private final LBFGSTrialInterval[] intervals;
+    private final boolean[] stage1;
+    private final int[] uinfo;
+    private final double[] width;
+    private final double[] prevWidth;
+    private final double[] stmin;
+    private final double[] stmax;
+
+    /**
+     * @param n      The number of variables of each problem.
+     * @param batch  The number of problems.
+     * @param params The parameters for L-BFGS optimization, shared by all problems. If null, the default parameters
+     *               are used.
+     */
+    public LBFGSLockstepSolver(int n, int batch, @Nullable LBFGSProto.Params params) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        if (batch <= 0 || (long) n * batch > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid batch size: " + batch);
+        }
+        this.n = n;
+        this.batch = batch;
+        this.params = params != null ? params : LBFGSProto.Params.getDefaultInstance();
+        this.m = Math.max(this.params.getM(), 0);
+
+        final int size = n * batch;
+        x = new double[size];
+        xp = new double[size];
+        g = new double[size];
+        gp = new double[size];
+        d = new double[size];
+        s = new double[m][size];
+        y = new double[m][size];
+        rho = new double[m][batch];
+        alpha = new double[m][batch];
+        pf = this.params.getPast() > 0 ? new double[this.params.getPast()][batch] : null;
+
+        lanes = batch;
+        problem = new int[batch];
+        kept = new int[batch];
+        batchX = new double[size];
+        batchG = new double[size];
+        batchFx = new double[batch];
+        batchActive = new boolean[batch];
+
+        fx = new double[batch];
+        step = new double[batch];
+        xnorm = new double[batch];
+        gnorm = new double[batch];
+        ys = new double[batch];
+        yy = new double[batch];
+        coef = new double[batch];
+        status = new int[batch];
+        running = new boolean[batch];
+
+        searching = new boolean[batch];
+        count = new int[batch];
+        finit = new double[batch];
+        dginit = new double[batch];
+        dgtest = new double[batch];
+        dg = new double[batch];
+        intervals = new LBFGSTrialInterval[batch];
+        for (int b = 0; b < batch; b++) {
+            intervals[b] = new LBFGSTrialInterval();
+        }
+        stage1 = new boolean[batch];
+        uinfo = new int[batch];
+        width = new double[batch];
+        prevWidth = new double[batch];
+        stmin = new double[batch];
+        stmax = new double[batch];
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getBatch() {
+        return batch;
+    }
+
+    @NotNull
+    public LBFGSProto.Params getParams() {
+        return params;
+    }
+
+    /**
+     * @return The stride of the interleaved vectors at the end of the last solve: the batch size, unless finished
+     * problems were compacted out.
+     */
+    int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Interleave the variables of several problems into the layout used by this class.
+     *
+     * @param problems The variables of each problem, all of the same length.
+     * @return An array where variable i of problem b is at index {@code i * problems.length + b}.
+     */
+    @NotNull
+    public static double[] interleave(@NotNull double[][] problems) {
+        final int batch = problems.length;
+        final int n = batch == 0 ? 0 : problems[0].length;
+        double[] ret = new double[n * batch];
+        for (int b = 0; b < batch; b++) {
+            assert problems[b].length == n : "Problems must be the same size";
+            for (int i = 0; i < n; i++) {
+                ret[i * batch + b] = problems[b][i];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Extract the variables of one problem from an interleaved array.
+     *
+     * @param x     The interleaved variables.
+     * @param batch The number of problems.
+     * @param b     The problem to extract.
+     * @return The variables of problem b.
+     */
+    @NotNull
+    public static double[] extract(@NotNull double[] x, int batch, int b) {
+        double[] ret = new double[x.length / batch];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = x[i * batch + b];
+        }
+        return ret;
+    }
+
+    /**
+     * Start a L-BFGS optimization of every problem of the batch.
+     *
+     * @param x        The interleaved variables, at least n * batch long. They hold the starting points on entry and
+     *                 receive the results on return.
+     * @param ptrFx    If not null, receives the final value of the objective function of each problem.
+     * @param ret      Receives the status code of each problem; see {@link LBFGS#lbfgs}.
+     * @param evaluate The callback function to provide function and gradient evaluations for the batch.
+     */
+    public void solve(
+            @NotNull double[] x,
+            @Nullable double[] ptrFx,
+            @NotNull int[] ret,
+            @NotNull LBFGSBatchEvaluate evaluate) {
+        assert ret.length >= batch : "The status array must hold one code per problem";
+        int code = x.length < n * batch ? LBFGSERR_INVALID_N : LBFGSSolver.validate(params, n);
+        if (code == 0 && params.getOrthantwiseC() != 0d) {
+            // OWL-QN is not batched.
+            code = LBFGSERR_INVALID_ORTHANTWISE;
+        }
+        if (code != 0) {
+            Arrays.fill(ret, 0, batch, code);
+            return;
+        }
+
+        System.arraycopy(x, 0, this.x, 0, n * batch);
+        Arrays.fill(fx, 0d);
+        lanes = batch;
+        for (int b = 0; b < batch; b++) {
+            problem[b] = b;
+        }
+        try {
+            run(evaluate);
+        } finally {
+            if (lanes < batch) {
+                for (int l = 0; l < lanes; l++) {
+                    save(l);
+                }
+                System.arraycopy(batchX, 0, x, 0, n * batch);
+            } else {
+                System.arraycopy(this.x, 0, x, 0, n * batch);
+            }
+        }
+        if (ptrFx != null) {
+            System.arraycopy(lanes < batch ? batchFx : fx, 0, ptrFx, 0, batch);
+        }
+        System.arraycopy(status, 0, ret, 0, batch);
+    }
+
+    private void run(@NotNull LBFGSBatchEvaluate evaluate) {
+        Arrays.fill(running, true);
+
+        // Evaluate the function values and their gradients.
+        evaluate(evaluate, running);
+
+        // Store the initial values of the objective functions.
+        if (pf != null) {
+            System.arraycopy(fx, 0, pf[0], 0, batch);
+        }
+
+        // Compute the directions; we assume the initial hessian matrices H_0 as the identity matrix.
+        negate(d, g);
+
+        // Make sure that the initial variables are not a minimizer.
+        norms();
+        for (int b = 0; b < lanes; b++) {
+            if (gnorm[b] / Math.max(xnorm[b], 1d) <= params.getEpsilon()) {
+                finish(b, LBFGS_ALREADY_MINIMIZED);
+            }
+        }
+
+        // Compute the initial steps: step = 1.0 / sqrt(vecdot(d, d, n))
+        dot(d, d, step);
+        for (int b = 0; b < lanes; b++) {
+            step[b] = 1d / Math.sqrt(step[b]);
+        }
+
+        int k = 1;
+        int end = 0;
+        while (anyRunning()) {
+            // Store the current positions and gradient vectors.
+            System.arraycopy(x, 0, xp, 0, n * lanes);
+            System.arraycopy(g, 0, gp, 0, n * lanes);
+
+            // Search for optimal steps; problems for which the search fails are reverted and stopped.
+            lineSearch(evaluate);
+
+            // Compute x and g norms, then run the convergence and stopping tests.
+            norms();
+            for (int b = 0; b < lanes; b++) {
+                if (!running[b]) continue;
+                if (gnorm[b] / Math.max(xnorm[b], 1d) <= params.getEpsilon()) {
+                    finish(b, LBFGS_SUCCESS);
+                    continue;
+                }
+                if (pf != null) {
+                    // We don't test the stopping criterion while k < past.
+                    if (pf.length <= k) {
+                        // Compute the relative improvement from the past.
+                        double rate = (pf[k % pf.length][b] - fx[b]) / fx[b];
+                        if (rate < params.getDelta()) {
+                            finish(b, LBFGS_STOP);
+                            continue;
+                        }
+                    }
+                    // Store the current value of the objective function.
+                    pf[k % pf.length][b] = fx[b];
+                }
+                if (params.getMaxIterations() != 0 && params.getMaxIterations() < k + 1) {
+                    // Maximum number of iterations.
+                    finish(b, LBFGSERR_MAXIMUMITERATION);
+                }
+            }
+            if (!anyRunning()) {
+                break;
+            }
+            compactIfSparse();
+
+            // Update vectors s and y, with ys = y^t \cdot s = 1 / \rho and yy = y^t \cdot y in the same passes.
+            // Problems that finished since the last compaction are updated too, which keeps the passes branch-free;
+            // their values are never used.
+            diffAndDot(y[end], g, gp, y[end], yy);
+            diffAndDot(s[end], x, xp, y[end], ys);
+            for (int b = 0; b < lanes; b++) {
+                rho[end][b] = 1d / ys[b];
+            }
+
+            // The two-loop recursion, with the same fused passes as LBFGSSolver.
+            int bound = (m <= k) ? m : k;
+            ++k;
+            end = (end + 1) % m;
+
+            int j = (end + m - 1) % m;
+            negateAndDot(d, g, s[j], alpha[j]);
+            scale(alpha[j], rho[j]);
+
+            for (int i = 0; i < bound; ++i) {
+                // q_{i} = q_{i+1} - \alpha_{i} y_{i}.
+                for (int b = 0; b < lanes; b++) {
+                    coef[b] = -alpha[j][b];
+                }
+                if (i + 1 < bound) {
+                    int prev = (j + m - 1) % m;
+                    addWithMultiplierAndDot(d, y[j], coef, s[prev], alpha[prev]);
+                    scale(alpha[prev], rho[prev]);
+                    j = prev;
+                } else {
+                    addWithMultiplier(d, y[j], coef);
+                }
+            }
+
+            for (int b = 0; b < lanes; b++) {
+                coef[b] = ys[b] / yy[b];
+            }
+            // Reuse yy for y^t_{j} \cdot \gamma_{i}.
+            final double[] yd = yy;
+            scaleAndDot(d, coef, y[j], yd);
+
+            for (int i = 0; i < bound; ++i) {
+                // \beta_{j} = \rho_{j} y^t_{j} \cdot \gamma_{i}; \gamma_{i+1} = \gamma_{i} + (\alpha_{j} - \beta_{j}) s_{j}.
+                for (int b = 0; b < lanes; b++) {
+                    coef[b] = alpha[j][b] - rho[j][b] * yd[b];
+                }
+                if (i + 1 < bound) {
+                    int next = (j + 1) % m;
+                    addWithMultiplierAndDot(d, s[j], coef, y[next], yd);
+                    j = next;
+                } else {
+                    addWithMultiplier(d, s[j], coef);
+                }
+            }
+
+            // Now the search directions are ready. We try step = 1 first.
+            Arrays.fill(step, 1d);
+        }
+    }
+
+    /**
+     * Run the line search of every running problem in lockstep, one batched evaluation per round.
+     */
+    private void lineSearch(@NotNull LBFGSBatchEvaluate evaluate) {
+        final boolean moreThuente = params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.MORETHUENTE;
+        final boolean armijo = params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO;
+
+        // Compute the initial gradient in the search direction.
+        dot(g, d, dginit);
+
+        for (int b = 0; b < lanes; b++) {
+            searching[b] = running[b];
+            if (!running[b]) continue;
+            finit[b] = fx[b];
+            if (step[b] <= 0d) {
+                fail(b, LBFGSERR_INVALIDPARAMETERS);
+                continue;
+            }
+            // Make sure that s points to a descent direction.
+            if (0 < dginit[b]) {
+                fail(b, LBFGSERR_INCREASEGRADIENT);
+                continue;
+            }
+            count[b] = 0;
+            dgtest[b] = params.getFtol() * dginit[b];
+            if (moreThuente) {
+                uinfo[b] = 0;
+                stage1[b] = true;
+                width[b] = params.getMaxStep() - params.getMinStep();
+                prevWidth[b] = 2d * width[b];
+                intervals[b].reset(finit[b], dginit[b]);
+            }
+        }
+
+        while (anySearching()) {
+            if (moreThuente) {
+                for (int b = 0; b < lanes; b++) {
+                    if (searching[b]) moreThuenteStep(b);
+                }
+            }
+
+            // Compute the current value of x: x <- xp + step * d.
+            for (int i = 0, k = 0; i < n; i++) {
+                for (int b = 0; b < lanes; b++, k++) {
+                    if (searching[b]) {
+                        x[k] = xp[k] + step[b] * d[k];
+                    }
+                }
+            }
+
+            // Evaluate the function and gradient values.
+            evaluate(evaluate, searching);
+            if (!armijo) {
+                dot(g, d, dg);
+            }
+
+            for (int b = 0; b < lanes; b++) {
+                if (!searching[b]) continue;
+                int ls = moreThuente ? moreThuenteTest(b) : backtrackingTest(b);
+                if (ls < 0) {
+                    fail(b, ls);
+                } else if (ls > 0) {
+                    searching[b] = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the step of problem b for the backtracking line searches and choose the next one.
+     *
+     * @return The number of evaluations if the step is accepted, zero to continue, or a negative LBFGSERR_* code.
+     */
+    private int backtrackingTest(int b) {
+        final double dec = 0.5;
+        final double inc = 2.1;
+        final LBFGSProto.Params.LineSearchAlgorithm linesearch = params.getLinesearch();
+        double factor;
+
+        ++count[b];
+
+        if (fx[b] > finit[b] + step[b] * dgtest[b]) {
+            factor = dec;
+        } else {
+            // The sufficient decrease condition (Armijo condition).
+            if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO) {
+                return count[b];
+            }
+            // Check the Wolfe condition.
+            if (dg[b] < params.getWolfe() * dginit[b]) {
+                factor = inc;
+            } else {
+                if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE) {
+                    return count[b];
+                }
+                // Check the strong Wolfe condition.
+                if (dg[b] > -params.getWolfe() * dginit[b]) {
+                    factor = dec;
+                } else {
+                    return count[b];
+                }
+            }
+        }
+
+        if (step[b] < params.getMinStep()) return LBFGSERR_MINIMUMSTEP;
+        if (step[b] > params.getMaxStep()) return LBFGSERR_MAXIMUMSTEP;
+        if (params.getMaxLinesearch() <= count[b]) return LBFGSERR_MAXIMUMLINESEARCH;
+
+        step[b] *= factor;
+        return 0;
+    }
+
+    /**
+     * Bound the next More-Thuente step of problem b by its interval of uncertainty.
+     */
+    private void moreThuenteStep(int b) {
+        final LBFGSTrialInterval iv = intervals[b];
+        if (iv.brackt) {
+            stmin[b] = Math.min(iv.stx, iv.sty);
+            stmax[b] = Math.max(iv.stx, iv.sty);
+        } else {
+            stmin[b] = iv.stx;
+            stmax[b] = step[b] + 4d * (step[b] - iv.stx);
+        }
+
+        // Clip the step in the range of [stpmin, stpmax].
+        if (step[b] < params.getMinStep()) step[b] = params.getMinStep();
+        if (params.getMaxStep() < step[b]) step[b] = params.getMaxStep();
+
+        // If an unusual termination is to occur then let step be the lowest point obtained so far.
+        if ((iv.brackt && ((step[b] <= stmin[b] || stmax[b] <= step[b]) ||
+                params.getMaxLinesearch() <= count[b] + 1 || uinfo[b] != 0)) ||
+                (iv.brackt && (stmax[b] - stmin[b] <= params.getXtol() * stmax[b]))) {
+            step[b] = iv.stx;
+        }
+    }
+
+    /**
+     * Check the step of problem b for the More-Thuente line search and choose the next one.
+     *
+     * @return The number of evaluations if the step is accepted, zero to continue, or a negative LBFGSERR_* code.
+     */
+    private int moreThuenteTest(int b) {
+        final LBFGSTrialInterval iv = intervals[b];
+        final double stp = step[b];
+        final double f = fx[b];
+        final double dgb = dg[b];
+        final double dgt = dgtest[b];
+        final double ftest1 = finit[b] + stp * dgt;
+        ++count[b];
+
+        // Test for errors and convergence.
+        if (iv.brackt && ((stp <= stmin[b] || stmax[b] <= stp) || uinfo[b] != 0)) {
+            return LBFGSERR_ROUNDING_ERROR;
+        }
+        if (stp == params.getMaxStep() && f <= ftest1 && dgb <= dgt) return LBFGSERR_MAXIMUMSTEP;
+        if (stp == params.getMinStep() && (ftest1 < f || dgt <= dgb)) return LBFGSERR_MINIMUMSTEP;
+        if (iv.brackt && (stmax[b] - stmin[b]) <= params.getXtol() * stmax[b]) return LBFGSERR_WIDTHTOOSMALL;
+        if (params.getMaxLinesearch() <= count[b]) return LBFGSERR_MAXIMUMLINESEARCH;
+        if (f <= ftest1 && Math.abs(dgb) <= params.getGtol() * (-dginit[b])) {
+            return count[b];
+        }
+
+        if (stage1[b] && f <= ftest1 && Math.min(params.getFtol(), params.getGtol()) * dginit[b] <= dgb) {
+            stage1[b] = false;
+        }
+
+        if (stage1[b] && ftest1 < f && f <= iv.fx) {
+            // Use the modified function to predict the step.
+            iv.fx -= iv.stx * dgt;
+            iv.fy -= iv.sty * dgt;
+            iv.dgx -= dgt;
+            iv.dgy -= dgt;
+
+            uinfo[b] = iv.update(stp, f - stp * dgt, dgb - dgt, stmin[b], stmax[b]);
+
+            iv.fx += iv.stx * dgt;
+            iv.fy += iv.sty * dgt;
+            iv.dgx += dgt;
+            iv.dgy += dgt;
+        } else {
+            uinfo[b] = iv.update(stp, f, dgb, stmin[b], stmax[b]);
+        }
+        step[b] = iv.next;
+
+        // Force a sufficient decrease in the interval of uncertainty.
+        if (iv.brackt) {
+            if (0.66 * prevWidth[b] <= Math.abs(iv.sty - iv.stx)) {
+                step[b] = iv.stx + 0.5 * (iv.sty - iv.stx);
+            }
+            prevWidth[b] = width[b];
+            width[b] = Math.abs(iv.sty - iv.stx);
+        }
+        return 0;
+    }
+
+    /**
+     * Evaluate the problems of the active lanes, through the layout of the whole batch once the vectors are compacted.
+     */
+    private void evaluate(@NotNull LBFGSBatchEvaluate evaluate, @NotNull boolean[] active) {
+        if (lanes == batch) {
+            evaluate.lbfgsEvaluate(x, g, fx, active, n, batch);
+            return;
+        }
+        Arrays.fill(batchActive, false);
+        for (int l = 0; l < lanes; l++) {
+            if (!active[l]) continue;
+            final int b = problem[l];
+            batchActive[b] = true;
+            for (int i = 0; i < n; i++) {
+                batchX[i * batch + b] = x[i * lanes + l];
+            }
+        }
+        evaluate.lbfgsEvaluate(batchX, batchG, batchFx, batchActive, n, batch);
+        for (int l = 0; l < lanes; l++) {
+            if (!active[l]) continue;
+            final int b = problem[l];
+            fx[l] = batchFx[b];
+            for (int i = 0; i < n; i++) {
+                g[i * lanes + l] = batchG[i * batch + b];
+            }
+        }
+    }
+
+    /**
+     * Compact the running problems to the front lanes if no more than {@link #COMPACT_FRACTION} of the lanes are
+     * running, after saving the results of the others. Each compaction at least halves the lanes, so they cost less
+     * than the passes that they save.
+     */
+    private void compactIfSparse() {
+        int count = 0;
+        for (int l = 0; l < lanes; l++) {
+            if (running[l]) {
+                kept[count++] = l;
+            }
+        }
+        if (count > COMPACT_FRACTION * lanes) {
+            return;
+        }
+        for (int l = 0; l < lanes; l++) {
+            if (!running[l]) {
+                save(l);
+            }
+        }
+        compactVector(x, count);
+        compactVector(xp, count);
+        compactVector(g, count);
+        compactVector(gp, count);
+        compactVector(d, count);
+        for (int j = 0; j < m; j++) {
+            compactVector(s[j], count);
+            compactVector(y[j], count);
+            compactLanes(rho[j], count);
+        }
+        if (pf != null) {
+            for (double[] values : pf) {
+                compactLanes(values, count);
+            }
+        }
+        compactLanes(fx, count);
+        // The line search state and the other scalars are set again before they are used.
+        for (int l = 0; l < count; l++) {
+            problem[l] = problem[kept[l]];
+        }
+        Arrays.fill(running, 0, count, true);
+        Arrays.fill(running, count, lanes, false);
+        Arrays.fill(searching, false);
+        lanes = count;
+    }
+
+    /**
+     * Move the kept lanes of an interleaved vector to a stride of count. Every element moves down or stays, and the
+     * moves run in increasing order, so none overwrites an element that has yet to move.
+     */
+    private void compactVector(@NotNull double[] values, int count) {
+        for (int i = 0, k = 0; i < n; i++) {
+            final int from = i * lanes;
+            for (int l = 0; l < count; l++, k++) {
+                values[k] = values[from + kept[l]];
+            }
+        }
+    }
+
+    private void compactLanes(@NotNull double[] values, int count) {
+        for (int l = 0; l < count; l++) {
+            values[l] = values[kept[l]];
+        }
+    }
+
+    /**
+     * Save the variables and value of lane l in the layout of the whole batch.
+     */
+    private void save(int l) {
+        final int b = problem[l];
+        for (int i = 0; i < n; i++) {
+            batchX[i * batch + b] = x[i * lanes + l];
+        }
+        batchFx[b] = fx[l];
+    }
+
+    private boolean anyRunning() {
+        for (boolean r : running) {
+            if (r) return true;
+        }
+        return false;
+    }
+
+    private boolean anySearching() {
+        for (boolean r : searching) {
+            if (r) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop problem b with the given status.
+     */
+    private void finish(int b, int code) {
+        running[b] = false;
+        searching[b] = false;
+        status[problem[b]] = code;
+    }
+
+    /**
+     * Stop problem b after a failed line search, reverting it to the previous point and its value.
+     */
+    private void fail(int b, int code) {
+        for (int k = b; k < n * lanes; k += lanes) {
+            x[k] = xp[k];
+            g[k] = gp[k];
+        }
+        fx[b] = finit[b];
+        finish(b, code);
+    }
+
+    /**
+     * Compute the euclidean norms of x and g of every problem into xnorm and gnorm.
+     */
+    private void norms() {
+        dot(x, x, xnorm);
+        dot(g, g, gnorm);
+        for (int b = 0; b < lanes; b++) {
+            xnorm[b] = Math.sqrt(xnorm[b]);
+            gnorm[b] = Math.sqrt(gnorm[b]);
+        }
+    }
+
+    // Batched kernels: each is a single pass over the interleaved vectors, with one scalar or accumulator per
+    // problem.
+
+    private void scale(@NotNull double[] values, @NotNull double[] multipliers) {
+        for (int b = 0; b < lanes; b++) {
+            values[b] *= multipliers[b];
+        }
+    }
+
+    private void dot(@NotNull double[] a, @NotNull double[] c, @NotNull double[] out) {
+        Arrays.fill(out, 0d);
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                out[b] += a[k] * c[k];
+            }
+        }
+    }
+
+    private void negate(@NotNull double[] dst, @NotNull double[] src) {
+        for (int k = 0; k < n * lanes; k++) {
+            dst[k] = -src[k];
+        }
+    }
+
+    private void negateAndDot(@NotNull double[] dst, @NotNull double[] src, @NotNull double[] dotWith,
+                              @NotNull double[] out) {
+        Arrays.fill(out, 0d);
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                dst[k] = -src[k];
+                out[b] += dst[k] * dotWith[k];
+            }
+        }
+    }
+
+    private void addWithMultiplier(@NotNull double[] dst, @NotNull double[] other, @NotNull double[] multipliers) {
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                dst[k] += multipliers[b] * other[k];
+            }
+        }
+    }
+
+    private void addWithMultiplierAndDot(@NotNull double[] dst, @NotNull double[] other,
+                                         @NotNull double[] multipliers, @NotNull double[] dotWith,
+                                         @NotNull double[] out) {
+        Arrays.fill(out, 0d);
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                dst[k] += multipliers[b] * other[k];
+                out[b] += dst[k] * dotWith[k];
+            }
+        }
+    }
+
+    private void diffAndDot(@NotNull double[] dst, @NotNull double[] a, @NotNull double[] c,
+                            @NotNull double[] dotWith, @NotNull double[] out) {
+        Arrays.fill(out, 0d);
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                dst[k] = a[k] - c[k];
+                out[b] += dst[k] * dotWith[k];
+            }
+        }
+    }
+
+    private void scaleAndDot(@NotNull double[] dst, @NotNull double[] multipliers, @NotNull double[] dotWith,
+                             @NotNull double[] out) {
+        Arrays.fill(out, 0d);
+        for (int i = 0, k = 0; i < n; i++) {
+            for (int b = 0; b < lanes; b++, k++) {
+                dst[k] *= multipliers[b];
+                out[b] += dst[k] * dotWith[k];
+            }
+        }
+    }
+}
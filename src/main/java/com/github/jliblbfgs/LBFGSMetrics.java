@@ -0,0 +1,192 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cumulative counters and timings of the solves of any number of {@link LBFGSSolver}s, possibly on different threads.
+ * <p>
+ * Set an instance as the listener of each solver with {@link LBFGSSolver#setListener}. The totals can be read from the
+ * getters, published as a platform MBean with {@link #register}, and logged with {@link #logSummary()}; every solve is
+ * also logged at debug level.
+ */
+public class LBFGSMetrics implements LBFGSSolverListener, LBFGSMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(LBFGSMetrics.class);
+
+    private final LongAdder solves = new LongAdder();
+    private final LongAdder iterations = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder valueEvaluations = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder lineSearchTrials = new LongAdder();
+    private final LongAdder sparseLineSearchTrials = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder evaluateNanos = new LongAdder();
+    private final LongAdder directionNanos = new LongAdder();
+    private final LongAdder progressNanos = new LongAdder();
+    private final LongAdder vectorNanos = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> terminationCodes = new ConcurrentHashMap<>();
+    private final LongAccumulator maxHistoryBytes = new LongAccumulator(Math::max, 0L);
+
+    @Override
+    public void onSolve(@NotNull LBFGSSolver solver, @NotNull LBFGSSolveStats stats) {
+        solves.increment();
+        iterations.add(stats.getIterations());
+        evaluations.add(stats.getEvaluations());
+        valueEvaluations.add(stats.getValueEvaluations());
+        cacheHits.add(stats.getCacheHits());
+        lineSearchTrials.add(stats.getLineSearchTrials());
+        sparseLineSearchTrials.add(stats.getSparseLineSearchTrials());
+        totalNanos.add(stats.getTotalNanos());
+        evaluateNanos.add(stats.getEvaluateNanos());
+        directionNanos.add(stats.getDirectionNanos());
+        progressNanos.add(stats.getProgressNanos());
+        vectorNanos.add(stats.getVectorNanos());
+        terminationCodes.computeIfAbsent(stats.getRet(), ret -> new LongAdder()).increment();
+        maxHistoryBytes.accumulate(stats.getHistoryBytes());
+        if (log.isDebugEnabled()) {
+            log.debug("L-BFGS solve of {} variables: {}", solver.getN(), stats);
+        }
+    }
+
+    @Override
+    public long getSolves() {
+        return solves.sum();
+    }
+
+    @Override
+    public long getIterations() {
+        return iterations.sum();
+    }
+
+    @Override
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    @Override
+    public long getValueEvaluations() {
+        return valueEvaluations.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getLineSearchTrials() {
+        return lineSearchTrials.sum();
+    }
+
+    @Override
+    public long getSparseLineSearchTrials() {
+        return sparseLineSearchTrials.sum();
+    }
+
+    @Override
+    public double getLineSearchTrialsPerIteration() {
+        long k = iterations.sum();
+        return k != 0 ? (double) lineSearchTrials.sum() / k : 0d;
+    }
+
+    @Override
+    public long getMaxHistoryBytes() {
+        return maxHistoryBytes.get();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    @Override
+    public long getEvaluateNanos() {
+        return evaluateNanos.sum();
+    }
+
+    @Override
+    public long getDirectionNanos() {
+        return directionNanos.sum();
+    }
+
+    @Override
+    public long getProgressNanos() {
+        return progressNanos.sum();
+    }
+
+    @Override
+    public long getVectorNanos() {
+        return vectorNanos.sum();
+    }
+
+    @Override
+    @NotNull
+    public Map<Integer, Long> getTerminationCodes() {
+        Map<Integer, Long> ret = new TreeMap<>();
+        for (Map.Entry<Integer, LongAdder> e : terminationCodes.entrySet()) {
+            ret.put(e.getKey(), e.getValue().sum());
+        }
+        return ret;
+    }
+
+    @Override
+    public void reset() {
+        solves.reset();
+        iterations.reset();
+        evaluations.reset();
+        valueEvaluations.reset();
+        cacheHits.reset();
+        lineSearchTrials.reset();
+        sparseLineSearchTrials.reset();
+        totalNanos.reset();
+        evaluateNanos.reset();
+        directionNanos.reset();
+        progressNanos.reset();
+        vectorNanos.reset();
+        terminationCodes.clear();
+        maxHistoryBytes.reset();
+    }
+
+    /**
+     * Register these metrics with the platform MBean server.
+     *
+     * @param name The name that tells these metrics apart from others.
+     * @return The name of the MBean, for {@link #unregister}.
+     * @throws JMException If the name is taken or invalid.
+     */
+    @NotNull
+    public ObjectName register(@NotNull String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.github.jliblbfgs:type=LBFGSMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregister(@NotNull ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+
+    /**
+     * Log the totals at info level.
+     */
+    public void logSummary() {
+        log.info("L-BFGS: {} solves, {} iterations, {} evaluations ({} of the value alone), {} cache hits, " +
+                        "{} line search trials ({} sparse); {} ms in total, {} ms evaluating, {} ms in the direction, " +
+                        "{} ms in progress, {} ms in vector kernels; termination codes {}",
+                getSolves(), getIterations(), getEvaluations(), getValueEvaluations(), getCacheHits(),
+                getLineSearchTrials(), getSparseLineSearchTrials(), getTotalNanos() / 1000000L, getEvaluateNanos() / 1000000L,
+                getDirectionNanos() / 1000000L, getProgressNanos() / 1000000L, getVectorNanos() / 1000000L,
+                getTerminationCodes());
+    }
+}
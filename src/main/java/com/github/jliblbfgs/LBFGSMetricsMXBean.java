@@ -0,0 +1,53 @@
+package com.github.jliblbfgs;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link LBFGSMetrics}; see {@link LBFGSMetrics#register}.
+ */
+public interface LBFGSMetricsMXBean {
+    long getSolves();
+
+    long getIterations();
+
+    long getEvaluations();
+
+    long getValueEvaluations();
+
+    long getCacheHits();
+
+    long getLineSearchTrials();
+
+    /**
+     * @return The number of the line search trials that OWL-QN took on its sparse path.
+     */
+    long getSparseLineSearchTrials();
+
+    /**
+     * @return The mean number of line search trials per iteration.
+     */
+    double getLineSearchTrialsPerIteration();
+
+    /**
+     * @return The size of the correction pairs of the largest solver reported, in bytes: the history that one solve
+     * may need, whichever of the solvers finished last.
+     */
+    long getMaxHistoryBytes();
+
+    long getTotalNanos();
+
+    long getEvaluateNanos();
+
+    long getDirectionNanos();
+
+    long getProgressNanos();
+
+    long getVectorNanos();
+
+    /**
+     * @return The number of solves that returned each status code.
+     */
+    Map<Integer, Long> getTerminationCodes();
+
+    void reset();
+}
@@ -0,0 +1,25 @@
+package com.github.jliblbfgs;
+
+import java.util.List;
+
+/**
+ * Callback interface to evaluate the objective on a mini-batch of samples, for {@link LBFGSStochasticSolver}.
+ *
+ * @param <T> The type of the samples.
+ */
+interface LBFGSMiniBatchEvaluate<T> {
+    /**
+     * Compute the objective function and its gradient, averaged over a mini-batch.
+     *
+     * @param batch The samples of the mini-batch. The list is reused by the solver and must not be retained.
+     * @param x     The current values of variables.
+     * @param g     The gradient vector. The callback function must compute the average gradient over the batch.
+     * @param n     The number of variables.
+     * @return The average value of the objective function over the batch.
+     */
+    double lbfgsEvaluate(
+            List<T> batch,
+            double[] x,
+            double[] g,
+            int n);
+}
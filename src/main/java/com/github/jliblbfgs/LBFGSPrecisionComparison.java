@@ -0,0 +1,109 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Solves the same problem with a double and a float correction history, to judge whether {@code float_history} is
+ * accurate enough for it.
+ */
+public class LBFGSPrecisionComparison {
+    /**
+     * The outcome of one of the two solves.
+     */
+    public static class Run {
+        /**
+         * The status code returned by the solver.
+         */
+        public final int ret;
+        public final double fx;
+        @NotNull
+        public final double[] x;
+        public final int iterations;
+        public final int evaluations;
+        /**
+         * The wall-clock time of the solve, in nanoseconds.
+         */
+        public final long nanos;
+
+        Run(int ret, double fx, @NotNull double[] x, int iterations, int evaluations, long nanos) {
+            this.ret = ret;
+            this.fx = fx;
+            this.x = x;
+            this.iterations = iterations;
+            this.evaluations = evaluations;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Run{ret=" + ret + ", fx=" + fx + ", iterations=" + iterations + ", evaluations=" + evaluations +
+                    ", millis=" + nanos / 1e6 + '}';
+        }
+    }
+
+    @NotNull
+    public final Run doubleHistory;
+    @NotNull
+    public final Run floatHistory;
+
+    LBFGSPrecisionComparison(@NotNull Run doubleHistory, @NotNull Run floatHistory) {
+        this.doubleHistory = doubleHistory;
+        this.floatHistory = floatHistory;
+    }
+
+    /**
+     * @return The Euclidean distance between the two solutions.
+     */
+    public double distance() {
+        double ret = 0d;
+        for (int i = 0; i < doubleHistory.x.length; i++) {
+            double diff = doubleHistory.x[i] - floatHistory.x[i];
+            ret += diff * diff;
+        }
+        return Math.sqrt(ret);
+    }
+
+    /**
+     * @param n        The number of variables.
+     * @param x        The starting point; not modified.
+     * @param evaluate The callback function to provide function and gradient evaluations.
+     * @param params   The parameters for both solves; {@code float_history} is overridden. If null, the default
+     *                 parameters are used.
+     * @param factory  The factory used to allocate the working vectors.
+     */
+    @NotNull
+    public static LBFGSPrecisionComparison compare(
+            int n,
+            @NotNull double[] x,
+            @NotNull LBFGSEvaluate evaluate,
+            @Nullable LBFGSProto.Params params,
+            @NotNull LBFGSVector.IFactory factory) {
+        LBFGSProto.Params.Builder builder = params != null
+                ? params.toBuilder() : LBFGSProto.Params.newBuilder();
+        return new LBFGSPrecisionComparison(
+                run(n, x, evaluate, builder.setFloatHistory(false).build(), factory),
+                run(n, x, evaluate, builder.setFloatHistory(true).build(), factory));
+    }
+
+    @NotNull
+    private static Run run(
+            int n,
+            @NotNull double[] x0,
+            @NotNull LBFGSEvaluate evaluate,
+            @NotNull LBFGSProto.Params params,
+            @NotNull LBFGSVector.IFactory factory) {
+        double[] x = x0.clone();
+        double[] fx = new double[1];
+        int[] counts = new int[2];
+        long start = System.nanoTime();
+        int ret = new LBFGSSolver(n, params, factory).solve(x, fx, (x1, g, n1, step) -> {
+            counts[1]++;
+            return evaluate.lbfgsEvaluate(x1, g, n1, step);
+        }, (x1, g, fx1, xnorm, gnorm, step, n1, k, ls) -> {
+            counts[0] = k;
+            return 0;
+        });
+        return new Run(ret, fx[0], x, counts[0], counts[1], System.nanoTime() - start);
+    }
+}
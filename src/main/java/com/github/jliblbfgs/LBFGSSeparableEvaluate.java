@@ -0,0 +1,123 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates an objective that is a sum over shards, such as a loss over many training rows, in parallel.
+ * <p>
+ * The shards are split in halves recursively and run on a {@link ForkJoinPool}. Each shard writes its gradient to a
+ * private buffer, and the buffers are summed pairwise up the same tree, so the result does not depend on the
+ * scheduling. Buffers are pooled across evaluations: once the pool is warm, an evaluation allocates no gradient
+ * storage. An instance may be used by one solve at a time.
+ */
+public class LBFGSSeparableEvaluate implements LBFGSEvaluate {
+    private final int n;
+    private final int shards;
+    private final LBFGSShardEvaluate shardEvaluate;
+    private final ForkJoinPool pool;
+    private final Queue<double[]> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param n             The number of variables.
+     * @param shards        The number of shards of the objective.
+     * @param shardEvaluate The callback function to evaluate one shard.
+     * @param pool          The pool that runs the shards.
+     */
+    public LBFGSSeparableEvaluate(
+            int n,
+            int shards,
+            @NotNull LBFGSShardEvaluate shardEvaluate,
+            @NotNull ForkJoinPool pool) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive: " + shards);
+        }
+        this.n = n;
+        this.shards = shards;
+        this.shardEvaluate = shardEvaluate;
+        this.pool = pool;
+    }
+
+    /**
+     * Runs the shards on the common pool.
+     */
+    public LBFGSSeparableEvaluate(int n, int shards, @NotNull LBFGSShardEvaluate shardEvaluate) {
+        this(n, shards, shardEvaluate, ForkJoinPool.commonPool());
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    @Override
+    public double lbfgsEvaluate(double[] x, double[] g, int n, double step) {
+        assert n == this.n : "The number of variables does not match";
+        ShardSum sum = new ShardSum(x, step, 0, shards);
+        pool.invoke(sum);
+        System.arraycopy(sum.g, 0, g, 0, n);
+        release(sum.g);
+        return sum.fx;
+    }
+
+    private double[] acquire() {
+        double[] ret = buffers.poll();
+        if (ret == null) {
+            return new double[n];
+        }
+        Arrays.fill(ret, 0d);
+        return ret;
+    }
+
+    private void release(@NotNull double[] buffer) {
+        buffers.offer(buffer);
+    }
+
+    private final class ShardSum extends RecursiveAction {
+        private final double[] x;
+        private final double step;
+        private final int from;
+        private final int to;
+        double fx;
+        double[] g;
+
+        ShardSum(double[] x, double step, int from, int to) {
+            this.x = x;
+            this.step = step;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                g = acquire();
+                fx = shardEvaluate.lbfgsEvaluateShard(from, x, g, n, step);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            ShardSum left = new ShardSum(x, step, from, mid);
+            ShardSum right = new ShardSum(x, step, mid, to);
+            try {
+                invokeAll(left, right);
+                for (int i = 0; i < n; i++) {
+                    left.g[i] += right.g[i];
+                }
+                fx = left.fx + right.fx;
+                g = left.g;
+                left.g = null;
+            } finally {
+                // Return the buffers of a failed evaluation too, so that the pool stays bounded.
+                if (left.g != null) release(left.g);
+                if (right.g != null) release(right.g);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.jliblbfgs;
+
+/**
+ * Callback interface to evaluate one shard of a separable objective, for {@link LBFGSSeparableEvaluate}.
+ */
+interface LBFGSShardEvaluate {
+    /**
+     * Compute the loss of one shard, typically a range of training rows, and its gradient.
+     * <p>
+     * Shards are evaluated concurrently, so this function must be thread-safe. It must not modify x.
+     *
+     * @param shard The index of the shard to evaluate.
+     * @param x     The current values of variables.
+     * @param g     A zero-filled buffer that receives the gradient of the shard.
+     * @param n     The number of variables.
+     * @param step  The current step of the line search routine.
+     * @return The loss of the shard; the objective is the sum over all shards.
+     */
+    double lbfgsEvaluateShard(
+            int shard,
+            double[] x,
+            double[] g,
+            int n,
+            double step);
+}
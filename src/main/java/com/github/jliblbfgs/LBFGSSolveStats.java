@@ -0,0 +1,129 @@
+package com.github.jliblbfgs;
+
+/**
+ * The counters and timings of one solve of a {@link LBFGSSolver}, passed to its {@link LBFGSSolverListener}.
+ * <p>
+ * The time of a solve is split between the evaluation callback, the computation of the search direction (the update
+ * of the correction pairs and the two-loop recursion), the progress callback, and the rest of the solver, which is
+ * almost entirely the vector kernels of the line search and of the convergence tests.
+ */
+public class LBFGSSolveStats {
+    int ret;
+    int iterations;
+    int evaluations;
+    int valueEvaluations;
+    int cacheHits;
+    int lineSearchTrials;
+    int sparseLineSearchTrials;
+    long historyBytes;
+    long totalNanos;
+    long evaluateNanos;
+    long directionNanos;
+    long progressNanos;
+
+    /**
+     * @return The status code returned by the solve.
+     */
+    public int getRet() {
+        return ret;
+    }
+
+    /**
+     * @return The number of the last iteration started.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return The number of calls to {@link LBFGSEvaluate#lbfgsEvaluate}.
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return The number of calls to {@link LBFGSValueEvaluate#lbfgsValue}.
+     */
+    public int getValueEvaluations() {
+        return valueEvaluations;
+    }
+
+    /**
+     * @return The number of line search trials served from memory.
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return The number of steps tried by the line searches, however they were evaluated.
+     */
+    public int getLineSearchTrials() {
+        return lineSearchTrials;
+    }
+
+    /**
+     * @return The number of OWL-QN line search trials that only touched the active coordinates; see
+     * {@link LBFGSSolver#getSparseLineSearchTrials}.
+     */
+    public int getSparseLineSearchTrials() {
+        return sparseLineSearchTrials;
+    }
+
+    /**
+     * @return The size of the m (s, y) correction pairs, in bytes.
+     */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return The time spent in the evaluation callback, for the value and gradient or the value alone.
+     */
+    public long getEvaluateNanos() {
+        return evaluateNanos;
+    }
+
+    /**
+     * @return The time spent updating the correction pairs and computing the search direction.
+     */
+    public long getDirectionNanos() {
+        return directionNanos;
+    }
+
+    /**
+     * @return The time spent in the progress callback.
+     */
+    public long getProgressNanos() {
+        return progressNanos;
+    }
+
+    /**
+     * @return The time spent in the rest of the solver, mostly in the vector kernels of the line search.
+     */
+    public long getVectorNanos() {
+        return Math.max(totalNanos - evaluateNanos - directionNanos - progressNanos, 0L);
+    }
+
+    @Override
+    public String toString() {
+        return "ret=" + ret +
+                ", iterations=" + iterations +
+                ", evaluations=" + evaluations +
+                ", valueEvaluations=" + valueEvaluations +
+                ", cacheHits=" + cacheHits +
+                ", lineSearchTrials=" + lineSearchTrials +
+                ", sparseLineSearchTrials=" + sparseLineSearchTrials +
+                ", historyBytes=" + historyBytes +
+                ", totalNanos=" + totalNanos +
+                ", evaluateNanos=" + evaluateNanos +
+                ", directionNanos=" + directionNanos +
+                ", progressNanos=" + progressNanos +
+                ", vectorNanos=" + getVectorNanos();
+    }
+}
@@ -0,0 +1,1620 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.github.jliblbfgs.LBFGS.*;
+
+/**
+ * A reusable L-BFGS solver for problems of a fixed dimension.
+ * <p>
+ * All of the working vectors, the m (s, y) correction pairs and the rho/alpha scratch arrays are allocated once, in
+ * the constructor, and reused by every call to {@link #solve}; the iteration loop itself allocates nothing but the
+ * fork-join tasks of the parallel kernels. Each solve starts over from an identity approximation of the inverse
+ * hessian, so a solver may be reused for any number of unrelated problems of the same dimension.
+ * <p>
+ * A long solve can be saved with {@link #checkpoint} from its progress callback, and continued later with
+ * {@link #resume}, possibly in another process. A series of related solves can also carry their curvature
+ * information over from one to the next through a {@link LBFGSState}.
+ * <p>
+ * Instances are not thread-safe; use one solver per thread.
+ */
+public class LBFGSSolver {
+    /**
+     * The OWL-QN line search works on the active coordinates alone when they are at most this fraction of the L1
+     * range.
+     */
+    private static final int OWLQN_SPARSE_RATIO = 4;
+
+    private final int n;
+    private final LBFGSProto.Params params;
+    private final int m;
+    private final int orthantwiseEnd;
+
+    private final LBFGSVector x;
+    private final LBFGSVector xp;
+    private final LBFGSVector g;
+    private final LBFGSVector gp;
+    private final LBFGSVector d;
+    private final LBFGSVector pg;
+    private final LBFGSVector w;
+    /**
+     * The coordinates of the L1 range that the next OWL-QN line search can move, in increasing order, collected with
+     * the search direction, or null without OWL-QN; see {@link #lineSearchBacktrackingOwlqn}.
+     */
+    private final int[] owlqnActive;
+    /**
+     * The number of coordinates in owlqnActive, or -1 if they did not fit.
+     */
+    private int owlqnActiveCount;
+
+    /**
+     * The correction pairs s_{k} = x_{k+1} - x_{k} and y_{k} = g_{k+1} - g_{k}, used as a ring buffer.
+     */
+    private final LBFGSVector[] s;
+    private final LBFGSVector[] y;
+    /**
+     * rho_{k} = 1 / (y_{k}^t s_{k}).
+     */
+    private final double[] rho;
+    private final double[] alpha;
+    /**
+     * The compact representation engine when {@code direction} is COMPACT and the history is on the heap, else null
+     * for the two-loop recursion.
+     */
+    @Nullable
+    private final LBFGSCompactDirection compact;
+
+    /**
+     * Previous values of the objective function for the delta-based convergence test, null if past is zero.
+     */
+    private final double[] pf;
+
+    private final LBFGSTrialInterval interval = new LBFGSTrialInterval();
+
+    /**
+     * The steps, function values and gradients of the last evaluations of the current line search, null if
+     * {@code linesearch_cache} is zero.
+     */
+    private final double[] cacheSteps;
+    private final double[] cacheFx;
+    private final LBFGSVector[] cacheG;
+    private int cacheSize;
+    private int cacheNext;
+    /**
+     * The function value at the start of the current line search, where the gradient is gp.
+     */
+    private double fxp;
+
+    /**
+     * The points, gradients, steps and function values of the trials of a speculative backtracking line search, and
+     * the pool that evaluates them, null unless {@code speculative_linesearch} is above one.
+     */
+    private final LBFGSVector[] laneX;
+    private final LBFGSVector[] laneG;
+    private final double[] laneSteps;
+    private final double[] laneFx;
+    private final ForkJoinPool lanePool;
+
+    /**
+     * The time budget in nanoseconds and the evaluation budget of a solve, zero if unlimited.
+     */
+    private final long timeBudget;
+    private final int maxEvaluations;
+    /**
+     * The start and end of the time budget of the running solve as System.nanoTime values, and the number of
+     * iterations that it completed.
+     */
+    private long budgetStart;
+    private long deadline;
+    private int budgetIterations;
+
+    /**
+     * The number of calls to the evaluation callback, of calls for the value alone and of evaluations served from
+     * memory in the last solve.
+     */
+    private int evaluations;
+    private int valueEvaluations;
+    private int cacheHits;
+    /**
+     * The number of steps tried by the line searches of the last solve.
+     */
+    private int lineSearchTrials;
+    /**
+     * The number of OWL-QN line search trials of the last solve that only touched the active coordinates.
+     */
+    private int sparseLineSearchTrials;
+
+    /**
+     * The size of the correction pairs in bytes.
+     */
+    private final long historyBytes;
+    /**
+     * The receiver of the counters and timings of every solve, or null; nothing is timed without one.
+     */
+    @Nullable
+    private LBFGSSolverListener listener;
+    private final LBFGSSolveStats stats = new LBFGSSolveStats();
+
+    private double fx;
+    private double step;
+    /**
+     * The iteration count, the slot of the next correction pair, the number of stored pairs and the scaling
+     * y^t s / y^t y of the initial inverse hessian.
+     */
+    private int k;
+    private int end;
+    private int pairs;
+    private double gamma;
+    /**
+     * Whether the progress callback is running, the only time a checkpoint may be taken.
+     */
+    private boolean inProgress;
+    /**
+     * The factory of the correction pairs, and the pair of the current iteration as written by a checkpoint, which
+     * must not replace the oldest pair of the history before run() does; allocated by the first checkpoint.
+     */
+    private final LBFGSVector.IFactory historyFactory;
+    private LBFGSVector pendingS;
+    private LBFGSVector pendingY;
+
+    /**
+     * @param n       The number of variables.
+     * @param params  The parameters for L-BFGS optimization. If null, the default parameters are used.
+     * @param factory The factory used to allocate the working vectors, and the correction history unless
+     *                {@code float_history} is set.
+     */
+    public LBFGSSolver(int n, @Nullable LBFGSProto.Params params, @NotNull LBFGSVector.IFactory factory) {
+        this(n, params, factory,
+                params != null && params.getFloatHistory() ? new LBFGSFloatVector.Factory() : factory);
+    }
+
+    /**
+     * @param n              The number of variables.
+     * @param params         The parameters for L-BFGS optimization. If null, the default parameters are used.
+     * @param factory        The factory used to allocate the working vectors. These are handed to the callbacks as
+     *                       arrays, so they must be heap vectors.
+     * @param historyFactory The factory used to allocate the m (s, y) correction pairs, which are never exposed and
+     *                       may live outside of the heap; see {@link LBFGSBufferVector}. Takes precedence over
+     *                       {@code float_history}.
+     */
+    public LBFGSSolver(
+            int n,
+            @Nullable LBFGSProto.Params params,
+            @NotNull LBFGSVector.IFactory factory,
+            @NotNull LBFGSVector.IFactory historyFactory) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        this.n = n;
+        this.params = params != null ? params : LBFGSProto.Params.getDefaultInstance();
+        this.m = Math.max(this.params.getM(), 0);
+        this.historyFactory = historyFactory;
+        this.orthantwiseEnd = this.params.getOrthantwiseEnd() < 0 ? n : this.params.getOrthantwiseEnd();
+
+        x = factory.createVector(n);
+        xp = factory.createVector(n);
+        g = factory.createVector(n);
+        gp = factory.createVector(n);
+        d = factory.createVector(n);
+        if (x.VALUES == null) {
+            throw new IllegalArgumentException("The working vectors must be heap vectors");
+        }
+        if (this.params.getOrthantwiseC() != 0d) {
+            pg = factory.createVector(n);
+            w = factory.createVector(n);
+            owlqnActive = new int[(orthantwiseEnd - this.params.getOrthantwiseStart()) / OWLQN_SPARSE_RATIO];
+        } else {
+            pg = null;
+            w = null;
+            owlqnActive = null;
+        }
+
+        s = new LBFGSVector[m];
+        y = new LBFGSVector[m];
+        for (int i = 0; i < m; i++) {
+            s[i] = historyFactory.createVector(n);
+            y[i] = historyFactory.createVector(n);
+        }
+        rho = new double[m];
+        alpha = new double[m];
+        historyBytes = m > 0 ? 2L * m * n * (s[0] instanceof LBFGSFloatVector ? Float.BYTES : Double.BYTES) : 0L;
+        if (this.params.getDirection() == LBFGSProto.Params.DirectionAlgorithm.COMPACT && m > 0 &&
+                s[0].VALUES != null) {
+            compact = new LBFGSCompactDirection(
+                    n, m, factory instanceof LBFGSVector.Factory ? ((LBFGSVector.Factory) factory).getPool() : null);
+        } else {
+            compact = null;
+        }
+
+        pf = this.params.getPast() > 0 ? new double[this.params.getPast()] : null;
+
+        int cache = Math.max(this.params.getLinesearchCache(), 0);
+        if (cache > 0) {
+            cacheSteps = new double[cache];
+            cacheFx = new double[cache];
+            cacheG = new LBFGSVector[cache];
+            for (int i = 0; i < cache; i++) {
+                cacheG[i] = factory.createVector(n);
+            }
+        } else {
+            cacheSteps = null;
+            cacheFx = null;
+            cacheG = null;
+        }
+
+        timeBudget = this.params.getTimeBudget() > 0d ? (long) (this.params.getTimeBudget() * 1e9) : 0L;
+        maxEvaluations = Math.max(this.params.getMaxEvaluations(), 0);
+
+        int lanes = Math.min(Math.max(this.params.getSpeculativeLinesearch(), 0), this.params.getMaxLinesearch());
+        if (lanes > 1) {
+            laneX = new LBFGSVector[lanes];
+            laneG = new LBFGSVector[lanes];
+            for (int i = 0; i < lanes; i++) {
+                laneX[i] = factory.createVector(n);
+                laneG[i] = factory.createVector(n);
+            }
+            laneSteps = new double[lanes];
+            laneFx = new double[lanes];
+            ForkJoinPool pool =
+                    factory instanceof LBFGSVector.Factory ? ((LBFGSVector.Factory) factory).getPool() : null;
+            lanePool = pool != null ? pool : ForkJoinPool.commonPool();
+        } else {
+            laneX = null;
+            laneG = null;
+            laneSteps = null;
+            laneFx = null;
+            lanePool = null;
+        }
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    @NotNull
+    public LBFGSProto.Params getParams() {
+        return params;
+    }
+
+    /**
+     * @return The number of calls to {@link LBFGSEvaluate#lbfgsEvaluate} made by the last solve.
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * @return The number of calls to {@link LBFGSValueEvaluate#lbfgsValue} made by the last solve.
+     */
+    public int getValueEvaluations() {
+        return valueEvaluations;
+    }
+
+    /**
+     * @return The number of line search trials of the last solve that were served from memory instead of calling the
+     * evaluation callback: trials at step zero, the point where the previous iteration ended, and trials found in the
+     * {@code linesearch_cache}.
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return The number of steps tried by the line searches of the last solve, however they were evaluated.
+     */
+    public int getLineSearchTrials() {
+        return lineSearchTrials;
+    }
+
+    /**
+     * @return The number of OWL-QN line search trials of the last solve that only touched the coordinates of the L1
+     * range where the previous point or the direction is not zero, when those were at most a quarter of the range.
+     */
+    public int getSparseLineSearchTrials() {
+        return sparseLineSearchTrials;
+    }
+
+    /**
+     * @return The size of the m (s, y) correction pairs, in bytes.
+     */
+    public long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    @Nullable
+    public LBFGSSolverListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Report the counters and timings of every following solve to a listener, such as a {@link LBFGSMetrics}.
+     * <p>
+     * Without a listener the solver reads no clock, so the instrumentation costs nothing. The listener should be set
+     * between solves, not from a callback.
+     *
+     * @param listener The listener, or null to stop reporting.
+     */
+    public void setListener(@Nullable LBFGSSolverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Check the parameters for errors.
+     *
+     * @param params The parameters to check, not null.
+     * @param n      The number of variables.
+     * @return Zero if the parameters are valid, otherwise the LBFGSERR_* code of the first invalid parameter.
+     */
+    static int validate(@NotNull LBFGSProto.Params params, int n) {
+        final int orthantwiseEnd = params.getOrthantwiseEnd() < 0 ? n : params.getOrthantwiseEnd();
+        if (params.getM() <= 0) return LBFGSERR_INVALIDPARAMETERS;
+        if (params.getEpsilon() < 0d) return LBFGSERR_INVALID_EPSILON;
+        if (params.getPast() < 0) return LBFGSERR_INVALID_TESTPERIOD;
+        if (params.getDelta() < 0d) return LBFGSERR_INVALID_DELTA;
+        if (params.getMinStep() < 0d) return LBFGSERR_INVALID_MINSTEP;
+        if (params.getMaxStep() < params.getMinStep()) return LBFGSERR_INVALID_MAXSTEP;
+        if (params.getFtol() < 0d) return LBFGSERR_INVALID_FTOL;
+        if (params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE ||
+                params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_STRONG_WOLFE) {
+            if (params.getWolfe() <= params.getFtol() || 1d <= params.getWolfe()) return LBFGSERR_INVALID_WOLFE;
+        }
+        if (params.getGtol() < 0d) return LBFGSERR_INVALID_GTOL;
+        if (params.getXtol() < 0d) return LBFGSERR_INVALID_XTOL;
+        if (params.getMaxLinesearch() <= 0) return LBFGSERR_INVALID_MAXLINESEARCH;
+        if (!(params.getTimeBudget() >= 0d) || params.getMaxEvaluations() < 0) return LBFGSERR_INVALIDPARAMETERS;
+        if (params.getOrthantwiseC() < 0d) return LBFGSERR_INVALID_ORTHANTWISE;
+        if (params.getOrthantwiseStart() < 0 || n < params.getOrthantwiseStart()) {
+            return LBFGSERR_INVALID_ORTHANTWISE_START;
+        }
+        if (n < orthantwiseEnd) return LBFGSERR_INVALID_ORTHANTWISE_END;
+        if (params.getOrthantwiseC() != 0d) {
+            // Only the backtracking method is available.
+            if (params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.MORETHUENTE) {
+                return LBFGSERR_INVALID_LINESEARCH;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Start a L-BFGS optimization.
+     *
+     * @param x        The array of variables, at least n long. It holds the starting point on entry and receives the
+     *                 result on return.
+     * @param ptrFx    If not null, {@code ptrFx[0]} receives the final value of the objective function.
+     * @param evaluate The callback function to provide function and gradient evaluations.
+     * @param progress The callback function to receive the progress of the minimization process. May be null.
+     * @return The status code; see {@link LBFGS#lbfgs}.
+     */
+    public int solve(
+            @NotNull double[] x,
+            @Nullable double[] ptrFx,
+            @NotNull LBFGSEvaluate evaluate,
+            @Nullable LBFGSProgress progress) {
+        return solve(x, ptrFx, evaluate, progress, null);
+    }
+
+    /**
+     * Start a L-BFGS optimization from the curvature information of a previous solve.
+     * <p>
+     * The pairs of the state that satisfy the curvature condition y^t s > 0 are used, the newest m of them at most,
+     * and the first step is then taken along the quasi-Newton direction instead of the steepest descent. Pairs that
+     * violate the condition, typically because the objective has moved since they were formed, are dropped. The state
+     * receives the final pairs on return, even if the solve fails.
+     *
+     * @param x        The array of variables, at least n long. It holds the starting point on entry and receives the
+     *                 result on return.
+     * @param ptrFx    If not null, {@code ptrFx[0]} receives the final value of the objective function.
+     * @param evaluate The callback function to provide function and gradient evaluations.
+     * @param progress The callback function to receive the progress of the minimization process. May be null.
+     * @param state    The curvature information to start from and to update, or null to start from the identity.
+     * @return The status code; see {@link LBFGS#lbfgs}.
+     * @throws IllegalArgumentException If the pairs of the state are not n long.
+     */
+    public int solve(
+            @NotNull double[] x,
+            @Nullable double[] ptrFx,
+            @NotNull LBFGSEvaluate evaluate,
+            @Nullable LBFGSProgress progress,
+            @Nullable LBFGSState state) {
+        if (x.length < n) {
+            return LBFGSERR_INVALID_N;
+        }
+        int ret = validate(params, n);
+        if (ret != 0) {
+            return ret;
+        }
+
+        System.arraycopy(x, 0, this.x.getValues(), 0, n);
+        fx = 0d;
+        end = 0;
+        pairs = 0;
+        evaluations = 0;
+        valueEvaluations = 0;
+        cacheHits = 0;
+        lineSearchTrials = 0;
+        sparseLineSearchTrials = 0;
+        if (compact != null) {
+            compact.invalidate();
+        }
+        if (state != null) {
+            loadState(state);
+        }
+        try {
+            ret = runAndReport(evaluate, progress, false);
+        } finally {
+            System.arraycopy(this.x.getValues(), 0, x, 0, n);
+            if (state != null) {
+                saveState(state);
+            }
+        }
+        if (ptrFx != null) {
+            ptrFx[0] = fx;
+        }
+        return ret;
+    }
+
+    /**
+     * Write the state of the running solve to a checkpoint file, from which {@link #resume} continues it.
+     * <p>
+     * This may only be called from the progress callback of a solve of this solver, for instance every few hundred
+     * iterations. The file is written next to its final location and renamed, so that an interrupted checkpoint
+     * leaves the previous one intact.
+     *
+     * @param file Where to write the checkpoint; see {@link LBFGSProto.Checkpoint} for the layout.
+     * @throws IllegalStateException If called outside of the progress callback.
+     * @throws UncheckedIOException  If the file cannot be written.
+     */
+    public void checkpoint(@NotNull File file) {
+        if (!inProgress) {
+            throw new IllegalStateException("Checkpoints can only be taken from the progress callback");
+        }
+        // Form the correction pair of this iteration now, exactly as run() does next, so that the previous point
+        // does not have to be saved. It goes to the file in the slot of the next pair, but not to the history: the
+        // solve may still end at this iteration, with the oldest pair in that slot.
+        if (pendingS == null) {
+            pendingS = historyFactory.createVector(n);
+            pendingY = historyFactory.createVector(n);
+        }
+        pendingS.copyDiff(x, xp);
+        pendingY.copyDiff(g, gp);
+
+        LBFGSProto.Checkpoint.Builder header = LBFGSProto.Checkpoint.newBuilder()
+                .setN(n)
+                .setM(m)
+                .setK(k)
+                .setEnd(end)
+                .setPairs(pairs)
+                .setFx(fx)
+                .setParams(params);
+        if (pf != null) {
+            for (double f : pf) {
+                header.addPast(f);
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            header.addRho(i == end ? 1d / pendingS.dot(pendingY) : rho[i]);
+        }
+        LBFGSVector[] vectors = stateVectors();
+        vectors[2 + end] = pendingS;
+        vectors[2 + m + end] = pendingY;
+        try {
+            LBFGSCheckpoint.write(file, header.build(), vectors);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Continue a solve from a checkpoint.
+     * <p>
+     * The solve goes on exactly as it would have without the interruption. The solver must have the same dimension
+     * and parameters as the one that wrote the checkpoint.
+     *
+     * @param file     A checkpoint written by {@link #checkpoint}.
+     * @param x        The array of variables, at least n long. It receives the result on return.
+     * @param ptrFx    If not null, {@code ptrFx[0]} receives the final value of the objective function.
+     * @param evaluate The callback function to provide function and gradient evaluations.
+     * @param progress The callback function to receive the progress of the minimization process. May be null.
+     * @return The status code; see {@link LBFGS#lbfgs}.
+     * @throws IllegalArgumentException If the file is not a checkpoint of a solver like this one.
+     * @throws UncheckedIOException     If the file cannot be read.
+     */
+    public int resume(
+            @NotNull File file,
+            @NotNull double[] x,
+            @Nullable double[] ptrFx,
+            @NotNull LBFGSEvaluate evaluate,
+            @Nullable LBFGSProgress progress) {
+        if (x.length < n) {
+            return LBFGSERR_INVALID_N;
+        }
+        int ret = validate(params, n);
+        if (ret != 0) {
+            return ret;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            LBFGSProto.Checkpoint header = LBFGSCheckpoint.readHeader(channel);
+            if (header.getN() != n || header.getM() != m || header.getRhoCount() != m ||
+                    header.getPastCount() != (pf != null ? pf.length : 0) ||
+                    header.getK() <= 0 || header.getEnd() < 0 || m <= header.getEnd() ||
+                    header.getPairs() < 0 || m < header.getPairs()) {
+                throw new IllegalArgumentException("The checkpoint does not match this solver");
+            }
+            if (!LBFGSCheckpoint.sameParams(header.getParams(), params)) {
+                throw new IllegalArgumentException("The checkpoint was written with other parameters");
+            }
+            LBFGSCheckpoint.readVectors(channel, stateVectors());
+
+            k = header.getK();
+            end = header.getEnd();
+            pairs = header.getPairs();
+            fx = header.getFx();
+            for (int i = 0; i < m; i++) {
+                rho[i] = header.getRho(i);
+            }
+            for (int i = 0; i < header.getPastCount(); i++) {
+                pf[i] = header.getPast(i);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (compact != null) {
+            compact.invalidate();
+        }
+
+        evaluations = 0;
+        valueEvaluations = 0;
+        cacheHits = 0;
+        lineSearchTrials = 0;
+        sparseLineSearchTrials = 0;
+        try {
+            ret = runAndReport(evaluate, progress, true);
+        } finally {
+            System.arraycopy(this.x.getValues(), 0, x, 0, n);
+        }
+        if (ptrFx != null) {
+            ptrFx[0] = fx;
+        }
+        return ret;
+    }
+
+    /**
+     * Seed the correction history with the valid pairs of a state.
+     */
+    private void loadState(@NotNull LBFGSState state) {
+        for (int i = 0; i < state.size(); i++) {
+            if (state.getS(i).length != n || state.getY(i).length != n) {
+                throw new IllegalArgumentException("The pairs of the state must have n values");
+            }
+        }
+        for (int i = Math.max(state.size() - m, 0); i < state.size(); i++) {
+            LBFGSVector sEnd = s[end];
+            LBFGSVector yEnd = y[end];
+            load(sEnd, state.getS(i));
+            load(yEnd, state.getY(i));
+            double ys = sEnd.dot(yEnd);
+            double yy = yEnd.dot(yEnd);
+            if (!(ys > 0d) || Double.isInfinite(ys) || Double.isInfinite(yy)) {
+                // A stale pair would make the approximation indefinite.
+                continue;
+            }
+            rho[end] = 1d / ys;
+            gamma = ys / yy;
+            end = (end + 1) % m;
+            ++pairs;
+        }
+        if (pairs > 0 && state.getGamma() > 0d && !Double.isInfinite(state.getGamma())) {
+            gamma = state.getGamma();
+        }
+    }
+
+    /**
+     * Copy the correction history, oldest pair first, and the scaling into a state.
+     */
+    private void saveState(@NotNull LBFGSState state) {
+        state.resize(pairs, n);
+        for (int i = 0; i < pairs; i++) {
+            int j = (end + m - pairs + i) % m;
+            store(s[j], state.getS(i));
+            store(y[j], state.getY(i));
+        }
+        state.setGamma(pairs > 0 ? gamma : 1d);
+    }
+
+    private static void load(@NotNull LBFGSVector v, @NotNull double[] values) {
+        if (v.VALUES != null) {
+            System.arraycopy(values, 0, v.VALUES, 0, values.length);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                v.set(i, values[i]);
+            }
+        }
+    }
+
+    private static void store(@NotNull LBFGSVector v, @NotNull double[] values) {
+        if (v.VALUES != null) {
+            System.arraycopy(v.VALUES, 0, values, 0, values.length);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = v.get(i);
+            }
+        }
+    }
+
+    /**
+     * @return The vectors of a checkpoint, in file order.
+     */
+    @NotNull
+    private LBFGSVector[] stateVectors() {
+        LBFGSVector[] ret = new LBFGSVector[2 + 2 * m];
+        ret[0] = x;
+        ret[1] = g;
+        System.arraycopy(s, 0, ret, 2, m);
+        System.arraycopy(y, 0, ret, 2 + m, m);
+        return ret;
+    }
+
+    /**
+     * Run the solve, timing it and reporting its counters if there is a listener.
+     */
+    private int runAndReport(@NotNull LBFGSEvaluate evaluate, @Nullable LBFGSProgress progress, boolean resumed) {
+        LBFGSSolverListener listener = this.listener;
+        if (listener == null) {
+            return run(evaluate, progress, resumed);
+        }
+        stats.evaluateNanos = 0L;
+        stats.directionNanos = 0L;
+        stats.progressNanos = 0L;
+        long start = System.nanoTime();
+        int ret = run(evaluate, progress, resumed);
+        stats.totalNanos = System.nanoTime() - start;
+        stats.ret = ret;
+        stats.iterations = ret == LBFGS_ALREADY_MINIMIZED ? 0 : k;
+        stats.evaluations = evaluations;
+        stats.valueEvaluations = valueEvaluations;
+        stats.cacheHits = cacheHits;
+        stats.lineSearchTrials = lineSearchTrials;
+        stats.sparseLineSearchTrials = sparseLineSearchTrials;
+        stats.historyBytes = historyBytes;
+        listener.onSolve(this, stats);
+        return ret;
+    }
+
+    /**
+     * @param resumed Whether the state was loaded from a checkpoint, in which case the solve continues with the
+     *                convergence tests of iteration k, the newest correction pair being already formed.
+     */
+    private int run(@NotNull LBFGSEvaluate evaluate, @Nullable LBFGSProgress progress, boolean resumed) {
+        final boolean orthantwise = params.getOrthantwiseC() != 0d;
+        final LBFGSVector gOrPg = orthantwise ? pg : g;
+        double xnorm;
+        double gnorm;
+        budgetStart = System.nanoTime();
+        deadline = budgetStart + timeBudget;
+        budgetIterations = 0;
+
+        if (!resumed) {
+            // Evaluate the function value and its gradient.
+            long start = listener != null ? System.nanoTime() : 0L;
+            fx = evaluate.lbfgsEvaluate(x.getValues(), g.getValues(), n, 0);
+            if (listener != null) {
+                stats.evaluateNanos += System.nanoTime() - start;
+            }
+            ++evaluations;
+            if (orthantwise) {
+                // Compute the L1 norm of the variable and add it to the object value.
+                xnorm = owlqnX1norm(x);
+                fx += xnorm * params.getOrthantwiseC();
+                owlqnPseudoGradient();
+            }
+
+            // Store the initial value of the objective function.
+            if (pf != null) {
+                pf[0] = fx;
+            }
+
+            // Make sure that the initial variables are not a minimizer.
+            xnorm = x.norm(x);
+            gnorm = gOrPg.norm(gOrPg);
+            if (xnorm < 1d) xnorm = 1d;
+            if (gnorm / xnorm <= params.getEpsilon()) {
+                return LBFGS_ALREADY_MINIMIZED;
+            }
+
+            if (pairs == 0) {
+                // Compute the direction; we assume the initial hessian matrix H_0 as the identity matrix.
+                d.copyNegativeFrom(gOrPg);
+                if (orthantwise) {
+                    // The direction is already in the orthant of the pseudo-gradient.
+                    owlqnActiveSet(false);
+                }
+
+                // Compute the initial step: step = 1.0 / sqrt(vecdot(d, d, n))
+                step = d.norminv(d);
+            } else {
+                // Warm start from the pairs of a previous solve.
+                start = listener != null ? System.nanoTime() : 0L;
+                direction(gOrPg);
+                if (listener != null) {
+                    stats.directionNanos += System.nanoTime() - start;
+                }
+                step = 1d;
+            }
+
+            k = 1;
+        } else if (orthantwise) {
+            owlqnPseudoGradient();
+        }
+
+        for (; ; ) {
+            if (resumed) {
+                xnorm = x.norm(x);
+                gnorm = gOrPg.norm(gOrPg);
+            } else {
+                // Store the current position and gradient vectors.
+                xp.copyFrom(x);
+                gp.copyFrom(g);
+
+                // Search for an optimal step.
+                int ls;
+                if (!orthantwise) {
+                    ls = params.getLinesearch() == LBFGSProto.Params.LineSearchAlgorithm.MORETHUENTE
+                            ? lineSearchMoreThuente(evaluate)
+                            : laneX != null
+                            ? lineSearchBacktrackingSpeculative(evaluate)
+                            : lineSearchBacktracking(evaluate);
+                } else {
+                    ls = lineSearchBacktrackingOwlqn(evaluate);
+                    owlqnPseudoGradient();
+                }
+                if (ls < 0) {
+                    // Revert to the previous point.
+                    x.copyFrom(xp);
+                    g.copyFrom(gp);
+                    fx = fxp;
+                    return ls;
+                }
+
+                // Compute x and g norms.
+                xnorm = x.norm(x);
+                gnorm = gOrPg.norm(gOrPg);
+
+                // Report the progress.
+                if (progress != null) {
+                    int cancel;
+                    long start = listener != null ? System.nanoTime() : 0L;
+                    inProgress = true;
+                    try {
+                        if (progress instanceof LBFGSBudgetProgress) {
+                            cancel = ((LBFGSBudgetProgress) progress).lbfgsProgress(
+                                    x.getValues(), g.getValues(), fx, xnorm, gnorm, step, n, k, ls,
+                                    timeBudget > 0L ? Math.max(deadline - System.nanoTime(), 0L) : Long.MAX_VALUE,
+                                    maxEvaluations > 0 ? Math.max(maxEvaluations - evaluations, 0) : Integer.MAX_VALUE);
+                        } else {
+                            cancel = progress.lbfgsProgress(
+                                    x.getValues(), g.getValues(), fx, xnorm, gnorm, step, n, k, ls);
+                        }
+                    } finally {
+                        inProgress = false;
+                        if (listener != null) {
+                            stats.progressNanos += System.nanoTime() - start;
+                        }
+                    }
+                    if (cancel != 0) {
+                        return cancel;
+                    }
+                }
+            }
+
+            // Convergence test.
+            if (xnorm < 1d) xnorm = 1d;
+            if (gnorm / xnorm <= params.getEpsilon()) {
+                return LBFGS_SUCCESS;
+            }
+
+            // Test for stopping criterion.
+            if (pf != null) {
+                // We don't test the stopping criterion while k < past.
+                if (pf.length <= k) {
+                    // Compute the relative improvement from the past.
+                    double rate = (pf[k % pf.length] - fx) / fx;
+                    // The stopping criterion.
+                    if (rate < params.getDelta()) {
+                        return LBFGS_STOP;
+                    }
+                }
+                // Store the current value of the objective function.
+                pf[k % pf.length] = fx;
+            }
+
+            if (params.getMaxIterations() != 0 && params.getMaxIterations() < k + 1) {
+                // Maximum number of iterations.
+                return LBFGSERR_MAXIMUMITERATION;
+            }
+            if (iterationOverBudget()) {
+                return LBFGSERR_BUDGET;
+            }
+
+            // Update vectors s and y:
+            // s_{k+1} = x_{k+1} - x_{k} = \step * d_{k}.
+            // y_{k+1} = g_{k+1} - g_{k}.
+            // Compute scalars ys and yy in the same passes:
+            // ys = y^t \cdot s = 1 / \rho.
+            // yy = y^t \cdot y.
+            // Notice that yy is used for scaling the hessian matrix H_0 (Cholesky factor).
+            long start = listener != null ? System.nanoTime() : 0L;
+            LBFGSVector sEnd = s[end];
+            LBFGSVector yEnd = y[end];
+            double yy;
+            double ys;
+            if (resumed) {
+                // The checkpoint holds this pair already; these are the same sums as the fused passes.
+                yy = yEnd.dot(yEnd);
+                ys = sEnd.dot(yEnd);
+                resumed = false;
+            } else {
+                yy = yEnd.copyDiffAndDot(g, gp, yEnd);
+                ys = sEnd.copyDiffAndDot(x, xp, yEnd);
+            }
+            rho[end] = 1d / ys;
+            gamma = ys / yy;
+            if (compact != null) {
+                compact.formed(end);
+            }
+            if (pairs < m) {
+                ++pairs;
+            }
+            ++k;
+            end = (end + 1) % m;
+
+            direction(gOrPg);
+            if (listener != null) {
+                stats.directionNanos += System.nanoTime() - start;
+            }
+
+            // Now the search direction d is ready. We try step = 1 first.
+            step = 1d;
+        }
+    }
+
+    /**
+     * Compute the search direction d = -(H \cdot g) from the stored pairs.
+     */
+    private void direction(@NotNull LBFGSVector gOrPg) {
+        if (compact != null) {
+            compact.direction(s, y, end, pairs, gamma, gOrPg.getValues(), d.getValues());
+        } else {
+            twoLoop(gOrPg);
+        }
+
+        // Constrain the search direction for orthant-wise updates.
+        if (params.getOrthantwiseC() != 0d) {
+            owlqnActiveSet(true);
+        }
+    }
+
+    private void twoLoop(@NotNull LBFGSVector gOrPg) {
+        // Recursive formula to compute dir = -(H \cdot g).
+        // This is described in page 779 of:
+        // Jorge Nocedal.
+        // Updating Quasi-Newton Matrices with Limited Storage.
+        // Mathematics of Computation, Vol. 35, No. 151,
+        // pp. 773--782, 1980.
+        // Each update of d is fused with the dot product needed by the next step of the recursion, so every
+        // correction pair is read once per loop.
+        final int bound = pairs;
+
+        // Compute the steepest direction, together with \alpha_{j} = \rho_{j} s^{t}_{j} \cdot q_{k+1} for the
+        // newest pair.
+        int j = (end + m - 1) % m;
+        alpha[j] = rho[j] * d.copyNegativeFromAndDot(gOrPg, s[j]);
+
+        for (int i = 0; i < bound; ++i) {
+            // q_{i} = q_{i+1} - \alpha_{i} y_{i}.
+            if (i + 1 < bound) {
+                int prev = (j + m - 1) % m;
+                alpha[prev] = rho[prev] * d.addWithMultiplierAndDot(y[j], -alpha[j], s[prev]);
+                j = prev;
+            } else {
+                d.addWithMultiplier(y[j], -alpha[j]);
+            }
+        }
+
+        double yd = d.scaleAndDot(gamma, y[j]);
+
+        for (int i = 0; i < bound; ++i) {
+            // \beta_{j} = \rho_{j} y^t_{j} \cdot \gamma_{i}.
+            double beta = rho[j] * yd;
+            // \gamma_{i+1} = \gamma_{i} + (\alpha_{j} - \beta_{j}) s_{j}.
+            if (i + 1 < bound) {
+                int next = (j + 1) % m;
+                yd = d.addWithMultiplierAndDot(s[j], alpha[j] - beta, y[next]);
+                j = next;
+            } else {
+                d.addWithMultiplier(s[j], alpha[j] - beta);
+            }
+        }
+    }
+
+    /**
+     * Backtracking line search for the Armijo, Wolfe and strong Wolfe conditions.
+     *
+     * @return The number of evaluations, or a negative LBFGSERR_* code.
+     */
+    private int lineSearchBacktracking(@NotNull LBFGSEvaluate evaluate) {
+        final double dec = 0.5;
+        final double inc = 2.1;
+        final LBFGSProto.Params.LineSearchAlgorithm linesearch = params.getLinesearch();
+        final LBFGSValueEvaluate valueOnly =
+                evaluate instanceof LBFGSValueEvaluate ? (LBFGSValueEvaluate) evaluate : null;
+        int count = 0;
+        fxp = fx;
+        cacheSize = 0;
+        cacheNext = 0;
+        double width;
+
+        // Check the input parameters for errors.
+        if (step <= 0d) {
+            return LBFGSERR_INVALIDPARAMETERS;
+        }
+
+        // Compute the initial gradient in the search direction.
+        double dginit = g.dot(d);
+
+        // Make sure that s points to a descent direction.
+        if (0 < dginit) {
+            return LBFGSERR_INCREASEGRADIENT;
+        }
+
+        // The initial value of the objective function.
+        double finit = fx;
+        double dgtest = params.getFtol() * dginit;
+
+        for (; ; ) {
+            x.copyFrom(xp);
+            x.addWithMultiplier(d, step);
+
+            // Evaluate the function value, and the gradient unless it can be computed separately.
+            if (overBudget()) {
+                return LBFGSERR_BUDGET;
+            }
+            fx = valueOnly != null ? evaluateValue(valueOnly) : evaluate(evaluate);
+
+            ++count;
+            ++lineSearchTrials;
+
+            if (fx > finit + step * dgtest) {
+                width = dec;
+            } else {
+                if (valueOnly != null) {
+                    // The step is accepted or needs the Wolfe tests, so evaluate the gradient too.
+                    if (overBudget()) {
+                        return LBFGSERR_BUDGET;
+                    }
+                    fx = evaluate(evaluate);
+                }
+
+                // The sufficient decrease condition (Armijo condition).
+                if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO) {
+                    // Exit with the Armijo condition.
+                    return count;
+                }
+
+                // Check the Wolfe condition.
+                double dg = g.dot(d);
+                if (dg < params.getWolfe() * dginit) {
+                    width = inc;
+                } else {
+                    if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE) {
+                        // Exit with the regular Wolfe condition.
+                        return count;
+                    }
+
+                    // Check the strong Wolfe condition.
+                    if (dg > -params.getWolfe() * dginit) {
+                        width = dec;
+                    } else {
+                        // Exit with the strong Wolfe condition.
+                        return count;
+                    }
+                }
+            }
+
+            if (step < params.getMinStep()) {
+                // The step is the minimum value.
+                return LBFGSERR_MINIMUMSTEP;
+            }
+            if (step > params.getMaxStep()) {
+                // The step is the maximum value.
+                return LBFGSERR_MAXIMUMSTEP;
+            }
+            if (params.getMaxLinesearch() <= count) {
+                // Maximum number of iteration.
+                return LBFGSERR_MAXIMUMLINESEARCH;
+            }
+
+            step *= width;
+        }
+    }
+
+    /**
+     * Backtracking line search like {@link #lineSearchBacktracking}, which evaluates the trials that it would make if
+     * each of them failed the sufficient decrease condition in parallel, then goes through them in order with the
+     * tests of the serial search. A trial with a step that the serial search would not try next, after a step that
+     * fails the Wolfe condition, ends the batch; the trials after it are thrown away.
+     *
+     * @return The number of trials that the serial search would have made, or a negative LBFGSERR_* code.
+     */
+    private int lineSearchBacktrackingSpeculative(@NotNull LBFGSEvaluate evaluate) {
+        final double dec = 0.5;
+        final double inc = 2.1;
+        final LBFGSProto.Params.LineSearchAlgorithm linesearch = params.getLinesearch();
+        int count = 0;
+        fxp = fx;
+        double width;
+
+        // Check the input parameters for errors.
+        if (step <= 0d) {
+            return LBFGSERR_INVALIDPARAMETERS;
+        }
+
+        // Compute the initial gradient in the search direction.
+        double dginit = g.dot(d);
+
+        // Make sure that s points to a descent direction.
+        if (0 < dginit) {
+            return LBFGSERR_INCREASEGRADIENT;
+        }
+
+        // The initial value of the objective function.
+        double finit = fx;
+        double dgtest = params.getFtol() * dginit;
+
+        for (; ; ) {
+            // The serial search stops after a step below the minimum or its last trial.
+            if (overBudget()) {
+                return LBFGSERR_BUDGET;
+            }
+            int limit = Math.min(laneX.length, params.getMaxLinesearch() - count);
+            if (maxEvaluations > 0) {
+                limit = Math.min(limit, maxEvaluations - evaluations);
+            }
+            int lanes = 1;
+            laneSteps[0] = step;
+            while (lanes < limit &&
+                    laneSteps[lanes - 1] >= params.getMinStep()) {
+                laneSteps[lanes] = laneSteps[lanes - 1] * dec;
+                ++lanes;
+            }
+            long start = listener != null ? System.nanoTime() : 0L;
+            lanePool.invoke(new Trials(evaluate, 0, lanes));
+            if (listener != null) {
+                stats.evaluateNanos += System.nanoTime() - start;
+            }
+            evaluations += lanes;
+
+            for (int j = 0; j < lanes; j++) {
+                step = laneSteps[j];
+                fx = laneFx[j];
+
+                ++count;
+                ++lineSearchTrials;
+
+                if (fx > finit + step * dgtest) {
+                    width = dec;
+                } else {
+                    // Only the point and gradient of an accepted trial are used; a failed search reverts to xp.
+                    x.copyFrom(laneX[j]);
+                    g.copyFrom(laneG[j]);
+
+                    // The sufficient decrease condition (Armijo condition).
+                    if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO) {
+                        // Exit with the Armijo condition.
+                        return count;
+                    }
+
+                    // Check the Wolfe condition.
+                    double dg = g.dot(d);
+                    if (dg < params.getWolfe() * dginit) {
+                        width = inc;
+                    } else {
+                        if (linesearch == LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE) {
+                            // Exit with the regular Wolfe condition.
+                            return count;
+                        }
+
+                        // Check the strong Wolfe condition.
+                        if (dg > -params.getWolfe() * dginit) {
+                            width = dec;
+                        } else {
+                            // Exit with the strong Wolfe condition.
+                            return count;
+                        }
+                    }
+                }
+
+                if (step < params.getMinStep()) {
+                    // The step is the minimum value.
+                    return LBFGSERR_MINIMUMSTEP;
+                }
+                if (step > params.getMaxStep()) {
+                    // The step is the maximum value.
+                    return LBFGSERR_MAXIMUMSTEP;
+                }
+                if (params.getMaxLinesearch() <= count) {
+                    // Maximum number of iteration.
+                    return LBFGSERR_MAXIMUMLINESEARCH;
+                }
+
+                step *= width;
+                if (width != dec) {
+                    // The next trial is not the next lane.
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the trials of a speculative line search, splitting the lanes in halves.
+     */
+    private final class Trials extends RecursiveAction {
+        private final LBFGSEvaluate evaluate;
+        private final int from;
+        private final int to;
+
+        Trials(@NotNull LBFGSEvaluate evaluate, int from, int to) {
+            this.evaluate = evaluate;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                laneX[from].copyFrom(xp);
+                laneX[from].addWithMultiplier(d, laneSteps[from]);
+                laneFx[from] = evaluate.lbfgsEvaluate(laneX[from].getValues(), laneG[from].getValues(), n,
+                        laneSteps[from]);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Trials(evaluate, from, mid), new Trials(evaluate, mid, to));
+        }
+    }
+
+    /**
+     * Backtracking line search for OWL-QN; pg holds the pseudo-gradient at xp.
+     * <p>
+     * When the coordinates of the L1 range where xp or d is not zero are few enough, the choice of the orthant and
+     * each trial only touch them and the coordinates outside of the range; the coordinates are collected by the pass
+     * that constrains the direction, so the line search has no O(n) pass of its own. The rest of an iteration stays
+     * O(n): the gradient from the callback is dense, and so are the pseudo-gradient, whose zero coordinates depend on
+     * it, the correction pairs of the direction, and the copies of x and g.
+     *
+     * @return The number of evaluations, or a negative LBFGSERR_* code.
+     */
+    private int lineSearchBacktrackingOwlqn(@NotNull LBFGSEvaluate evaluate) {
+        final double width = 0.5;
+        final LBFGSValueEvaluate valueOnly =
+                evaluate instanceof LBFGSValueEvaluate ? (LBFGSValueEvaluate) evaluate : null;
+        int count = 0;
+        fxp = fx;
+        cacheSize = 0;
+        cacheNext = 0;
+        double finit = fx;
+
+        // Check the input parameters for errors.
+        if (step <= 0d) {
+            return LBFGSERR_INVALIDPARAMETERS;
+        }
+
+        // Choose the orthant for the new point. In a sparse model the coordinates of the L1 range that the line search
+        // can move are few, and the orthant and each trial then cost the size of the active set instead of n.
+        final int start = params.getOrthantwiseStart();
+        double[] wv = w.getValues();
+        double[] xpv = xp.getValues();
+        double[] pgv = pg.getValues();
+        double[] dv = d.getValues();
+        final int active = owlqnActiveCount;
+        final boolean sparse = active >= 0;
+        if (sparse) {
+            for (int j = 0; j < active; ++j) {
+                int i = owlqnActive[j];
+                wv[i] = (xpv[i] == 0d) ? -pgv[i] : xpv[i];
+            }
+        } else {
+            for (int i = start; i < orthantwiseEnd; ++i) {
+                wv[i] = (xpv[i] == 0d) ? -pgv[i] : xpv[i];
+            }
+        }
+
+        double[] xv = x.getValues();
+        for (; ; ) {
+            double norm;
+            double dgtest = 0d;
+            if (sparse) {
+                // The other coordinates of x keep their values at xp, which are zero.
+                for (int i = 0; i < start; ++i) {
+                    xv[i] = xpv[i] + step * dv[i];
+                }
+                norm = 0d;
+                for (int j = 0; j < active; ++j) {
+                    int i = owlqnActive[j];
+                    xv[i] = xpv[i] + step * dv[i];
+                    // The current point is projected onto the orthant.
+                    if (xv[i] * wv[i] <= 0) {
+                        xv[i] = 0;
+                    }
+                    norm += Math.abs(xv[i]);
+                }
+                for (int i = orthantwiseEnd; i < n; ++i) {
+                    xv[i] = xpv[i] + step * dv[i];
+                }
+                // The same sums as the dense loops below, in the same order, without their zero terms.
+                for (int i = 0; i < start; ++i) {
+                    dgtest += (xv[i] - xpv[i]) * pgv[i];
+                }
+                for (int j = 0; j < active; ++j) {
+                    int i = owlqnActive[j];
+                    dgtest += (xv[i] - xpv[i]) * pgv[i];
+                }
+                for (int i = orthantwiseEnd; i < n; ++i) {
+                    dgtest += (xv[i] - xpv[i]) * pgv[i];
+                }
+                ++sparseLineSearchTrials;
+            } else {
+                x.copyFrom(xp);
+                x.addWithMultiplier(d, step);
+
+                // The current point is projected onto the orthant.
+                for (int i = start; i < orthantwiseEnd; ++i) {
+                    if (xv[i] * wv[i] <= 0) {
+                        xv[i] = 0;
+                    }
+                }
+                norm = owlqnX1norm(x);
+                for (int i = 0; i < n; ++i) {
+                    dgtest += (xv[i] - xpv[i]) * pgv[i];
+                }
+            }
+
+            // Evaluate the function value, and the gradient unless it can be computed separately.
+            if (overBudget()) {
+                return LBFGSERR_BUDGET;
+            }
+            fx = valueOnly != null ? evaluateValue(valueOnly) : evaluate(evaluate);
+
+            // Add the L1 norm of the variables to the object value.
+            norm *= params.getOrthantwiseC();
+            fx += norm;
+
+            ++count;
+            ++lineSearchTrials;
+
+            if (fx <= finit + params.getFtol() * dgtest) {
+                // The sufficient decrease condition.
+                if (valueOnly != null) {
+                    if (overBudget()) {
+                        return LBFGSERR_BUDGET;
+                    }
+                    fx = evaluate(evaluate) + norm;
+                }
+                return count;
+            }
+
+            if (step < params.getMinStep()) {
+                // The step is the minimum value.
+                return LBFGSERR_MINIMUMSTEP;
+            }
+            if (step > params.getMaxStep()) {
+                // The step is the maximum value.
+                return LBFGSERR_MAXIMUMSTEP;
+            }
+            if (params.getMaxLinesearch() <= count) {
+                // Maximum number of iteration.
+                return LBFGSERR_MAXIMUMLINESEARCH;
+            }
+
+            step *= width;
+        }
+    }
+
+    /**
+     * The More-Thuente line search, as in MINPACK-2.
+     *
+     * @return The number of evaluations, or a negative LBFGSERR_* code.
+     */
+    private int lineSearchMoreThuente(@NotNull LBFGSEvaluate evaluate) {
+        int count = 0;
+        fxp = fx;
+        cacheSize = 0;
+        cacheNext = 0;
+        int uinfo = 0;
+        boolean stage1 = true;
+        double stmin;
+        double stmax;
+
+        // Check the input parameters for errors.
+        if (step <= 0d) {
+            return LBFGSERR_INVALIDPARAMETERS;
+        }
+
+        // Compute the initial gradient in the search direction.
+        double dginit = g.dot(d);
+
+        // Make sure that s points to a descent direction.
+        if (0 < dginit) {
+            return LBFGSERR_INCREASEGRADIENT;
+        }
+
+        // Initialize local variables.
+        final double finit = fx;
+        final double dgtest = params.getFtol() * dginit;
+        final double ftolGtol = Math.min(params.getFtol(), params.getGtol());
+        double width = params.getMaxStep() - params.getMinStep();
+        double prevWidth = 2d * width;
+
+        // The interval holds the step, function value and directional derivative at the best step and at the other
+        // endpoint of the interval of uncertainty; step, fx and dg are the values at the current step.
+        LBFGSTrialInterval iv = interval;
+        iv.reset(finit, dginit);
+
+        for (; ; ) {
+            // Set the minimum and maximum steps to correspond to the present interval of uncertainty.
+            if (iv.brackt) {
+                stmin = Math.min(iv.stx, iv.sty);
+                stmax = Math.max(iv.stx, iv.sty);
+            } else {
+                stmin = iv.stx;
+                stmax = step + 4d * (step - iv.stx);
+            }
+
+            // Clip the step in the range of [stpmin, stpmax].
+            if (step < params.getMinStep()) step = params.getMinStep();
+            if (params.getMaxStep() < step) step = params.getMaxStep();
+
+            // If an unusual termination is to occur then let step be the lowest point obtained so far.
+            if ((iv.brackt && ((step <= stmin || stmax <= step) || params.getMaxLinesearch() <= count + 1 ||
+                    uinfo != 0)) || (iv.brackt && (stmax - stmin <= params.getXtol() * stmax))) {
+                step = iv.stx;
+            }
+
+            // Compute the current value of x: x <- x + step * d.
+            x.copyFrom(xp);
+            x.addWithMultiplier(d, step);
+
+            // Evaluate the function and gradient values.
+            if (overBudget()) {
+                return LBFGSERR_BUDGET;
+            }
+            fx = evaluate(evaluate);
+            double dg = g.dot(d);
+
+            double ftest1 = finit + step * dgtest;
+            ++count;
+            ++lineSearchTrials;
+
+            // Test for errors and convergence.
+            if (iv.brackt && ((step <= stmin || stmax <= step) || uinfo != 0)) {
+                // Rounding errors prevent further progress.
+                return LBFGSERR_ROUNDING_ERROR;
+            }
+            if (step == params.getMaxStep() && fx <= ftest1 && dg <= dgtest) {
+                // The step is the maximum value.
+                return LBFGSERR_MAXIMUMSTEP;
+            }
+            if (step == params.getMinStep() && (ftest1 < fx || dgtest <= dg)) {
+                // The step is the minimum value.
+                return LBFGSERR_MINIMUMSTEP;
+            }
+            if (iv.brackt && (stmax - stmin) <= params.getXtol() * stmax) {
+                // Relative width of the interval of uncertainty is at most xtol.
+                return LBFGSERR_WIDTHTOOSMALL;
+            }
+            if (params.getMaxLinesearch() <= count) {
+                // Maximum number of iteration.
+                return LBFGSERR_MAXIMUMLINESEARCH;
+            }
+            if (fx <= ftest1 && Math.abs(dg) <= params.getGtol() * (-dginit)) {
+                // The sufficient decrease condition and the directional derivative condition hold.
+                return count;
+            }
+
+            // In the first stage we seek a step for which the modified function has a nonpositive value and
+            // nonnegative derivative.
+            if (stage1 && fx <= ftest1 && ftolGtol * dginit <= dg) {
+                stage1 = false;
+            }
+
+            // A modified function is used to predict the step only if we have not obtained a step for which the
+            // modified function has a nonpositive function value and nonnegative derivative, and if a lower function
+            // value has been obtained but the decrease is not sufficient.
+            if (stage1 && ftest1 < fx && fx <= iv.fx) {
+                // Define the modified function and derivative values.
+                iv.fx -= iv.stx * dgtest;
+                iv.fy -= iv.sty * dgtest;
+                iv.dgx -= dgtest;
+                iv.dgy -= dgtest;
+
+                // Update the interval of uncertainty and compute the new step.
+                uinfo = iv.update(step, fx - step * dgtest, dg - dgtest, stmin, stmax);
+
+                // Reset the function and gradient values for f.
+                iv.fx += iv.stx * dgtest;
+                iv.fy += iv.sty * dgtest;
+                iv.dgx += dgtest;
+                iv.dgy += dgtest;
+            } else {
+                uinfo = iv.update(step, fx, dg, stmin, stmax);
+            }
+            step = iv.next;
+
+            // Force a sufficient decrease in the interval of uncertainty.
+            if (iv.brackt) {
+                if (0.66 * prevWidth <= Math.abs(iv.sty - iv.stx)) {
+                    step = iv.stx + 0.5 * (iv.sty - iv.stx);
+                }
+                prevWidth = width;
+                width = Math.abs(iv.sty - iv.stx);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the function and gradient at x, the point of the current step of the line search. The start of the
+     * line search is known from the previous iteration, and steps that were already tried are served from the cache.
+     */
+    private double evaluate(@NotNull LBFGSEvaluate evaluate) {
+        if (step == 0d && pg == null) {
+            g.copyFrom(gp);
+            ++cacheHits;
+            return fxp;
+        }
+        if (cacheSteps != null) {
+            for (int i = 0; i < cacheSize; i++) {
+                if (cacheSteps[i] == step) {
+                    g.copyFrom(cacheG[i]);
+                    ++cacheHits;
+                    return cacheFx[i];
+                }
+            }
+        }
+        long start = listener != null ? System.nanoTime() : 0L;
+        double ret = evaluate.lbfgsEvaluate(x.getValues(), g.getValues(), n, step);
+        if (listener != null) {
+            stats.evaluateNanos += System.nanoTime() - start;
+        }
+        ++evaluations;
+        if (cacheSteps != null) {
+            cacheSteps[cacheNext] = step;
+            cacheFx[cacheNext] = ret;
+            cacheG[cacheNext].copyFrom(g);
+            cacheNext = (cacheNext + 1) % cacheSteps.length;
+            if (cacheSize < cacheSteps.length) {
+                ++cacheSize;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Evaluate the function value alone at x, the point of the current step of the line search.
+     */
+    private double evaluateValue(@NotNull LBFGSValueEvaluate evaluate) {
+        ++valueEvaluations;
+        if (listener == null) {
+            return evaluate.lbfgsValue(x.getValues(), n, step);
+        }
+        long start = System.nanoTime();
+        double ret = evaluate.lbfgsValue(x.getValues(), n, step);
+        stats.evaluateNanos += System.nanoTime() - start;
+        return ret;
+    }
+
+    /**
+     * Whether one more call of the evaluation callback would exceed the budget.
+     */
+    private boolean overBudget() {
+        return (maxEvaluations > 0 && maxEvaluations <= evaluations) ||
+                (timeBudget > 0L && deadline - System.nanoTime() <= 0L);
+    }
+
+    /**
+     * Count an iteration, and predict whether another one, as long and with as many evaluations as the average one
+     * so far, would exceed the budget.
+     */
+    private boolean iterationOverBudget() {
+        ++budgetIterations;
+        if (maxEvaluations > 0 &&
+                maxEvaluations - evaluations < (evaluations + budgetIterations - 1) / budgetIterations) {
+            return true;
+        }
+        if (timeBudget > 0L) {
+            long now = System.nanoTime();
+            return deadline - now < (now - budgetStart) / budgetIterations;
+        }
+        return false;
+    }
+
+    /**
+     * Collect the coordinates of the L1 range where x or d is not zero into owlqnActive, for the next line search, in
+     * the same pass that constrains d to the orthant of the pseudo-gradient, if asked.
+     */
+    private void owlqnActiveSet(boolean constrain) {
+        double[] dv = d.getValues();
+        double[] pgv = pg.getValues();
+        double[] xv = x.getValues();
+        int active = 0;
+        for (int i = params.getOrthantwiseStart(); i < orthantwiseEnd; ++i) {
+            if (constrain && dv[i] * pgv[i] >= 0) {
+                dv[i] = 0;
+            }
+            if (active >= 0 && (xv[i] != 0d || dv[i] != 0d)) {
+                if (active < owlqnActive.length) {
+                    owlqnActive[active++] = i;
+                } else {
+                    active = -1;
+                }
+            }
+        }
+        owlqnActiveCount = active;
+    }
+
+    private double owlqnX1norm(@NotNull LBFGSVector v) {
+        double[] values = v.getValues();
+        double norm = 0d;
+        for (int i = params.getOrthantwiseStart(); i < orthantwiseEnd; ++i) {
+            norm += Math.abs(values[i]);
+        }
+        return norm;
+    }
+
+    /**
+     * Compute the pseudo-gradient of F(x) + C |x| at x into pg.
+     */
+    private void owlqnPseudoGradient() {
+        final double c = params.getOrthantwiseC();
+        final int start = params.getOrthantwiseStart();
+        double[] pgv = pg.getValues();
+        double[] xv = x.getValues();
+        double[] gv = g.getValues();
+
+        // Compute the negative of gradients.
+        System.arraycopy(gv, 0, pgv, 0, start);
+
+        // Compute the psuedo-gradients.
+        for (int i = start; i < orthantwiseEnd; ++i) {
+            if (xv[i] < 0d) {
+                // Differentiable.
+                pgv[i] = gv[i] - c;
+            } else if (0d < xv[i]) {
+                // Differentiable.
+                pgv[i] = gv[i] + c;
+            } else {
+                if (gv[i] < -c) {
+                    // Take the right partial derivative.
+                    pgv[i] = gv[i] + c;
+                } else if (c < gv[i]) {
+                    // Take the left partial derivative.
+                    pgv[i] = gv[i] - c;
+                } else {
+                    pgv[i] = 0d;
+                }
+            }
+        }
+
+        System.arraycopy(gv, orthantwiseEnd, pgv, orthantwiseEnd, n - orthantwiseEnd);
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the counters and timings of every solve of a {@link LBFGSSolver}; see
+ * {@link LBFGSSolver#setListener}.
+ */
+interface LBFGSSolverListener {
+    /**
+     * Called when a solve returns, with its status code, from the thread that ran it.
+     *
+     * @param solver The solver.
+     * @param stats  The counters of the solve. The solver reuses the instance; it is only valid during the call.
+     */
+    void onSolve(@NotNull LBFGSSolver solver, @NotNull LBFGSSolveStats stats);
+}
@@ -0,0 +1,81 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The curvature information of a solve, carried over to the next solve of a related problem.
+ * <p>
+ * Holds the correction pairs (s, y), oldest first, and the scaling gamma = y^t s / y^t y of the initial inverse
+ * hessian. Passing a state to {@link LBFGSSolver#solve(double[], double[], LBFGSEvaluate, LBFGSProgress, LBFGSState)}
+ * starts the solve from the approximation it describes instead of the identity, and replaces its contents with the
+ * final pairs; a fresh state starts empty. The arrays are reused from one solve to the next when possible.
+ */
+public class LBFGSState {
+    private final List<double[]> s = new ArrayList<>();
+    private final List<double[]> y = new ArrayList<>();
+    private double gamma = 1d;
+
+    /**
+     * @return The number of correction pairs.
+     */
+    public int size() {
+        return s.size();
+    }
+
+    @NotNull
+    public double[] getS(int i) {
+        return s.get(i);
+    }
+
+    @NotNull
+    public double[] getY(int i) {
+        return y.get(i);
+    }
+
+    public double getGamma() {
+        return gamma;
+    }
+
+    public void setGamma(double gamma) {
+        this.gamma = gamma;
+    }
+
+    /**
+     * Append a correction pair, as the newest one.
+     */
+    public void addPair(@NotNull double[] s, @NotNull double[] y) {
+        if (s.length != y.length) {
+            throw new IllegalArgumentException("s and y must be the same size");
+        }
+        this.s.add(s);
+        this.y.add(y);
+    }
+
+    public void clear() {
+        s.clear();
+        y.clear();
+        gamma = 1d;
+    }
+
+    /**
+     * Resize to size pairs of n values, reusing the current arrays where possible.
+     */
+    void resize(int size, int n) {
+        while (s.size() > size) {
+            s.remove(s.size() - 1);
+            y.remove(y.size() - 1);
+        }
+        for (int i = 0; i < size; i++) {
+            if (i == s.size()) {
+                s.add(new double[n]);
+                y.add(new double[n]);
+            } else if (s.get(i).length != n || y.get(i).length != n) {
+                s.set(i, new double[n]);
+                y.set(i, new double[n]);
+            }
+        }
+    }
+}
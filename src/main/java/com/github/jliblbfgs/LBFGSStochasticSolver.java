@@ -0,0 +1,275 @@
+package com.github.jliblbfgs;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.github.jliblbfgs.LBFGS.*;
+
+/**
+ * A stochastic quasi-Newton solver that makes a single pass over a stream of samples.
+ * <p>
+ * This follows the SQN method of Byrd, Hansen, Nocedal and Singer (A Stochastic Quasi-Newton Method for Large-Scale
+ * Optimization, SIAM J. Optim. 26(2), 2016). The samples are grouped into mini-batches of {@code sqn_batch_size},
+ * and each mini-batch takes one step {@code x <- x - step * H g} with the mini-batch gradient g and a step from a fixed
+ * schedule, without a line search. The correction pairs are not taken from consecutive iterates, which are too noisy,
+ * but every {@code sqn_update_interval} iterations from the averages of the last iterates: s is the difference of two
+ * consecutive averages and y the difference of the gradients at these averages on the current mini-batch. Pairs that
+ * violate the curvature condition are skipped. H is the identity until the first pair is stored.
+ * <p>
+ * Like {@link LBFGSSolver}, all the workspace is allocated in the constructor and instances are not thread-safe.
+ */
+public class LBFGSStochasticSolver {
+    private final int n;
+    private final LBFGSProto.Params params;
+    private final int m;
+
+    private final LBFGSVector x;
+    private final LBFGSVector g;
+    private final LBFGSVector d;
+    /**
+     * The sum of the iterates since the last update, then their average.
+     */
+    private final LBFGSVector xbar;
+    private final LBFGSVector xbarPrev;
+    private final LBFGSVector gbar;
+    private final LBFGSVector gbarPrev;
+
+    private final LBFGSVector[] s;
+    private final LBFGSVector[] y;
+    private final double[] rho;
+    private final double[] alpha;
+    /**
+     * The scaling ys / yy of the initial inverse hessian, from the newest pair.
+     */
+    private double gamma;
+    private int end;
+    private int pairs;
+
+    private double fx;
+
+    /**
+     * @param n       The number of variables.
+     * @param params  The parameters for L-BFGS optimization. If null, the default parameters are used.
+     * @param factory The factory used to allocate the working vectors, and the correction history unless
+     *                {@code float_history} is set.
+     */
+    public LBFGSStochasticSolver(int n, @Nullable LBFGSProto.Params params, @NotNull LBFGSVector.IFactory factory) {
+        this(n, params, factory,
+                params != null && params.getFloatHistory() ? new LBFGSFloatVector.Factory() : factory);
+    }
+
+    /**
+     * @param n              The number of variables.
+     * @param params         The parameters for L-BFGS optimization. If null, the default parameters are used.
+     * @param factory        The factory used to allocate the working vectors, which must be heap vectors.
+     * @param historyFactory The factory used to allocate the m (s, y) correction pairs.
+     */
+    public LBFGSStochasticSolver(
+            int n,
+            @Nullable LBFGSProto.Params params,
+            @NotNull LBFGSVector.IFactory factory,
+            @NotNull LBFGSVector.IFactory historyFactory) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive: " + n);
+        }
+        this.n = n;
+        this.params = params != null ? params : LBFGSProto.Params.getDefaultInstance();
+        this.m = Math.max(this.params.getM(), 0);
+
+        x = factory.createVector(n);
+        g = factory.createVector(n);
+        d = factory.createVector(n);
+        xbar = factory.createVector(n);
+        xbarPrev = factory.createVector(n);
+        gbar = factory.createVector(n);
+        gbarPrev = factory.createVector(n);
+        if (x.VALUES == null) {
+            throw new IllegalArgumentException("The working vectors must be heap vectors");
+        }
+
+        s = new LBFGSVector[m];
+        y = new LBFGSVector[m];
+        for (int i = 0; i < m; i++) {
+            s[i] = historyFactory.createVector(n);
+            y[i] = historyFactory.createVector(n);
+        }
+        rho = new double[m];
+        alpha = new double[m];
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    @NotNull
+    public LBFGSProto.Params getParams() {
+        return params;
+    }
+
+    private int validate() {
+        int ret = LBFGSSolver.validate(params, n);
+        if (ret != 0) return ret;
+        // OWL-QN needs a line search.
+        if (params.getOrthantwiseC() != 0d) return LBFGSERR_INVALID_ORTHANTWISE;
+        if (params.getSqnBatchSize() <= 0 || params.getSqnUpdateInterval() <= 0) return LBFGSERR_INVALIDPARAMETERS;
+        if (params.getSqnStep() <= 0d || params.getSqnStepDecay() < 0d) return LBFGSERR_INVALIDPARAMETERS;
+        return 0;
+    }
+
+    /**
+     * Start a stochastic optimization, which runs until the samples are exhausted.
+     *
+     * @param x        The array of variables, at least n long. It holds the starting point on entry and receives the
+     *                 result on return.
+     * @param ptrFx    If not null, {@code ptrFx[0]} receives the value of the objective function on the last
+     *                 mini-batch, before the last step.
+     * @param samples  The samples, typically streamed from disk; use {@code stream.iterator()} for a stream.
+     * @param evaluate The callback function to evaluate the objective on a mini-batch.
+     * @param progress The callback function to receive the progress after each step, with the mini-batch value and
+     *                 gradient and one evaluation per iteration. May be null.
+     * @return {@link LBFGS#LBFGS_STOP} once all samples have been used, or the status code; see {@link LBFGS#lbfgs}.
+     */
+    public <T> int solve(
+            @NotNull double[] x,
+            @Nullable double[] ptrFx,
+            @NotNull Iterator<? extends T> samples,
+            @NotNull LBFGSMiniBatchEvaluate<T> evaluate,
+            @Nullable LBFGSProgress progress) {
+        if (x.length < n) {
+            return LBFGSERR_INVALID_N;
+        }
+        int ret = validate();
+        if (ret != 0) {
+            return ret;
+        }
+
+        System.arraycopy(x, 0, this.x.getValues(), 0, n);
+        fx = 0d;
+        try {
+            ret = run(samples, evaluate, progress);
+        } finally {
+            System.arraycopy(this.x.getValues(), 0, x, 0, n);
+        }
+        if (ptrFx != null) {
+            ptrFx[0] = fx;
+        }
+        return ret;
+    }
+
+    private <T> int run(
+            @NotNull Iterator<? extends T> samples,
+            @NotNull LBFGSMiniBatchEvaluate<T> evaluate,
+            @Nullable LBFGSProgress progress) {
+        final int batchSize = params.getSqnBatchSize();
+        final int interval = params.getSqnUpdateInterval();
+        final List<T> batch = new ArrayList<>(batchSize);
+        boolean averaged = false;
+        pairs = 0;
+        end = 0;
+        xbar.fill(0d);
+
+        for (int k = 0; ; ) {
+            batch.clear();
+            while (batch.size() < batchSize && samples.hasNext()) {
+                batch.add(samples.next());
+            }
+            if (batch.isEmpty()) {
+                return LBFGS_STOP;
+            }
+
+            // Take a step along -H g.
+            fx = evaluate.lbfgsEvaluate(batch, x.getValues(), g.getValues(), n);
+            direction();
+            double step = params.getSqnStep() / (1d + params.getSqnStepDecay() * k);
+            x.addWithMultiplier(d, step);
+            xbar.addWithMultiplier(x, 1d);
+            ++k;
+
+            if (k % interval == 0) {
+                xbar.scale(1d / interval);
+                if (averaged) {
+                    updatePair(batch, evaluate);
+                }
+                xbarPrev.copyFrom(xbar);
+                xbar.fill(0d);
+                averaged = true;
+            }
+
+            // Report the progress.
+            if (progress != null) {
+                int cancel = progress.lbfgsProgress(
+                        x.getValues(), g.getValues(), fx, x.norm(x), g.norm(g), step, n, k, 1);
+                if (cancel != 0) {
+                    return cancel;
+                }
+            }
+
+            if (params.getMaxIterations() != 0 && params.getMaxIterations() <= k) {
+                // Maximum number of iterations.
+                return LBFGSERR_MAXIMUMITERATION;
+            }
+        }
+    }
+
+    /**
+     * Form a correction pair from the averages xbarPrev and xbar, with gradients on the given mini-batch.
+     */
+    private <T> void updatePair(@NotNull List<T> batch, @NotNull LBFGSMiniBatchEvaluate<T> evaluate) {
+        evaluate.lbfgsEvaluate(batch, xbar.getValues(), gbar.getValues(), n);
+        evaluate.lbfgsEvaluate(batch, xbarPrev.getValues(), gbarPrev.getValues(), n);
+
+        // gbar <- y and xbarPrev <- s; xbarPrev is overwritten with xbar afterwards anyway.
+        double yy = gbar.copyDiffAndDot(gbar, gbarPrev, gbar);
+        double ys = xbarPrev.copyDiffAndDot(xbar, xbarPrev, gbar);
+        if (!(ys > 0d)) {
+            // Keep the approximation positive definite.
+            return;
+        }
+        s[end].copyFrom(xbarPrev);
+        y[end].copyFrom(gbar);
+        rho[end] = 1d / ys;
+        gamma = ys / yy;
+        end = (end + 1) % m;
+        if (pairs < m) {
+            ++pairs;
+        }
+    }
+
+    /**
+     * Compute d = -H g with the two-loop recursion over the stored pairs.
+     */
+    private void direction() {
+        if (pairs == 0) {
+            d.copyNegativeFrom(g);
+            return;
+        }
+
+        int j = (end + m - 1) % m;
+        alpha[j] = rho[j] * d.copyNegativeFromAndDot(g, s[j]);
+        for (int i = 0; i < pairs; ++i) {
+            if (i + 1 < pairs) {
+                int prev = (j + m - 1) % m;
+                alpha[prev] = rho[prev] * d.addWithMultiplierAndDot(y[j], -alpha[j], s[prev]);
+                j = prev;
+            } else {
+                d.addWithMultiplier(y[j], -alpha[j]);
+            }
+        }
+
+        double yd = d.scaleAndDot(gamma, y[j]);
+        for (int i = 0; i < pairs; ++i) {
+            double beta = rho[j] * yd;
+            if (i + 1 < pairs) {
+                int next = (j + 1) % m;
+                yd = d.addWithMultiplierAndDot(s[j], alpha[j] - beta, y[next]);
+                j = next;
+            } else {
+                d.addWithMultiplier(s[j], alpha[j] - beta);
+            }
+        }
+    }
+}
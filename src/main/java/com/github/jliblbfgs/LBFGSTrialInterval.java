@@ -0,0 +1,234 @@
+package com.github.jliblbfgs;
+
+/**
+ * The interval of uncertainty maintained by the More-Thuente line search.
+ * <p>
+ * liblbfgs passes the endpoints of the interval to update_trial_interval() by pointer; here they are fields so a
+ * single instance can live in the solver workspace and be reused for every line search.
+ */
+class LBFGSTrialInterval {
+    /**
+     * The step, function value and directional derivative at the best step so far.
+     */
+    double stx, fx, dgx;
+
+    /**
+     * The step, function value and directional derivative at the other endpoint of the interval.
+     */
+    double sty, fy, dgy;
+
+    /**
+     * Whether the minimizer has been bracketed.
+     */
+    boolean brackt;
+
+    /**
+     * The new trial value computed by the last call to {@link #update}.
+     */
+    double next;
+
+    void reset(double finit, double dginit) {
+        brackt = false;
+        stx = sty = 0d;
+        fx = fy = finit;
+        dgx = dgy = dginit;
+        next = 0d;
+    }
+
+    /**
+     * Update a safeguarded trial value and interval for line search.
+     * <p>
+     * The parameter x represents the step with the least function value. The parameter t represents the current
+     * step. This function assumes that the derivative at the point of x in the direction of the step. If the bracket
+     * is set to true, the minimizer has been bracketed in an interval of uncertainty with endpoints between x and y.
+     *
+     * @param t    The value of the current step.
+     * @param ft   The value of the function at t.
+     * @param dt   The derivative of the function at t.
+     * @param tmin The minimum value for the step.
+     * @param tmax The maximum value for the step.
+     * @return Status value. Zero indicates a normal termination; {@link #next} holds the new trial value.
+     */
+    int update(double t, double ft, double dt, double tmin, double tmax) {
+        boolean bound;
+        boolean dsign = dt * (dgx / Math.abs(dgx)) < 0d;
+        double mc; // minimizer of an interpolated cubic.
+        double mq; // minimizer of an interpolated quadratic.
+        double newt; // new trial value.
+
+        next = t;
+
+        // Check the input parameters for errors.
+        if (brackt) {
+            if (t <= Math.min(stx, sty) || Math.max(stx, sty) <= t) {
+                // The trival value t is out of the interval.
+                return LBFGS.LBFGSERR_OUTOFINTERVAL;
+            }
+            if (0d <= dgx * (t - stx)) {
+                // The function must decrease from x.
+                return LBFGS.LBFGSERR_INCREASEGRADIENT;
+            }
+            if (tmax < tmin) {
+                // Incorrect tmin and tmax specified.
+                return LBFGS.LBFGSERR_INCORRECT_TMINMAX;
+            }
+        }
+
+        // Trial value selection.
+        if (fx < ft) {
+            // Case 1: a higher function value. The minimum is brackt. If the cubic minimizer is closer to x than
+            // the quadratic one, the cubic one is taken, else the average of the minimizers is taken.
+            brackt = true;
+            bound = true;
+            mc = cubicMinimizer(stx, fx, dgx, t, ft, dt);
+            mq = quadMinimizer(stx, fx, dgx, t, ft);
+            if (Math.abs(mc - stx) < Math.abs(mq - stx)) {
+                newt = mc;
+            } else {
+                newt = mc + 0.5 * (mq - mc);
+            }
+        } else if (dsign) {
+            // Case 2: a lower function value and derivatives of opposite sign. The minimum is brackt. If the cubic
+            // minimizer is closer to x than the quadratic (secant) one, the cubic one is taken, else the quadratic
+            // one is taken.
+            brackt = true;
+            bound = false;
+            mc = cubicMinimizer(stx, fx, dgx, t, ft, dt);
+            mq = quadMinimizer2(stx, dgx, t, dt);
+            if (Math.abs(mc - t) > Math.abs(mq - t)) {
+                newt = mc;
+            } else {
+                newt = mq;
+            }
+        } else if (Math.abs(dt) < Math.abs(dgx)) {
+            // Case 3: a lower function value, derivatives of the same sign, and the magnitude of the derivative
+            // decreases. The cubic minimizer is only used if the cubic tends to infinity in the direction of the
+            // minimizer or if the minimum of the cubic is beyond t. Otherwise the cubic minimizer is defined to be
+            // either tmin or tmax. The quadratic (secant) minimizer is also computed and if the minimum is brackt
+            // then the the minimizer closest to x is taken, else the one farthest away is taken.
+            bound = true;
+            mc = cubicMinimizer2(stx, fx, dgx, t, ft, dt, tmin, tmax);
+            mq = quadMinimizer2(stx, dgx, t, dt);
+            if (brackt) {
+                if (Math.abs(t - mc) < Math.abs(t - mq)) {
+                    newt = mc;
+                } else {
+                    newt = mq;
+                }
+            } else {
+                if (Math.abs(t - mc) > Math.abs(t - mq)) {
+                    newt = mc;
+                } else {
+                    newt = mq;
+                }
+            }
+        } else {
+            // Case 4: a lower function value, derivatives of the same sign, and the magnitude of the derivative
+            // does not decrease. If the minimum is not brackt, the step is either tmin or tmax, else the cubic
+            // minimizer is taken.
+            bound = false;
+            if (brackt) {
+                newt = cubicMinimizer(t, ft, dt, sty, fy, dgy);
+            } else if (stx < t) {
+                newt = tmax;
+            } else {
+                newt = tmin;
+            }
+        }
+
+        // Update the interval of uncertainty. This update does not depend on the new step or the case analysis
+        // above.
+        // - Case a: if f(x) < f(t), x <- x, y <- t.
+        // - Case b: if f(t) <= f(x) && f'(t)*f'(x) > 0, x <- t, y <- y.
+        // - Case c: if f(t) <= f(x) && f'(t)*f'(x) < 0, x <- t, y <- x.
+        if (fx < ft) {
+            // Case a
+            sty = t;
+            fy = ft;
+            dgy = dt;
+        } else {
+            // Case c
+            if (dsign) {
+                sty = stx;
+                fy = fx;
+                dgy = dgx;
+            }
+            // Cases b and c
+            stx = t;
+            fx = ft;
+            dgx = dt;
+        }
+
+        // Clip the new trial value in [tmin, tmax].
+        if (tmax < newt) newt = tmax;
+        if (newt < tmin) newt = tmin;
+
+        // Redefine the new trial value if it is close to the upper bound of the interval.
+        if (brackt && bound) {
+            mq = stx + 0.66 * (sty - stx);
+            if (stx < sty) {
+                if (mq < newt) newt = mq;
+            } else {
+                if (newt < mq) newt = mq;
+            }
+        }
+
+        next = newt;
+        return 0;
+    }
+
+    /**
+     * Find a minimizer of an interpolated cubic function.
+     */
+    private static double cubicMinimizer(double u, double fu, double du, double v, double fv, double dv) {
+        double d = v - u;
+        double theta = (fu - fv) * 3 / d + du + dv;
+        double s = Math.max(Math.max(Math.abs(theta), Math.abs(du)), Math.abs(dv));
+        double a = theta / s;
+        double gamma = s * Math.sqrt(a * a - (du / s) * (dv / s));
+        if (v < u) gamma = -gamma;
+        double p = gamma - du + theta;
+        double q = gamma - du + gamma + dv;
+        double r = p / q;
+        return u + r * d;
+    }
+
+    /**
+     * Find a minimizer of an interpolated cubic function, clipped to [xmin, xmax].
+     */
+    private static double cubicMinimizer2(
+            double u, double fu, double du, double v, double fv, double dv, double xmin, double xmax) {
+        double d = v - u;
+        double theta = (fu - fv) * 3 / d + du + dv;
+        double s = Math.max(Math.max(Math.abs(theta), Math.abs(du)), Math.abs(dv));
+        double a = theta / s;
+        double gamma = s * Math.sqrt(Math.max(0d, a * a - (du / s) * (dv / s)));
+        if (u < v) gamma = -gamma;
+        double p = gamma - dv + theta;
+        double q = gamma - dv + gamma + du;
+        double r = p / q;
+        if (r < 0d && gamma != 0d) {
+            return v - r * d;
+        } else if (a < 0) {
+            return xmax;
+        } else {
+            return xmin;
+        }
+    }
+
+    /**
+     * Find a minimizer of an interpolated quadratic function.
+     */
+    private static double quadMinimizer(double u, double fu, double du, double v, double fv) {
+        double a = v - u;
+        return u + du / ((fu - fv) / a + du) / 2 * a;
+    }
+
+    /**
+     * Find a minimizer of an interpolated quadratic function from the derivatives only.
+     */
+    private static double quadMinimizer2(double u, double du, double v, double dv) {
+        double a = u - v;
+        return v + dv / (dv - du) * a;
+    }
+}
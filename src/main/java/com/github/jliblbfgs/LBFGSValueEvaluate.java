@@ -0,0 +1,27 @@
+package com.github.jliblbfgs;
+
+/**
+ * An evaluation callback that can also compute the objective function alone, for objectives whose gradient costs
+ * much more than their value.
+ * <p>
+ * The backtracking line searches test each trial step for sufficient decrease with {@link #lbfgsValue} first, and
+ * call {@link #lbfgsEvaluate} only for the steps that pass, where the gradient is needed to accept the step or to test
+ * the Wolfe conditions. The More-Thuente line search needs the gradient at every trial and always calls
+ * {@link #lbfgsEvaluate}.
+ */
+interface LBFGSValueEvaluate extends LBFGSEvaluate {
+    /**
+     * Compute the objective function at the current values of variables, without its gradient.
+     * <p>
+     * The value must be the one that {@link #lbfgsEvaluate} returns for the same variables.
+     *
+     * @param x    The current values of variables.
+     * @param n    The number of variables.
+     * @param step The current step of the line search routine.
+     * @return The value of the objective function for the current variables.
+     */
+    double lbfgsValue(
+            double[] x,
+            int n,
+            double step);
+}
@@ -1,8 +1,11 @@
 package com.github.jliblbfgs;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by scr on 3/15/16.
@@ -11,86 +14,479 @@ public class LBFGSVector {
     /**
      * Force the use of factory in case there is any benefit from choosing methods/implementations based on the size.
      */
-    interface IFactory {
+    public interface IFactory {
         LBFGSVector createVector(int n);
 
         LBFGSVector createVector(@NotNull double[] values);
 
         default LBFGSVector createVector(@NotNull LBFGSVector other) {
-            return createVector(other.getValues());
+            LBFGSVector ret = createVector(other.size());
+            ret.copyFrom(other);
+            return ret;
         }
     }
 
+    /**
+     * Creates plain sequential vectors below {@link #getParallelThreshold()} elements and fork-join vectors at or
+     * above it. For small vectors the cost of dispatching to the common pool dominates the arithmetic; for large ones
+     * the sequential loops leave cores idle.
+     * <p>
+     * A compensated factory creates compensated fork-join vectors of every size, whose dot products, norms and fused
+     * kernels carry the rounding error of their products and sums; see {@link LBFGSForkJoinVector}. They are slower,
+     * but their results are much more accurate on long vectors and only depend on the chunk size, not on the number
+     * of threads or the parallel threshold.
+     * <p>
+     * The vectors of these factories are deterministic: every parallel kernel splits the vectors into chunks of a
+     * fixed size, and combines their sums with a fixed tree, so a solve gives bit for bit the same result on any
+     * number of cores, as long as the parallel threshold and the chunk size stay the same. The fork-join kernels run
+     * on a given pool rather than the common one when one is set, so that a solver does not compete with the other
+     * users of the common pool.
+     */
     public static class Factory implements IFactory {
+        /**
+         * The default length at which vectors switch to the fork-join kernels.
+         */
+        public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 16;
+
+        /**
+         * The default number of elements handled by a single fork-join leaf task.
+         */
+        public static final int DEFAULT_CHUNK_SIZE = 1 << 14;
+
+        private final int parallelThreshold;
+        private final int chunkSize;
+        private final boolean compensated;
+        @Nullable
+        private final ForkJoinPool pool;
+
+        public Factory() {
+            this(DEFAULT_PARALLEL_THRESHOLD, DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * @param parallelThreshold Vectors with at least this many elements use the fork-join kernels.
+         * @param chunkSize         The number of elements handled by a single fork-join leaf task.
+         */
+        public Factory(int parallelThreshold, int chunkSize) {
+            this(parallelThreshold, chunkSize, false);
+        }
+
+        /**
+         * @param parallelThreshold Vectors with at least this many elements use the fork-join kernels.
+         * @param chunkSize         The number of elements handled by a single fork-join leaf task.
+         * @param compensated       Whether to create compensated vectors, of every size.
+         */
+        public Factory(int parallelThreshold, int chunkSize, boolean compensated) {
+            this(parallelThreshold, chunkSize, compensated, null);
+        }
+
+        /**
+         * @param parallelThreshold Vectors with at least this many elements use the fork-join kernels.
+         * @param chunkSize         The number of elements handled by a single fork-join leaf task.
+         * @param compensated       Whether to create compensated vectors, of every size.
+         * @param pool              The pool that runs the fork-join kernels, or null for the common pool. Kernels
+         *                          called from a task of another pool run in that pool.
+         */
+        public Factory(int parallelThreshold, int chunkSize, boolean compensated, @Nullable ForkJoinPool pool) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+            }
+            this.parallelThreshold = parallelThreshold;
+            this.chunkSize = chunkSize;
+            this.compensated = compensated;
+            this.pool = pool;
+        }
+
+        /**
+         * @return A factory of compensated vectors with the default chunk size.
+         */
+        @NotNull
+        public static Factory compensated() {
+            return new Factory(DEFAULT_PARALLEL_THRESHOLD, DEFAULT_CHUNK_SIZE, true);
+        }
+
+        public int getParallelThreshold() {
+            return parallelThreshold;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public boolean isCompensated() {
+            return compensated;
+        }
+
+        @Nullable
+        public ForkJoinPool getPool() {
+            return pool;
+        }
+
+        @Override
         public LBFGSVector createVector(int n) {
+            if (compensated || n >= parallelThreshold) {
+                return new LBFGSForkJoinVector(n, chunkSize, compensated, pool);
+            }
             return new LBFGSVector(n);
         }
 
         @Override
         public LBFGSVector createVector(@NotNull double[] values) {
             int length = values.length;
-            LBFGSVector ret = new LBFGSVector(length);
+            LBFGSVector ret = createVector(length);
             System.arraycopy(values, 0, ret.VALUES, 0, length);
             return ret;
         }
     }
 
-    private final double[] VALUES;
+    /**
+     * Loads the SIMD factory on first use.
+     */
+    private static class SimdFactoryHolder {
+        @Nullable
+        static final IFactory FACTORY = load();
+
+        @Nullable
+        private static IFactory load() {
+            try {
+                IFactory factory = (IFactory) Class.forName("com.github.jliblbfgs.LBFGSSimdVector$Factory")
+                        .getDeclaredConstructor()
+                        .newInstance();
+                // Link the kernels now: this fails if the jdk.incubator.vector module is not present.
+                LBFGSVector probe = factory.createVector(1);
+                probe.dot(probe);
+                return factory;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A factory of vectors whose kernels use the Vector API; see {@code LBFGSSimdVector}. These are only available on
+     * Java 17 or later, from the multi-release jar, with {@code --add-modules jdk.incubator.vector}.
+     * <p>
+     * Their reductions depend on the width of the SIMD registers, so unlike those of {@link Factory} their results
+     * may differ from one machine to another.
+     *
+     * @return The factory, or null if the Vector API is not available.
+     */
+    @Nullable
+    public static IFactory simdFactory() {
+        return SimdFactoryHolder.FACTORY;
+    }
+
+    /**
+     * @return The {@link #simdFactory()} if it is available, otherwise a {@link Factory}.
+     */
+    @NotNull
+    public static IFactory preferredFactory() {
+        IFactory ret = simdFactory();
+        return ret != null ? ret : new Factory();
+    }
+
+    /**
+     * The backing array, or null for vectors stored outside of the heap, which override {@link #size()},
+     * {@link #get(int)} and {@link #set(int, double)} instead.
+     */
+    final double[] VALUES;
 
     LBFGSVector(int size) {
         VALUES = new double[size];
     }
 
+    /**
+     * For subclasses that manage their own storage.
+     */
+    LBFGSVector() {
+        VALUES = null;
+    }
+
+    public int size() {
+        return VALUES.length;
+    }
+
+    double get(int i) {
+        return VALUES[i];
+    }
+
+    void set(int i, double val) {
+        VALUES[i] = val;
+    }
+
+    /**
+     * Whether this vector and other are both backed by heap arrays, so the array kernels can be used.
+     */
+    final boolean onHeap(@NotNull LBFGSVector other) {
+        return VALUES != null && other.VALUES != null;
+    }
+
+    final boolean onHeap(@NotNull LBFGSVector a, @NotNull LBFGSVector b) {
+        return VALUES != null && a.VALUES != null && b.VALUES != null;
+    }
+
+    /**
+     * @return The backing array of a heap vector.
+     * @throws UnsupportedOperationException if the vector is not stored on the heap; use {@link #getBuffer()}.
+     */
     @NotNull
     public double[] getValues() {
         return VALUES;
     }
 
+    /**
+     * @return A view of the values that does not copy them, for any kind of vector.
+     */
+    @NotNull
+    public DoubleBuffer getBuffer() {
+        return DoubleBuffer.wrap(VALUES);
+    }
+
     public void fill(double val) {
+        if (VALUES == null) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, val);
+            }
+            return;
+        }
         Arrays.fill(VALUES, val);
     }
 
     public void copyFrom(@NotNull LBFGSVector other) {
-        assert VALUES.length == other.VALUES.length : "Vectors must be the same size";
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, other.get(i));
+            }
+            return;
+        }
         System.arraycopy(other.VALUES, 0, VALUES, 0, VALUES.length);
     }
 
-    private double getNegative(int offset) {
-        return -VALUES[offset];
-    }
-
     public void copyNegativeFrom(@NotNull LBFGSVector other) {
-        assert VALUES.length == other.VALUES.length : "Vectors must be the same size";
-        // TODO(scr): Is parallel any better than sequential?
-        Arrays.parallelSetAll(VALUES, other::getNegative);
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, -other.get(i));
+            }
+            return;
+        }
+        final double[] otherValues = other.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -otherValues[i];
+        }
     }
 
     public void addWithMultiplier(@NotNull LBFGSVector other, double multiplier) {
-        assert VALUES.length == other.VALUES.length : "Vectors must be the same size";
-        // TODO(scr): Is parallel any better than sequential?
-        Arrays.parallelSetAll(VALUES, i -> VALUES[i] + multiplier * other.VALUES[i]);
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            final float[] otherFloats = LBFGSFloatVector.floatsOf(other);
+            if (VALUES != null && otherFloats != null) {
+                for (int i = 0; i < VALUES.length; i++) {
+                    VALUES[i] += multiplier * otherFloats[i];
+                }
+                return;
+            }
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, get(i) + multiplier * other.get(i));
+            }
+            return;
+        }
+        final double[] otherValues = other.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] += multiplier * otherValues[i];
+        }
     }
 
     public void copyDiff(@NotNull LBFGSVector a, @NotNull LBFGSVector b) {
-        assert VALUES.length == a.VALUES.length && VALUES.length == b.VALUES.length : "Vectors must be the same size";
-        // TODO(scr): Is parallel any better than sequential?
-        Arrays.parallelSetAll(VALUES, i -> a.VALUES[i] - b.VALUES[i]);
+        assert size() == a.size() && size() == b.size() : "Vectors must be the same size";
+        if (!onHeap(a, b)) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, a.get(i) - b.get(i));
+            }
+            return;
+        }
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = aValues[i] - bValues[i];
+        }
     }
 
     public void scale(double multiplier) {
-        Arrays.parallelSetAll(VALUES, i -> multiplier * VALUES[i]);
+        if (VALUES == null) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, multiplier * get(i));
+            }
+            return;
+        }
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] *= multiplier;
+        }
     }
 
     public void mul(@NotNull LBFGSVector other) {
-        assert VALUES.length == other.VALUES.length : "Vectors must be the same size";
-        Arrays.parallelSetAll(VALUES, i -> VALUES[i] * other.VALUES[i]);
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, get(i) * other.get(i));
+            }
+            return;
+        }
+        final double[] otherValues = other.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] *= otherValues[i];
+        }
     }
 
     public double dot(@NotNull LBFGSVector other) {
-        assert VALUES.length == other.VALUES.length : "Vectors must be the same size";
+        assert size() == other.size() : "Vectors must be the same size";
+        double ret = 0d;
+        if (!onHeap(other)) {
+            final float[] otherFloats = LBFGSFloatVector.floatsOf(other);
+            if (VALUES != null && otherFloats != null) {
+                for (int i = 0; i < VALUES.length; i++) {
+                    ret += VALUES[i] * otherFloats[i];
+                }
+                return ret;
+            }
+            for (int i = 0, size = size(); i < size; i++) {
+                ret += get(i) * other.get(i);
+            }
+            return ret;
+        }
+        final double[] otherValues = other.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            ret += VALUES[i] * otherValues[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Fused {@code copyNegativeFrom(other)} followed by {@code dot(dotWith)} in a single pass.
+     *
+     * @return The dot product of the updated vector with dotWith.
+     */
+    public double copyNegativeFromAndDot(@NotNull LBFGSVector other, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() : "Vectors must be the same size";
         double ret = 0d;
+        if (!onHeap(other, dotWith)) {
+            final float[] dotFloats = LBFGSFloatVector.floatsOf(dotWith);
+            if (onHeap(other) && dotFloats != null) {
+                // The gradient against a float history.
+                final double[] otherValues = other.VALUES;
+                for (int i = 0; i < VALUES.length; i++) {
+                    VALUES[i] = -otherValues[i];
+                    ret += VALUES[i] * dotFloats[i];
+                }
+                return ret;
+            }
+            for (int i = 0, size = size(); i < size; i++) {
+                double val = -other.get(i);
+                set(i, val);
+                ret += val * dotWith.get(i);
+            }
+            return ret;
+        }
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
         for (int i = 0; i < VALUES.length; i++) {
-            ret += VALUES[i] * other.VALUES[i];
+            VALUES[i] = -otherValues[i];
+            ret += VALUES[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Fused {@code addWithMultiplier(other, multiplier)} followed by {@code dot(dotWith)} in a single pass.
+     *
+     * @return The dot product of the updated vector with dotWith.
+     */
+    public double addWithMultiplierAndDot(
+            @NotNull LBFGSVector other, double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() : "Vectors must be the same size";
+        double ret = 0d;
+        if (!onHeap(other, dotWith)) {
+            final float[] otherFloats = LBFGSFloatVector.floatsOf(other);
+            final float[] dotFloats = LBFGSFloatVector.floatsOf(dotWith);
+            if (VALUES != null && otherFloats != null && dotFloats != null) {
+                // Both from a float history.
+                for (int i = 0; i < VALUES.length; i++) {
+                    VALUES[i] += multiplier * otherFloats[i];
+                    ret += VALUES[i] * dotFloats[i];
+                }
+                return ret;
+            }
+            for (int i = 0, size = size(); i < size; i++) {
+                double val = get(i) + multiplier * other.get(i);
+                set(i, val);
+                ret += val * dotWith.get(i);
+            }
+            return ret;
+        }
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] += multiplier * otherValues[i];
+            ret += VALUES[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Fused {@code copyDiff(a, b)} followed by {@code dot(dotWith)} in a single pass. dotWith may be this vector.
+     *
+     * @return The dot product of the updated vector with dotWith.
+     */
+    public double copyDiffAndDot(@NotNull LBFGSVector a, @NotNull LBFGSVector b, @NotNull LBFGSVector dotWith) {
+        assert size() == a.size() && size() == b.size() && size() == dotWith.size() :
+                "Vectors must be the same size";
+        double ret = 0d;
+        if (!onHeap(a, b) || dotWith.VALUES == null) {
+            for (int i = 0, size = size(); i < size; i++) {
+                set(i, a.get(i) - b.get(i));
+                ret += get(i) * dotWith.get(i);
+            }
+            return ret;
+        }
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = aValues[i] - bValues[i];
+            ret += VALUES[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Fused {@code scale(multiplier)} followed by {@code dot(dotWith)} in a single pass.
+     *
+     * @return The dot product of the updated vector with dotWith.
+     */
+    public double scaleAndDot(double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == dotWith.size() : "Vectors must be the same size";
+        double ret = 0d;
+        if (!onHeap(dotWith)) {
+            final float[] dotFloats = LBFGSFloatVector.floatsOf(dotWith);
+            if (VALUES != null && dotFloats != null) {
+                for (int i = 0; i < VALUES.length; i++) {
+                    VALUES[i] *= multiplier;
+                    ret += VALUES[i] * dotFloats[i];
+                }
+                return ret;
+            }
+            for (int i = 0, size = size(); i < size; i++) {
+                double val = multiplier * get(i);
+                set(i, val);
+                ret += val * dotWith.get(i);
+            }
+            return ret;
+        }
+        final double[] dotValues = dotWith.VALUES;
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] *= multiplier;
+            ret += VALUES[i] * dotValues[i];
         }
         return ret;
     }
@@ -110,16 +506,42 @@ public class LBFGSVector {
 
         LBFGSVector that = (LBFGSVector) o;
 
+        if (!onHeap(that)) {
+            if (size() != that.size()) return false;
+            for (int i = 0, size = size(); i < size; i++) {
+                if (Double.doubleToLongBits(get(i)) != Double.doubleToLongBits(that.get(i))) return false;
+            }
+            return true;
+        }
         return Arrays.equals(VALUES, that.VALUES);
     }
 
+    /**
+     * Same as {@link Arrays#hashCode(double[])} of the values, whatever the storage.
+     */
     @Override
     public int hashCode() {
+        if (VALUES == null) {
+            int result = 1;
+            for (int i = 0, size = size(); i < size; i++) {
+                long bits = Double.doubleToLongBits(get(i));
+                result = 31 * result + (int) (bits ^ (bits >>> 32));
+            }
+            return result;
+        }
         return Arrays.hashCode(VALUES);
     }
 
     @Override
     public String toString() {
+        if (VALUES == null) {
+            StringBuilder builder = new StringBuilder("[");
+            for (int i = 0, size = size(); i < size; i++) {
+                if (i > 0) builder.append(", ");
+                builder.append(get(i));
+            }
+            return builder.append(']').toString();
+        }
         return Arrays.toString(VALUES);
     }
 }
@@ -0,0 +1,294 @@
+package com.github.jliblbfgs;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A heap vector whose kernels use the incubating Vector API, so that they run on the widest SIMD registers of the
+ * machine without relying on auto-vectorization.
+ * <p>
+ * The element-wise kernels compute exactly what the sequential ones do. The reductions keep one partial sum per lane,
+ * and {@link #dot} several vectors of them, so unlike the sequential kernels they are not bound by the latency of a
+ * single chain of additions; their results differ from the sequential ones in the last bits.
+ * <p>
+ * This class is only built for Java 17 and later, into the versioned part of the multi-release jar, and needs
+ * {@code --add-modules jdk.incubator.vector} at run time; use {@link LBFGSVector#simdFactory()} to get its factory
+ * when it is available.
+ */
+public class LBFGSSimdVector extends LBFGSVector {
+    /**
+     * Creates SIMD vectors below the parallel threshold, and fork-join vectors at or above it, like
+     * {@link LBFGSVector.Factory}; a compensated factory only creates compensated fork-join vectors.
+     */
+    public static class Factory extends LBFGSVector.Factory {
+        public Factory() {
+        }
+
+        public Factory(int parallelThreshold, int chunkSize) {
+            super(parallelThreshold, chunkSize);
+        }
+
+        public Factory(int parallelThreshold, int chunkSize, boolean compensated) {
+            super(parallelThreshold, chunkSize, compensated);
+        }
+
+        public Factory(int parallelThreshold, int chunkSize, boolean compensated, @Nullable ForkJoinPool pool) {
+            super(parallelThreshold, chunkSize, compensated, pool);
+        }
+
+        @Override
+        public LBFGSVector createVector(int n) {
+            return n >= getParallelThreshold() || isCompensated() ? super.createVector(n) : new LBFGSSimdVector(n);
+        }
+    }
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    LBFGSSimdVector(int size) {
+        super(size);
+    }
+
+    @Override
+    public void copyNegativeFrom(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.copyNegativeFrom(other);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, otherValues, i).neg().intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] = -otherValues[i];
+        }
+    }
+
+    @Override
+    public void addWithMultiplier(@NotNull LBFGSVector other, double multiplier) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.addWithMultiplier(other, multiplier);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, values, i)
+                    .add(DoubleVector.fromArray(SPECIES, otherValues, i).mul(multiplier))
+                    .intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] += multiplier * otherValues[i];
+        }
+    }
+
+    @Override
+    public void copyDiff(@NotNull LBFGSVector a, @NotNull LBFGSVector b) {
+        assert size() == a.size() && size() == b.size() : "Vectors must be the same size";
+        if (!onHeap(a, b)) {
+            super.copyDiff(a, b);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, aValues, i)
+                    .sub(DoubleVector.fromArray(SPECIES, bValues, i))
+                    .intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] = aValues[i] - bValues[i];
+        }
+    }
+
+    @Override
+    public void scale(double multiplier) {
+        final double[] values = VALUES;
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, values, i).mul(multiplier).intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] *= multiplier;
+        }
+    }
+
+    @Override
+    public void mul(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            super.mul(other);
+            return;
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector.fromArray(SPECIES, values, i)
+                    .mul(DoubleVector.fromArray(SPECIES, otherValues, i))
+                    .intoArray(values, i);
+        }
+        for (; i < values.length; i++) {
+            values[i] *= otherValues[i];
+        }
+    }
+
+    @Override
+    public double dot(@NotNull LBFGSVector other) {
+        assert size() == other.size() : "Vectors must be the same size";
+        if (!onHeap(other)) {
+            return super.dot(other);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        // Four independent accumulators hide the latency of the fused multiply-adds.
+        DoubleVector acc0 = DoubleVector.zero(SPECIES);
+        DoubleVector acc1 = DoubleVector.zero(SPECIES);
+        DoubleVector acc2 = DoubleVector.zero(SPECIES);
+        DoubleVector acc3 = DoubleVector.zero(SPECIES);
+        int bound4 = values.length - values.length % (4 * LANES);
+        int i = 0;
+        for (; i < bound4; i += 4 * LANES) {
+            acc0 = DoubleVector.fromArray(SPECIES, values, i)
+                    .fma(DoubleVector.fromArray(SPECIES, otherValues, i), acc0);
+            acc1 = DoubleVector.fromArray(SPECIES, values, i + LANES)
+                    .fma(DoubleVector.fromArray(SPECIES, otherValues, i + LANES), acc1);
+            acc2 = DoubleVector.fromArray(SPECIES, values, i + 2 * LANES)
+                    .fma(DoubleVector.fromArray(SPECIES, otherValues, i + 2 * LANES), acc2);
+            acc3 = DoubleVector.fromArray(SPECIES, values, i + 3 * LANES)
+                    .fma(DoubleVector.fromArray(SPECIES, otherValues, i + 3 * LANES), acc3);
+        }
+        int bound = SPECIES.loopBound(values.length);
+        for (; i < bound; i += LANES) {
+            acc0 = DoubleVector.fromArray(SPECIES, values, i)
+                    .fma(DoubleVector.fromArray(SPECIES, otherValues, i), acc0);
+        }
+        double ret = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            ret += values[i] * otherValues[i];
+        }
+        return ret;
+    }
+
+    @Override
+    public double copyNegativeFromAndDot(@NotNull LBFGSVector other, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() : "Vectors must be the same size";
+        if (!onHeap(other, dotWith)) {
+            return super.copyNegativeFromAndDot(other, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector val = DoubleVector.fromArray(SPECIES, otherValues, i).neg();
+            val.intoArray(values, i);
+            acc = val.fma(DoubleVector.fromArray(SPECIES, dotValues, i), acc);
+        }
+        double ret = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            values[i] = -otherValues[i];
+            ret += values[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    @Override
+    public double addWithMultiplierAndDot(
+            @NotNull LBFGSVector other, double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == other.size() && size() == dotWith.size() : "Vectors must be the same size";
+        if (!onHeap(other, dotWith)) {
+            return super.addWithMultiplierAndDot(other, multiplier, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] otherValues = other.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector val = DoubleVector.fromArray(SPECIES, values, i)
+                    .add(DoubleVector.fromArray(SPECIES, otherValues, i).mul(multiplier));
+            val.intoArray(values, i);
+            acc = val.fma(DoubleVector.fromArray(SPECIES, dotValues, i), acc);
+        }
+        double ret = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            values[i] += multiplier * otherValues[i];
+            ret += values[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    @Override
+    public double copyDiffAndDot(@NotNull LBFGSVector a, @NotNull LBFGSVector b, @NotNull LBFGSVector dotWith) {
+        assert size() == a.size() && size() == b.size() && size() == dotWith.size() :
+                "Vectors must be the same size";
+        if (!onHeap(a, b) || dotWith.VALUES == null) {
+            return super.copyDiffAndDot(a, b, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] aValues = a.VALUES;
+        final double[] bValues = b.VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector val = DoubleVector.fromArray(SPECIES, aValues, i)
+                    .sub(DoubleVector.fromArray(SPECIES, bValues, i));
+            val.intoArray(values, i);
+            // dotWith may be this vector, which now holds val.
+            acc = val.fma(DoubleVector.fromArray(SPECIES, dotValues, i), acc);
+        }
+        double ret = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            values[i] = aValues[i] - bValues[i];
+            ret += values[i] * dotValues[i];
+        }
+        return ret;
+    }
+
+    @Override
+    public double scaleAndDot(double multiplier, @NotNull LBFGSVector dotWith) {
+        assert size() == dotWith.size() : "Vectors must be the same size";
+        if (!onHeap(dotWith)) {
+            return super.scaleAndDot(multiplier, dotWith);
+        }
+        final double[] values = VALUES;
+        final double[] dotValues = dotWith.VALUES;
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(values.length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            DoubleVector val = DoubleVector.fromArray(SPECIES, values, i).mul(multiplier);
+            val.intoArray(values, i);
+            acc = val.fma(DoubleVector.fromArray(SPECIES, dotValues, i), acc);
+        }
+        double ret = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < values.length; i++) {
+            values[i] *= multiplier;
+            ret += values[i] * dotValues[i];
+        }
+        return ret;
+    }
+}
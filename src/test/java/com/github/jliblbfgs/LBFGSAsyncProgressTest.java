@@ -0,0 +1,86 @@
+package com.github.jliblbfgs;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Test
+public class LBFGSAsyncProgressTest {
+    @Test
+    public void testConsumerThread() throws Exception {
+        int n = 100;
+        List<Integer> ks = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> snapshots = Collections.synchronizedList(new ArrayList<>());
+        double[] lastFx = new double[1];
+        double[] x = LBFGSTest.rosenbrockStart(n);
+        double[] fx = new double[1];
+        int ret;
+        try (LBFGSAsyncProgress progress = new LBFGSAsyncProgress(1024, 5)) {
+            progress.start(record -> {
+                ks.add(record.k);
+                lastFx[0] = record.fx;
+                if (record.x != null) {
+                    assertThat(record.x.length, is(n));
+                    snapshots.add(record.k);
+                }
+            });
+            ret = LBFGS.lbfgs(n, x, fx, LBFGSTest.ROSENBROCK, progress, null);
+            progress.close();
+            assertThat(progress.getDropped(), is(0L));
+        }
+        assertThat(ret, is(LBFGS.LBFGS_SUCCESS));
+        assertThat(ks.isEmpty(), is(false));
+        for (int i = 0; i < ks.size(); i++) {
+            assertThat(ks.get(i), is(i + 1));
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertThat(snapshots.get(i), is(5 * (i + 1)));
+        }
+        assertThat(snapshots.size(), is(ks.size() / 5));
+        assertThat(lastFx[0], is(fx[0]));
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        LBFGSAsyncProgress progress = new LBFGSAsyncProgress(4, 0);
+        LBFGS.lbfgs(100, LBFGSTest.rosenbrockStart(100), null, LBFGSTest.ROSENBROCK, progress, null);
+        List<Integer> ks = new ArrayList<>();
+        assertThat(progress.drain(record -> ks.add(record.k)), is(4));
+        assertThat(ks, is(Arrays.asList(1, 2, 3, 4)));
+        assertThat(progress.getDropped() > 0, is(true));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        LBFGSAsyncProgress progress = new LBFGSAsyncProgress(16, 0);
+        progress.cancel();
+        int ret = LBFGS.lbfgs(2, LBFGSTest.rosenbrockStart(2), null, LBFGSTest.ROSENBROCK, progress, null);
+        assertThat(ret, is(LBFGS.LBFGSERR_CANCELED));
+        assertThat(progress.drain(record -> assertThat(record.k, is(1))), is(1));
+    }
+
+    @Test
+    public void testTimingRestartsWithEachSolve() throws Exception {
+        LBFGSAsyncProgress progress = new LBFGSAsyncProgress(1024, 0);
+        List<Long> firsts = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            LBFGS.lbfgs(10, LBFGSTest.rosenbrockStart(10), null, LBFGSTest.ROSENBROCK, progress, null);
+            progress.drain(record -> {
+                if (record.k == 1) {
+                    firsts.add(record.nanos);
+                } else {
+                    assertThat(record.nanos >= 0L, is(true));
+                }
+            });
+            // The idle time between the solves is not charged to the next one.
+            Thread.sleep(50);
+        }
+        assertThat(firsts, is(Arrays.asList(0L, 0L)));
+    }
+}
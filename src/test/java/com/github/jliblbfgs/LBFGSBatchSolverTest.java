@@ -0,0 +1,57 @@
+package com.github.jliblbfgs;
+
+import com.google.inject.Inject;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Test
+@Guice(modules = TestModule.class)
+public class LBFGSBatchSolverTest {
+    @Inject
+    LBFGSVector.IFactory vectorFactory;
+
+    @Test
+    public void testSolveAll() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LBFGSBatchSolver batch = new LBFGSBatchSolver(null, vectorFactory, executor);
+            List<LBFGSBatchSolver.Problem> problems = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                int n = 2 * (1 + i % 5);
+                problems.add(new LBFGSBatchSolver.Problem(LBFGSTest.rosenbrockStart(n), LBFGSTest.ROSENBROCK));
+            }
+            List<LBFGSBatchSolver.Result> results = batch.solveAll(problems).collect(Collectors.toList());
+            assertThat(results.size(), is(problems.size()));
+            for (int i = 0; i < results.size(); i++) {
+                LBFGSBatchSolver.Result result = results.get(i);
+                assertThat(result.problem, sameInstance(problems.get(i)));
+
+                double[] x = LBFGSTest.rosenbrockStart(result.problem.getX().length);
+                double[] fx = new double[1];
+                assertThat(result.ret, is(LBFGS.lbfgs(x.length, x, fx, LBFGSTest.ROSENBROCK, null, null)));
+                assertThat(result.fx, is(fx[0]));
+                assertThat(result.problem.getX(), is(x));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = CompletionException.class)
+    public void testEvaluateThrows() throws Exception {
+        LBFGSBatchSolver batch = new LBFGSBatchSolver(null, vectorFactory, Runnable::run);
+        batch.submit(new LBFGSBatchSolver.Problem(new double[2], (x, g, n, step) -> {
+            throw new IllegalStateException();
+        })).join();
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.jliblbfgs;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class LBFGSDistributedEvaluateTest {
+    /**
+     * Enough workers for a tree of three levels.
+     */
+    private static final int WORKERS = 5;
+    private static final int N = 100;
+
+    /**
+     * The extended Rosenbrock function, its terms dealt to the shards in turn.
+     */
+    public static class RosenbrockShards implements LBFGSShardEvaluate {
+        @Override
+        public double lbfgsEvaluateShard(int shard, double[] x, double[] g, int n, double step) {
+            double fx = 0d;
+            for (int i = 2 * shard; i < n; i += 2 * WORKERS) {
+                double t1 = 1d - x[i];
+                double t2 = 10d * (x[i + 1] - x[i] * x[i]);
+                g[i + 1] = 20d * t2;
+                g[i] = -2d * (x[i] * g[i + 1] + t1);
+                fx += t1 * t1 + t2 * t2;
+            }
+            return fx;
+        }
+    }
+
+    private static ServerSocketChannel bind() throws Exception {
+        return ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @DataProvider(name = "compressions")
+    public Object[][] compressions() {
+        LBFGSDistributedEvaluate.Compression[] values = LBFGSDistributedEvaluate.Compression.values();
+        Object[][] ret = new Object[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            ret[i] = new Object[]{values[i]};
+        }
+        return ret;
+    }
+
+    @Test(dataProvider = "compressions", timeOut = 60000)
+    public void testThreads(LBFGSDistributedEvaluate.Compression compression) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        try (ServerSocketChannel server = bind()) {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < WORKERS; i++) {
+                workers.add(executor.submit(new LBFGSDistributedWorker(address, new RosenbrockShards())));
+            }
+            double[] x = LBFGSTest.rosenbrockStart(N);
+            int ret;
+            try (LBFGSDistributedEvaluate evaluate = new LBFGSDistributedEvaluate(server, N, WORKERS, compression)) {
+                // The tree sums the shards of a point like the monolithic function, up to rounding.
+                double[] g = new double[N];
+                double[] expected = new double[N];
+                double fx = evaluate.lbfgsEvaluate(x, g, N, 0d);
+                assertEquals(fx, LBFGSTest.ROSENBROCK.lbfgsEvaluate(x, expected, N, 0d), 1e-9 * fx);
+                for (int i = 0; i < N; i++) {
+                    assertEquals(g[i], expected[i], 1e-6 * Math.abs(expected[i]));
+                }
+
+                ret = LBFGS.lbfgs(N, x, null, evaluate, null, null);
+            }
+            for (Future<?> worker : workers) {
+                worker.get(10, TimeUnit.SECONDS);
+            }
+            if (compression == LBFGSDistributedEvaluate.Compression.NONE) {
+                assertThat(ret, is(LBFGS.LBFGS_SUCCESS));
+            } else {
+                // The rounded gradients may stop the line search near the minimum.
+                assertThat(ret == LBFGS.LBFGS_SUCCESS || ret == LBFGS.LBFGSERR_ROUNDING_ERROR, is(true));
+            }
+            for (double xi : x) {
+                assertEquals(xi, 1d, 1e-3);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeOut = 120000)
+    public void testProcesses() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<>();
+        try (ServerSocketChannel server = bind()) {
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            for (int i = 0; i < WORKERS; i++) {
+                processes.add(new ProcessBuilder(
+                        java,
+                        "-cp", System.getProperty("java.class.path"),
+                        LBFGSDistributedWorker.class.getName(),
+                        address.getAddress().getHostAddress(),
+                        Integer.toString(address.getPort()),
+                        RosenbrockShards.class.getName())
+                        .inheritIO()
+                        .start());
+            }
+            double[] x = LBFGSTest.rosenbrockStart(N);
+            try (LBFGSDistributedEvaluate evaluate =
+                         new LBFGSDistributedEvaluate(server, N, WORKERS, LBFGSDistributedEvaluate.Compression.NONE)) {
+                assertThat(LBFGS.lbfgs(N, x, null, evaluate, null, null), is(LBFGS.LBFGS_SUCCESS));
+            }
+            for (Process process : processes) {
+                assertThat(process.waitFor(10, TimeUnit.SECONDS), is(true));
+                assertThat(process.exitValue(), is(0));
+            }
+            for (double xi : x) {
+                assertEquals(xi, 1d, 1e-4);
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.jliblbfgs;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class LBFGSFiniteDifferenceEvaluateTest {
+    private static final int N = 20;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * The extended Rosenbrock function without its gradient.
+     */
+    private final LBFGSFunction rosenbrock = (x, n) -> {
+        calls.incrementAndGet();
+        return LBFGSTest.ROSENBROCK.lbfgsEvaluate(x, new double[n], n, 0d);
+    };
+
+    @DataProvider(name = "schemes")
+    public Object[][] schemes() {
+        return new Object[][]{
+                {false, 1e-5},
+                {true, 1e-8},
+        };
+    }
+
+    @Test(dataProvider = "schemes")
+    public void testGradient(boolean central, double tolerance) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            LBFGSFiniteDifferenceEvaluate evaluate = new LBFGSFiniteDifferenceEvaluate(N, rosenbrock, central, pool);
+            double[] x = LBFGSTest.rosenbrockStart(N);
+            x[3] = 30d;
+            double[] expected = new double[N];
+            double expectedFx = LBFGSTest.ROSENBROCK.lbfgsEvaluate(x, expected, N, 0d);
+
+            calls.set(0);
+            double[] g = new double[N];
+            assertThat(evaluate.lbfgsEvaluate(x, g, N, 0d), is(expectedFx));
+            assertThat(calls.get(), is(central ? 2 * N + 1 : N + 1));
+            for (int i = 0; i < N; i++) {
+                assertEquals(g[i], expected[i], tolerance * Math.max(Math.abs(expected[i]), 1d));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentCalls() throws Exception {
+        // The points differ in every coordinate, so that the steps of one call differ from those of the others.
+        int threads = 4;
+        double[][] xs = new double[threads][];
+        double[][] expected = new double[threads][N];
+        // Yielding interleaves the calls even on a single processor.
+        LBFGSFunction function = (x, n) -> {
+            Thread.yield();
+            return rosenbrock.lbfgsFunction(x, n);
+        };
+        LBFGSFiniteDifferenceEvaluate evaluate = new LBFGSFiniteDifferenceEvaluate(N, function, false);
+        for (int t = 0; t < threads; t++) {
+            xs[t] = LBFGSTest.rosenbrockStart(N);
+            for (int i = 0; i < N; i++) {
+                xs[t][i] *= 1d + 10d * t;
+            }
+            evaluate.lbfgsEvaluate(xs[t], expected[t], N, 0d);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<double[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                double[] x = xs[t];
+                results.add(executor.submit(() -> {
+                    double[] g = new double[N];
+                    for (int k = 0; k < 50; k++) {
+                        evaluate.lbfgsEvaluate(x, g, N, 0d);
+                    }
+                    return g;
+                }));
+            }
+            for (int t = 0; t < threads; t++) {
+                assertThat(results.get(t).get(), is(expected[t]));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReuseValue() throws Exception {
+        LBFGSFiniteDifferenceEvaluate evaluate = new LBFGSFiniteDifferenceEvaluate(N, rosenbrock, false);
+        evaluate.setReuseValue(true);
+        double[] x = LBFGSTest.rosenbrockStart(N);
+        double[] g = new double[N];
+
+        calls.set(0);
+        double fx = evaluate.lbfgsValue(x, N, 0d);
+        assertThat(evaluate.lbfgsEvaluate(x, g, N, 0d), is(fx));
+        assertThat(calls.get(), is(1 + N));
+
+        // Another point needs its own value.
+        calls.set(0);
+        x[0] = 0d;
+        evaluate.lbfgsEvaluate(x, g, N, 0d);
+        assertThat(calls.get(), is(1 + N));
+    }
+
+    @Test(dataProvider = "schemes")
+    public void testSolve(boolean central, double tolerance) throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                .setEpsilon(1e-4)
+                .build();
+        LBFGSFiniteDifferenceEvaluate evaluate = new LBFGSFiniteDifferenceEvaluate(N, rosenbrock, central);
+        evaluate.setReuseValue(true);
+        double[] x = LBFGSTest.rosenbrockStart(N);
+        assertThat(LBFGS.lbfgs(N, x, null, evaluate, null, params), is(LBFGS.LBFGS_SUCCESS));
+        for (double xi : x) {
+            assertEquals(xi, 1d, 1e-3);
+        }
+    }
+}
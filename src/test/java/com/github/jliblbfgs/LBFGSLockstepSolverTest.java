@@ -0,0 +1,132 @@
+package com.github.jliblbfgs;
+
+import com.google.inject.Inject;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Test
+@Guice(modules = TestModule.class)
+public class LBFGSLockstepSolverTest {
+    @Inject
+    LBFGSVector.IFactory vectorFactory;
+
+    /**
+     * Evaluates each active problem of the batch with a single-problem callback.
+     */
+    static LBFGSBatchEvaluate batched(LBFGSEvaluate evaluate) {
+        return batched(b -> evaluate);
+    }
+
+    /**
+     * Evaluates each active problem of the batch with its own single-problem callback.
+     */
+    static LBFGSBatchEvaluate batched(IntFunction<LBFGSEvaluate> evaluates) {
+        return (x, g, fx, active, n, batch) -> {
+            double[] xb = new double[n];
+            double[] gb = new double[n];
+            for (int b = 0; b < batch; b++) {
+                if (!active[b]) continue;
+                for (int i = 0; i < n; i++) {
+                    xb[i] = x[i * batch + b];
+                }
+                fx[b] = evaluates.apply(b).lbfgsEvaluate(xb, gb, n, 0d);
+                for (int i = 0; i < n; i++) {
+                    g[i * batch + b] = gb[i];
+                }
+            }
+        };
+    }
+
+    @Test(dataProviderClass = LBFGSTest.class, dataProvider = "wolfeLineSearches")
+    public void testMatchesSolver(LBFGSProto.Params.LineSearchAlgorithm lineSearch) throws Exception {
+        // With a single trial per line search, most problems stop on a failed line search instead of converging.
+        for (int maxLinesearch : new int[]{40, 1}) {
+            LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                    .setLinesearch(lineSearch)
+                    .setMaxLinesearch(maxLinesearch)
+                    .build();
+            int n = 10;
+            double[][] starts = new double[7][];
+            for (int b = 0; b < starts.length; b++) {
+                starts[b] = LBFGSTest.rosenbrockStart(n);
+                starts[b][b % n] += 0.1 * b;
+            }
+            // Already a minimizer, so this one drops out at once.
+            starts[3] = new double[n];
+            Arrays.fill(starts[3], 1d);
+
+            double[] x = LBFGSLockstepSolver.interleave(starts);
+            double[] fx = new double[starts.length];
+            int[] ret = new int[starts.length];
+            new LBFGSLockstepSolver(n, starts.length, params).solve(x, fx, ret, batched(LBFGSTest.ROSENBROCK));
+
+            LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+            int failed = 0;
+            for (int b = 0; b < starts.length; b++) {
+                double[] expected = starts[b].clone();
+                double[] expectedFx = new double[1];
+                assertThat(ret[b], is(solver.solve(expected, expectedFx, LBFGSTest.ROSENBROCK, null)));
+                assertThat(fx[b], is(expectedFx[0]));
+                double[] xb = LBFGSLockstepSolver.extract(x, starts.length, b);
+                assertThat(xb, is(expected));
+                // The value is that of the point returned with it.
+                assertThat(fx[b], is(LBFGSTest.ROSENBROCK.lbfgsEvaluate(xb, new double[n], n, 0d)));
+                if (ret[b] < 0) {
+                    ++failed;
+                }
+            }
+            assertThat(ret[3], is(LBFGS.LBFGS_ALREADY_MINIMIZED));
+            assertThat(failed > 0, is(maxLinesearch == 1));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // The quadratics converge in a few iterations, the Rosenbrock problems take many more.
+        int n = 10;
+        int batch = 9;
+        IntFunction<LBFGSEvaluate> evaluates =
+                b -> b % 4 == 1 ? LBFGSTest.ROSENBROCK : LBFGSTest.shiftedQuadratic(b);
+        double[][] starts = new double[batch][];
+        for (int b = 0; b < batch; b++) {
+            starts[b] = LBFGSTest.rosenbrockStart(n);
+            starts[b][b % n] += 0.1 * b;
+        }
+
+        double[] x = LBFGSLockstepSolver.interleave(starts);
+        double[] fx = new double[batch];
+        int[] ret = new int[batch];
+        LBFGSLockstepSolver lockstep = new LBFGSLockstepSolver(n, batch, null);
+        lockstep.solve(x, fx, ret, batched(evaluates));
+        assertThat(lockstep.getLanes() < batch, is(true));
+
+        LBFGSSolver solver = new LBFGSSolver(n, null, vectorFactory);
+        for (int b = 0; b < batch; b++) {
+            double[] expected = starts[b].clone();
+            double[] expectedFx = new double[1];
+            assertThat(ret[b], is(solver.solve(expected, expectedFx, evaluates.apply(b), null)));
+            assertThat(fx[b], is(expectedFx[0]));
+            assertThat(LBFGSLockstepSolver.extract(x, batch, b), is(expected));
+        }
+    }
+
+    @Test
+    public void testInvalidParams() throws Exception {
+        int[] ret = new int[2];
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                .setOrthantwiseC(1d)
+                .build();
+        new LBFGSLockstepSolver(2, 2, params).solve(new double[4], null, ret, batched(LBFGSTest.QUADRATIC));
+        assertThat(ret, is(new int[]{LBFGS.LBFGSERR_INVALID_ORTHANTWISE, LBFGS.LBFGSERR_INVALID_ORTHANTWISE}));
+
+        new LBFGSLockstepSolver(2, 2, null).solve(new double[3], null, ret, batched(LBFGSTest.QUADRATIC));
+        assertThat(ret, is(new int[]{LBFGS.LBFGSERR_INVALID_N, LBFGS.LBFGSERR_INVALID_N}));
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.jliblbfgs;
+
+import org.testng.annotations.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+@Test
+public class LBFGSMetricsTest {
+    @Test
+    public void testSolveStats() throws Exception {
+        int n = 100;
+        LBFGSSolver solver = new LBFGSSolver(n, null, new LBFGSVector.Factory());
+        double[] expected = LBFGSTest.rosenbrockStart(n);
+        int expectedRet = solver.solve(expected, null, LBFGSTest.ROSENBROCK, null);
+
+        LBFGSSolveStats[] last = new LBFGSSolveStats[1];
+        solver.setListener((s, stats) -> {
+            assertThat(s, is(solver));
+            assertThat(stats.getRet(), is(expectedRet));
+            assertThat(stats.getEvaluations(), is(solver.getEvaluations()));
+            assertThat(stats.getLineSearchTrials(), is(solver.getLineSearchTrials()));
+            assertThat(stats.getHistoryBytes(), is(2L * 6 * n * 8));
+            assertThat(stats.getIterations() > 0, is(true));
+            assertThat(stats.getLineSearchTrials() >= stats.getIterations(), is(true));
+            assertThat(stats.getEvaluateNanos() > 0L, is(true));
+            assertThat(stats.getDirectionNanos() > 0L, is(true));
+            assertThat(stats.getTotalNanos() >= stats.getEvaluateNanos() + stats.getDirectionNanos(), is(true));
+            last[0] = stats;
+        });
+        double[] x = LBFGSTest.rosenbrockStart(n);
+        assertThat(solver.solve(x, null, LBFGSTest.ROSENBROCK, null), is(expectedRet));
+        // The instrumentation does not change the solve.
+        assertThat(x, is(expected));
+        assertThat(last[0], notNullValue());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        int n = 10;
+        LBFGSMetrics metrics = new LBFGSMetrics();
+        LBFGSSolver solver = new LBFGSSolver(n, null, new LBFGSVector.Factory());
+        solver.setListener(metrics);
+        int ret = solver.solve(LBFGSTest.rosenbrockStart(n), null, LBFGSTest.ROSENBROCK, null);
+        int evaluations = solver.getEvaluations();
+        assertThat(solver.solve(LBFGSTest.rosenbrockStart(n), null, LBFGSTest.ROSENBROCK, null), is(ret));
+        double[] minimum = new double[n];
+        Arrays.fill(minimum, 1d);
+        assertThat(solver.solve(minimum, null, LBFGSTest.QUADRATIC, null), is(LBFGS.LBFGS_ALREADY_MINIMIZED));
+
+        assertThat(metrics.getSolves(), is(3L));
+        assertThat(metrics.getEvaluations(), is(2L * evaluations + 1));
+        assertThat(metrics.getLineSearchTrialsPerIteration() >= 1d, is(true));
+        Map<Integer, Long> codes = metrics.getTerminationCodes();
+        assertThat(codes.get(ret), is(2L));
+        assertThat(codes.get(LBFGS.LBFGS_ALREADY_MINIMIZED), is(1L));
+
+        // A smaller solver reported later does not hide the larger history.
+        long historyBytes = solver.getHistoryBytes();
+        assertThat(metrics.getMaxHistoryBytes(), is(historyBytes));
+        LBFGSSolver small = new LBFGSSolver(2, null, new LBFGSVector.Factory());
+        small.setListener(metrics);
+        small.solve(LBFGSTest.rosenbrockStart(2), null, LBFGSTest.ROSENBROCK, null);
+        assertThat(small.getHistoryBytes() < historyBytes, is(true));
+        assertThat(metrics.getMaxHistoryBytes(), is(historyBytes));
+
+        // Only an OWL-QN solve with few nonzero coordinates takes the sparse path.
+        assertThat(metrics.getSparseLineSearchTrials(), is(0L));
+        int m = 1000;
+        LBFGSSolver sparse = new LBFGSSolver(m, LBFGSProto.Params.newBuilder()
+                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                .setOrthantwiseC(1d)
+                .build(), new LBFGSVector.Factory());
+        sparse.setListener(metrics);
+        sparse.solve(new double[m], null, (x1, g, n1, step) -> {
+            double f = 0d;
+            for (int i = 0; i < n1; i++) {
+                double t = i % 100 == 0 ? 3d : 0.05 * (i % 7 - 3);
+                g[i] = x1[i] - t;
+                f += g[i] * g[i] / 2d;
+            }
+            return f;
+        }, null);
+        assertThat(sparse.getSparseLineSearchTrials() > 0, is(true));
+        assertThat(metrics.getSparseLineSearchTrials(), is((long) sparse.getSparseLineSearchTrials()));
+
+        ObjectName name = metrics.register("test");
+        try {
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Solves"), is((Object) 5L));
+            assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SparseLineSearchTrials"),
+                    is((Object) metrics.getSparseLineSearchTrials()));
+            ManagementFactory.getPlatformMBeanServer().invoke(name, "reset", null, null);
+            assertThat(metrics.getSolves(), is(0L));
+            assertThat(metrics.getSparseLineSearchTrials(), is(0L));
+            assertThat(metrics.getTerminationCodes().isEmpty(), is(true));
+        } finally {
+            LBFGSMetrics.unregister(name);
+        }
+        metrics.logSummary();
+    }
+}
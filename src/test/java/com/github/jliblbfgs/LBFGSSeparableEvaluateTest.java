@@ -0,0 +1,90 @@
+package com.github.jliblbfgs;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class LBFGSSeparableEvaluateTest {
+    private static final int N = 5;
+    private static final int ROWS = 1000;
+    private static final int SHARDS = 13;
+
+    /**
+     * Least squares rows a_r^t x = b_r, consistent with x = (1, 2, ..., N).
+     */
+    private final double[][] a = new double[ROWS][N];
+    private final double[] b = new double[ROWS];
+
+    {
+        Random random = new Random(42);
+        for (int r = 0; r < ROWS; r++) {
+            for (int i = 0; i < N; i++) {
+                a[r][i] = random.nextGaussian();
+                b[r] += a[r][i] * (i + 1);
+            }
+        }
+    }
+
+    private double rows(int from, int to, double[] x, double[] g) {
+        double fx = 0d;
+        for (int r = from; r < to; r++) {
+            double residual = -b[r];
+            for (int i = 0; i < N; i++) {
+                residual += a[r][i] * x[i];
+            }
+            for (int i = 0; i < N; i++) {
+                g[i] += residual * a[r][i];
+            }
+            fx += residual * residual / 2d;
+        }
+        return fx;
+    }
+
+    private final LBFGSShardEvaluate shard =
+            (s, x, g, n, step) -> rows(s * ROWS / SHARDS, (s + 1) * ROWS / SHARDS, x, g);
+
+    @Test
+    public void testMatchesMonolithic() throws Exception {
+        LBFGSSeparableEvaluate evaluate = new LBFGSSeparableEvaluate(N, SHARDS, shard, new ForkJoinPool(4));
+        double[] x = {0.5, -1, 2, 0, 3};
+        double[] expected = new double[N];
+        double expectedFx = rows(0, ROWS, x, expected);
+
+        double[] g1 = new double[N];
+        double fx1 = evaluate.lbfgsEvaluate(x, g1, N, 0d);
+        assertEquals(fx1, expectedFx, 1e-9 * expectedFx);
+        for (int i = 0; i < N; i++) {
+            assertEquals(g1[i], expected[i], 1e-9 * Math.abs(expected[i]));
+        }
+
+        // The reduction order is fixed, so repeated evaluations are identical.
+        double[] g2 = new double[N];
+        assertThat(evaluate.lbfgsEvaluate(x, g2, N, 0d), is(fx1));
+        assertThat(g2, is(g1));
+    }
+
+    @Test
+    public void testSolve() throws Exception {
+        double[] x = new double[N];
+        double[] fx = new double[1];
+        int ret = LBFGS.lbfgs(N, x, fx, new LBFGSSeparableEvaluate(N, SHARDS, shard), null, null);
+        assertThat(ret, is(LBFGS.LBFGS_SUCCESS));
+        for (int i = 0; i < N; i++) {
+            assertEquals(x[i], i + 1d, 1e-4);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testShardThrows() throws Exception {
+        new LBFGSSeparableEvaluate(N, SHARDS, (s, x, g, n, step) -> {
+            if (s == 7) throw new IllegalStateException();
+            return 0d;
+        }).lbfgsEvaluate(new double[N], new double[N], N, 0d);
+    }
+}
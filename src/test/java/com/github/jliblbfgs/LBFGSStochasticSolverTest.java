@@ -0,0 +1,97 @@
+package com.github.jliblbfgs;
+
+import com.google.inject.Inject;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
+
+@Test
+@Guice(modules = TestModule.class)
+public class LBFGSStochasticSolverTest {
+    @Inject
+    LBFGSVector.IFactory vectorFactory;
+
+    private static final int N = 5;
+
+    /**
+     * Streams least squares rows (a, b) with b = a^t x for x = (1, 2, ..., N).
+     */
+    private static Iterator<double[]> rows(int count) {
+        return IntStream.range(0, count).mapToObj(LBFGSStochasticSolverTest::row).iterator();
+    }
+
+    private static double[] row(int r) {
+        Random random = new Random(r);
+        double[] ret = new double[N + 1];
+        for (int i = 0; i < N; i++) {
+            ret[i] = random.nextGaussian();
+            ret[N] += ret[i] * (i + 1);
+        }
+        return ret;
+    }
+
+    private static final LBFGSMiniBatchEvaluate<double[]> LEAST_SQUARES = (batch, x, g, n) -> {
+        double fx = 0d;
+        Arrays.fill(g, 0d);
+        for (double[] row : batch) {
+            double residual = -row[n];
+            for (int i = 0; i < n; i++) {
+                residual += row[i] * x[i];
+            }
+            for (int i = 0; i < n; i++) {
+                g[i] += residual * row[i] / batch.size();
+            }
+            fx += residual * residual / 2d / batch.size();
+        }
+        return fx;
+    };
+
+    @Test
+    public void testSinglePass() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setSqnBatchSize(64)
+                .setSqnUpdateInterval(5)
+                .setSqnStep(0.5)
+                .build();
+        LBFGSStochasticSolver solver = new LBFGSStochasticSolver(N, params, vectorFactory);
+        double[] x = new double[N];
+        double[] fx = new double[1];
+        int[] iterations = new int[1];
+        int ret = solver.solve(x, fx, rows(10000),
+                LEAST_SQUARES, (x1, g, fx1, xnorm, gnorm, step, n, k, ls) -> {
+                    iterations[0] = k;
+                    return 0;
+                });
+        assertThat(ret, is(LBFGS.LBFGS_STOP));
+        // The last mini-batch is partial.
+        assertThat(iterations[0], is(157));
+        assertEquals(fx[0], 0d, 1e-8);
+        for (int i = 0; i < N; i++) {
+            assertEquals(x[i], i + 1d, 1e-4);
+        }
+    }
+
+    @Test
+    public void testMaxIterations() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setMaxIterations(3).build();
+        int ret = new LBFGSStochasticSolver(N, params, vectorFactory).solve(new double[N], null,
+                rows(10000), LEAST_SQUARES, null);
+        assertThat(ret, is(LBFGS.LBFGSERR_MAXIMUMITERATION));
+    }
+
+    @Test
+    public void testInvalidParams() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setSqnBatchSize(0).build();
+        int ret = new LBFGSStochasticSolver(N, params, vectorFactory).solve(new double[N], null,
+                rows(10), LEAST_SQUARES, null);
+        assertThat(ret, is(LBFGS.LBFGSERR_INVALIDPARAMETERS));
+    }
+}
@@ -1,15 +1,649 @@
 package com.github.jliblbfgs;
 
+import com.google.inject.Inject;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Guice;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
+
 /**
  * Created by scr on 3/14/16.
  */
 @Test
+@Guice(modules = TestModule.class)
 public class LBFGSTest {
+    @Inject
+    LBFGSVector.IFactory vectorFactory;
+
+    /**
+     * The extended Rosenbrock function, as in the liblbfgs sample.
+     */
+    static final LBFGSEvaluate ROSENBROCK = (x, g, n, step) -> {
+        double fx = 0d;
+        for (int i = 0; i < n; i += 2) {
+            double t1 = 1d - x[i];
+            double t2 = 10d * (x[i + 1] - x[i] * x[i]);
+            g[i + 1] = 20d * t2;
+            g[i] = -2d * (x[i] * g[i + 1] + t1);
+            fx += t1 * t1 + t2 * t2;
+        }
+        return fx;
+    };
+
+    /**
+     * A badly scaled convex quadratic with its minimum at (1, ..., 1).
+     */
+    static final LBFGSEvaluate QUADRATIC = (x, g, n, step) -> {
+        double fx = 0d;
+        for (int i = 0; i < n; i++) {
+            double t = x[i] - 1d;
+            g[i] = (i + 1) * t;
+            fx += (i + 1) * t * t / 2d;
+        }
+        return fx;
+    };
+
+    static double[] rosenbrockStart(int n) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i += 2) {
+            x[i] = -1.2;
+            x[i + 1] = 1d;
+        }
+        return x;
+    }
+
+    @DataProvider(name = "lineSearches")
+    public Object[][] lineSearches() {
+        return new Object[][]{
+                {LBFGSProto.Params.LineSearchAlgorithm.MORETHUENTE},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_STRONG_WOLFE},
+        };
+    }
+
+    @Test(dataProvider = "lineSearches")
+    public void testQuadratic(LBFGSProto.Params.LineSearchAlgorithm lineSearch) throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(lineSearch)
+                .build();
+        int n = 50;
+        double[] x = new double[n];
+        double[] fx = new double[1];
+        assertThat(LBFGS.lbfgs(n, x, fx, QUADRATIC, null, params), is(LBFGS.LBFGS_SUCCESS));
+        assertEquals(fx[0], 0d, 1e-8);
+        for (double xi : x) {
+            assertEquals(xi, 1d, 1e-4);
+        }
+    }
+
+    /**
+     * The curvature condition is not enforced by Armijo backtracking, so Rosenbrock is only run with the others.
+     */
+    @DataProvider(name = "wolfeLineSearches")
+    public Object[][] wolfeLineSearches() {
+        return new Object[][]{
+                {LBFGSProto.Params.LineSearchAlgorithm.MORETHUENTE},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_STRONG_WOLFE},
+        };
+    }
+
+    @Test(dataProvider = "wolfeLineSearches")
+    public void testLbfgs(LBFGSProto.Params.LineSearchAlgorithm lineSearch) throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(lineSearch)
+                .setMaxLinesearch(40)
+                .build();
+        int n = 100;
+        double[] x = rosenbrockStart(n);
+        double[] fx = new double[1];
+        int[] iterations = new int[1];
+        int ret = LBFGS.lbfgs(n, x, fx, ROSENBROCK, (x1, g, fx1, xnorm, gnorm, step, n1, k, ls) -> {
+            iterations[0] = k;
+            return 0;
+        }, params);
+        assertThat(ret, is(LBFGS.LBFGS_SUCCESS));
+        assertEquals(fx[0], 0d, 1e-8);
+        assertThat(iterations[0], not(0));
+        for (double xi : x) {
+            assertEquals(xi, 1d, 1e-3);
+        }
+    }
+
+    @Test
+    public void testSolverReuse() throws Exception {
+        int n = 10;
+        LBFGSSolver solver = new LBFGSSolver(n, null, vectorFactory);
+        double[] x1 = rosenbrockStart(n);
+        double[] fx1 = new double[1];
+        assertThat(solver.solve(x1, fx1, ROSENBROCK, null), is(LBFGS.LBFGS_SUCCESS));
+
+        double[] x2 = rosenbrockStart(n);
+        double[] fx2 = new double[1];
+        assertThat(solver.solve(x2, fx2, ROSENBROCK, null), is(LBFGS.LBFGS_SUCCESS));
+        assertThat(x2, is(x1));
+        assertThat(fx2[0], is(fx1[0]));
+    }
+
+    @Test
+    public void testOffHeapHistory() throws Exception {
+        int n = 10;
+        double[] x1 = rosenbrockStart(n);
+        double[] fx1 = new double[1];
+        assertThat(new LBFGSSolver(n, null, vectorFactory).solve(x1, fx1, ROSENBROCK, null),
+                is(LBFGS.LBFGS_SUCCESS));
+
+        double[] x2 = rosenbrockStart(n);
+        double[] fx2 = new double[1];
+        LBFGSSolver solver = new LBFGSSolver(n, null, vectorFactory, new LBFGSBufferVector.DirectFactory());
+        assertThat(solver.solve(x2, fx2, ROSENBROCK, null), is(LBFGS.LBFGS_SUCCESS));
+        assertThat(x2, is(x1));
+        assertThat(fx2[0], is(fx1[0]));
+    }
+
+    @Test
+    public void testFloatHistory() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setFloatHistory(true).build();
+        int n = 100;
+        double[] x = rosenbrockStart(n);
+        double[] fx = new double[1];
+        assertThat(LBFGS.lbfgs(n, x, fx, ROSENBROCK, null, params), is(LBFGS.LBFGS_SUCCESS));
+        assertEquals(fx[0], 0d, 1e-8);
+
+        LBFGSPrecisionComparison comparison =
+                LBFGSPrecisionComparison.compare(n, rosenbrockStart(n), ROSENBROCK, params, vectorFactory);
+        assertThat(comparison.doubleHistory.ret, is(LBFGS.LBFGS_SUCCESS));
+        assertThat(comparison.floatHistory.ret, is(LBFGS.LBFGS_SUCCESS));
+        assertThat(comparison.floatHistory.fx, is(fx[0]));
+        assertThat(comparison.doubleHistory.nanos > 0, is(true));
+        assertThat(comparison.floatHistory.nanos > 0, is(true));
+        assertThat(comparison.floatHistory.iterations, not(0));
+        assertEquals(comparison.distance(), 0d, 1e-3);
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setPast(3).setDelta(1e-12).build();
+        int n = 100;
+        double[] expected = rosenbrockStart(n);
+        double[] expectedFx = new double[1];
+        int expectedRet = LBFGS.lbfgs(n, expected, expectedFx, ROSENBROCK, null, params);
+
+        File file = File.createTempFile("lbfgs", ".ckp");
+        try {
+            LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+            int ret = solver.solve(rosenbrockStart(n), null, ROSENBROCK,
+                    (x, g, fx, xnorm, gnorm, step, n1, k, ls) -> {
+                        if (k == 10) {
+                            solver.checkpoint(file);
+                            // Simulate an eviction.
+                            return -1;
+                        }
+                        return 0;
+                    });
+            assertThat(ret, is(-1));
+
+            double[] x = new double[n];
+            double[] fx = new double[1];
+            LBFGSSolver resumed = new LBFGSSolver(n, params, vectorFactory);
+            assertThat(resumed.resume(file, x, fx, ROSENBROCK, null), is(expectedRet));
+            assertThat(x, is(expected));
+            assertThat(fx[0], is(expectedFx[0]));
+        } finally {
+            assertThat(file.delete(), is(true));
+        }
+    }
+
+    @Test
+    public void testCheckpointOnLastIteration() throws Exception {
+        // The history is full well before the last iteration, where the checkpoint is taken.
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setM(3).setMaxIterations(8).build();
+        int n = 100;
+        LBFGSState expected = new LBFGSState();
+        assertThat(LBFGS.lbfgs(n, rosenbrockStart(n), null, ROSENBROCK, null, params, expected),
+                is(LBFGS.LBFGSERR_MAXIMUMITERATION));
+        assertThat(expected.size(), is(3));
+
+        File file = File.createTempFile("lbfgs", ".ckp");
+        try {
+            LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+            LBFGSState state = new LBFGSState();
+            int ret = solver.solve(rosenbrockStart(n), null, ROSENBROCK,
+                    (x, g, fx, xnorm, gnorm, step, n1, k, ls) -> {
+                        solver.checkpoint(file);
+                        return 0;
+                    }, state);
+            assertThat(ret, is(LBFGS.LBFGSERR_MAXIMUMITERATION));
+            // The pairs come out oldest first, as without the checkpoints.
+            assertThat(state.size(), is(expected.size()));
+            for (int i = 0; i < state.size(); i++) {
+                assertThat(state.getS(i), is(expected.getS(i)));
+                assertThat(state.getY(i), is(expected.getY(i)));
+            }
+            assertThat(state.getGamma(), is(expected.getGamma()));
+        } finally {
+            assertThat(file.delete(), is(true));
+        }
+    }
+
+    private File checkpointAt(int n, LBFGSProto.Params params, int iteration) throws Exception {
+        File file = File.createTempFile("lbfgs", ".ckp");
+        LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+        solver.solve(rosenbrockStart(n), null, ROSENBROCK,
+                (x, g, fx, xnorm, gnorm, step, n1, k, ls) -> {
+                    if (k == iteration) {
+                        solver.checkpoint(file);
+                        return -1;
+                    }
+                    return 0;
+                });
+        return file;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testResumeOtherParams() throws Exception {
+        int n = 10;
+        File file = checkpointAt(n, LBFGSProto.Params.newBuilder().setEpsilon(1e-4).build(), 3);
+        try {
+            // The same shapes, but another stopping criterion.
+            new LBFGSSolver(n, null, vectorFactory).resume(file, new double[n], null, ROSENBROCK, null);
+        } finally {
+            assertThat(file.delete(), is(true));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Not a checkpoint file")
+    public void testResumeCorruptHeaderLength() throws Exception {
+        int n = 10;
+        File file = checkpointAt(n, null, 3);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // The little-endian length after the magic number.
+                raf.seek(8);
+                raf.write(new byte[]{-1, -1, -1, 0x7f});
+            }
+            new LBFGSSolver(n, null, vectorFactory).resume(file, new double[n], null, ROSENBROCK, null);
+        } finally {
+            assertThat(file.delete(), is(true));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testCheckpointOutsideProgress() throws Exception {
+        new LBFGSSolver(2, null, vectorFactory).checkpoint(new File("unused"));
+    }
+
+    /**
+     * QUADRATIC with its minimum moved to (c, ..., c).
+     */
+    static LBFGSEvaluate shiftedQuadratic(double c) {
+        return (x, g, n, step) -> {
+            double fx = 0d;
+            for (int i = 0; i < n; i++) {
+                double t = x[i] - c;
+                g[i] = (i + 1) * t;
+                fx += (i + 1) * t * t / 2d;
+            }
+            return fx;
+        };
+    }
+
+    @Test
+    public void testWarmStart() throws Exception {
+        // As many pairs as variables.
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setM(10).build();
+        int n = 10;
+        LBFGSState state = new LBFGSState();
+        int[] iterations = new int[2];
+        LBFGSProgress count = (x, g, fx, xnorm, gnorm, step, n1, k, ls) -> {
+            iterations[1] = k;
+            return 0;
+        };
+        double[] x = new double[n];
+        assertThat(LBFGS.lbfgs(n, x, null, shiftedQuadratic(1d), count, params, state), is(LBFGS.LBFGS_SUCCESS));
+        assertThat(state.size() > 0, is(true));
+        iterations[0] = iterations[1];
+
+        // A slightly shifted problem, from the previous solution.
+        assertThat(LBFGS.lbfgs(n, x, null, shiftedQuadratic(1.1), count, params, state), is(LBFGS.LBFGS_SUCCESS));
+        for (double xi : x) {
+            assertEquals(xi, 1.1, 1e-4);
+        }
+        assertThat(iterations[1] < iterations[0], is(true));
+    }
+
+    @Test
+    public void testCompactDirection() throws Exception {
+        // Enough variables for several blocks of the compact engine.
+        int n = 10000;
+        double[][] early = new double[2][];
+        double[][] result = new double[2][];
+        LBFGSProto.Params.DirectionAlgorithm[] directions = LBFGSProto.Params.DirectionAlgorithm.values();
+        for (int i = 0; i < directions.length; i++) {
+            LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setDirection(directions[i]).build();
+            LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+            double[] x = rosenbrockStart(n);
+            int run = i;
+            LBFGSProgress progress = (x1, g, fx, xnorm, gnorm, step, n1, k, ls) -> {
+                if (k == 10) {
+                    early[run] = x1.clone();
+                }
+                return 0;
+            };
+            assertThat(solver.solve(x, null, ROSENBROCK, progress), is(LBFGS.LBFGS_SUCCESS));
+            result[i] = x;
+        }
+        // The two engines compute the same directions up to rounding.
+        for (int i = 0; i < n; i++) {
+            assertEquals(early[1][i], early[0][i], 1e-8);
+            assertEquals(result[1][i], 1d, 1e-4);
+        }
+    }
+
+    @Test
+    public void testCompactDirectionWarmStart() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setM(10)
+                .setDirection(LBFGSProto.Params.DirectionAlgorithm.COMPACT)
+                .build();
+        int n = 10;
+        LBFGSState state = new LBFGSState();
+        double[] x = new double[n];
+        assertThat(LBFGS.lbfgs(n, x, null, shiftedQuadratic(1d), null, params, state), is(LBFGS.LBFGS_SUCCESS));
+        assertThat(LBFGS.lbfgs(n, x, null, shiftedQuadratic(1.1), null, params, state), is(LBFGS.LBFGS_SUCCESS));
+        for (double xi : x) {
+            assertEquals(xi, 1.1, 1e-4);
+        }
+    }
+
+    @Test
+    public void testWarmStartDropsStalePairs() throws Exception {
+        int n = 50;
+        LBFGSState state = new LBFGSState();
+        double[] s = new double[n];
+        double[] y = new double[n];
+        s[0] = 1d;
+        y[0] = -1d;
+        state.addPair(s, y);
+        state.setGamma(1e6);
+
+        double[] x = new double[n];
+        double[] fx = new double[1];
+        assertThat(LBFGS.lbfgs(n, x, fx, QUADRATIC, null, null, state), is(LBFGS.LBFGS_SUCCESS));
+        double[] expected = new double[n];
+        double[] expectedFx = new double[1];
+        LBFGS.lbfgs(n, expected, expectedFx, QUADRATIC, null, null);
+        // With its only pair dropped, the solve is a cold one.
+        assertThat(x, is(expected));
+        assertThat(fx[0], is(expectedFx[0]));
+        for (int i = 0; i < state.size(); i++) {
+            assertThat(dot(state.getS(i), state.getY(i)) > 0d, is(true));
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double ret = 0d;
+        for (int i = 0; i < a.length; i++) {
+            ret += a[i] * b[i];
+        }
+        return ret;
+    }
+
+    @Test
+    public void testLineSearchCache() throws Exception {
+        // With few trials, the More-Thuente search falls back to the best step so far, which was already evaluated.
+        LBFGSProto.Params.Builder params = LBFGSProto.Params.newBuilder().setMaxLinesearch(3);
+        int n = 100;
+        int[] calls = new int[1];
+        LBFGSEvaluate counted = (x, g, n1, step) -> {
+            ++calls[0];
+            return ROSENBROCK.lbfgsEvaluate(x, g, n1, step);
+        };
+        double[] expected = rosenbrockStart(n);
+        LBFGSSolver uncached = new LBFGSSolver(n, params.build(), vectorFactory);
+        int expectedRet = uncached.solve(expected, null, counted, null);
+        assertThat(uncached.getEvaluations(), is(calls[0]));
+
+        calls[0] = 0;
+        double[] x = rosenbrockStart(n);
+        LBFGSSolver cached = new LBFGSSolver(n, params.setLinesearchCache(4).build(), vectorFactory);
+        assertThat(cached.solve(x, null, counted, null), is(expectedRet));
+        assertThat(x, is(expected));
+        assertThat(cached.getEvaluations(), is(calls[0]));
+        assertThat(cached.getCacheHits(), not(0));
+        assertThat(cached.getEvaluations() + cached.getCacheHits(),
+                is(uncached.getEvaluations() + uncached.getCacheHits()));
+    }
+
+    @DataProvider(name = "backtrackingLineSearches")
+    public Object[][] backtrackingLineSearches() {
+        return new Object[][]{
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_ARMIJO},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE},
+                {LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_STRONG_WOLFE},
+        };
+    }
+
+    @Test(dataProvider = "backtrackingLineSearches")
+    public void testValueOnlyEvaluate(LBFGSProto.Params.LineSearchAlgorithm lineSearch) throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setLinesearch(lineSearch).build();
+        int n = 50;
+        double[] expected = new double[n];
+        LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+        int expectedRet = solver.solve(expected, null, QUADRATIC, null);
+        int expectedEvaluations = solver.getEvaluations();
+
+        double[] g = new double[n];
+        LBFGSValueEvaluate valueOnly = new LBFGSValueEvaluate() {
+            @Override
+            public double lbfgsValue(double[] x, int n, double step) {
+                return QUADRATIC.lbfgsEvaluate(x, g, n, step);
+            }
+
+            @Override
+            public double lbfgsEvaluate(double[] x, double[] g, int n, double step) {
+                return QUADRATIC.lbfgsEvaluate(x, g, n, step);
+            }
+        };
+        double[] x = new double[n];
+        assertThat(solver.solve(x, null, valueOnly, null), is(expectedRet));
+        assertThat(x, is(expected));
+        // Every rejected trial only needed the value.
+        assertThat(solver.getValueEvaluations(), not(0));
+        assertThat(solver.getEvaluations() < expectedEvaluations, is(true));
+    }
+
+    @Test(dataProvider = "backtrackingLineSearches")
+    public void testSpeculativeLineSearch(LBFGSProto.Params.LineSearchAlgorithm lineSearch) throws Exception {
+        LBFGSProto.Params.Builder params = LBFGSProto.Params.newBuilder().setLinesearch(lineSearch);
+        int n = 100;
+        double[] expected = rosenbrockStart(n);
+        LBFGSSolver serial = new LBFGSSolver(n, params.build(), vectorFactory);
+        int expectedRet = serial.solve(expected, null, ROSENBROCK, null);
+
+        // The trials are evaluated in parallel, but the search accepts the same steps.
+        double[] x = rosenbrockStart(n);
+        LBFGSSolver speculative = new LBFGSSolver(n, params.setSpeculativeLinesearch(4).build(), vectorFactory);
+        assertThat(speculative.solve(x, null, ROSENBROCK, null), is(expectedRet));
+        assertThat(x, is(expected));
+        assertThat(speculative.getLineSearchTrials(), is(serial.getLineSearchTrials()));
+        assertThat(speculative.getEvaluations() >= serial.getEvaluations(), is(true));
+    }
+
+    @Test
+    public void testOrthantwise() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                .setOrthantwiseC(1d)
+                .build();
+        // f(x) = sum (x_i - t_i)^2 / 2 + |x| has the minimizer sign(t_i) * max(|t_i| - 1, 0).
+        double[] target = {3, -0.5, 0.25, -4};
+        double[] x = new double[target.length];
+        double[] fx = new double[1];
+        int ret = LBFGS.lbfgs(x.length, x, fx, (x1, g, n, step) -> {
+            double f = 0d;
+            for (int i = 0; i < n; i++) {
+                g[i] = x1[i] - target[i];
+                f += g[i] * g[i] / 2d;
+            }
+            return f;
+        }, null, params);
+        assertThat(ret >= 0, is(true));
+        assertEquals(x[0], 2d, 1e-4);
+        assertThat(x[1], is(0d));
+        assertThat(x[2], is(0d));
+        assertEquals(x[3], -3d, 1e-4);
+    }
+
+    @Test
+    public void testOrthantwiseSparse() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder()
+                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                .setOrthantwiseC(1d)
+                .setOrthantwiseStart(1)
+                .build();
+        // f(x) = sum a_i (x_i - t_i)^2 / 2 + |x_{1..n-1}| has the minimizer sign(t_i) * max(|t_i| - 1 / a_i, 0),
+        // which is zero but for every 500th coordinate, and t_0 for the unregularized one.
+        int n = 10000;
+        double[] target = new double[n];
+        for (int i = 0; i < n; i++) {
+            target[i] = i % 500 == 0 ? (i % 1000 == 0 ? 3d : -3d) : 0.1 * (i % 7 - 3);
+        }
+        LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+        double[] x = new double[n];
+        int ret = solver.solve(x, null, (x1, g, n1, step) -> {
+            double f = 0d;
+            for (int i = 0; i < n1; i++) {
+                double a = 1 + i % 5;
+                g[i] = a * (x1[i] - target[i]);
+                f += g[i] * (x1[i] - target[i]) / 2d;
+            }
+            return f;
+        }, null);
+        assertThat(ret >= 0, is(true));
+        // The direction never leaves the few coordinates that the L1 term does not pin to zero.
+        assertThat(solver.getLineSearchTrials() > 0, is(true));
+        assertThat(solver.getSparseLineSearchTrials(), is(solver.getLineSearchTrials()));
+        for (int i = 0; i < n; i++) {
+            double a = 1 + i % 5;
+            double expected = i == 0 ? target[0] : Math.signum(target[i]) * Math.max(Math.abs(target[i]) - 1 / a, 0d);
+            if (expected == 0d) {
+                assertThat(x[i], is(0d));
+            } else {
+                assertEquals(x[i], expected, 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void testEvaluationBudget() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setMaxEvaluations(20).build();
+        int n = 100;
+        double[] x = rosenbrockStart(n);
+        double[] fx = new double[1];
+        List<Integer> remaining = new ArrayList<>();
+        LBFGSBudgetProgress progress = (x1, g, fx1, xnorm, gnorm, step, n1, k, ls, nanos, evaluations) -> {
+            assertThat(nanos, is(Long.MAX_VALUE));
+            remaining.add(evaluations);
+            return 0;
+        };
+        LBFGSSolver solver = new LBFGSSolver(n, params, vectorFactory);
+        assertThat(solver.solve(x, fx, ROSENBROCK, progress), is(LBFGS.LBFGSERR_BUDGET));
+        assertThat(solver.getEvaluations() <= 20, is(true));
+        assertThat(remaining.isEmpty(), is(false));
+        for (int i = 1; i < remaining.size(); i++) {
+            assertThat(remaining.get(i) < remaining.get(i - 1), is(true));
+        }
+
+        // The result is the last accepted point, with its value.
+        assertThat(fx[0], is(ROSENBROCK.lbfgsEvaluate(x, new double[n], n, 0d)));
+        assertThat(fx[0] < ROSENBROCK.lbfgsEvaluate(rosenbrockStart(n), new double[n], n, 0d), is(true));
+    }
+
+    @Test
+    public void testTimeBudget() throws Exception {
+        LBFGSProto.Params params = LBFGSProto.Params.newBuilder().setTimeBudget(0.2).build();
+        int n = 100;
+        int[] evaluations = {0};
+        LBFGSEvaluate slow = (x, g, n1, step) -> {
+            ++evaluations[0];
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ROSENBROCK.lbfgsEvaluate(x, g, n1, step);
+        };
+        List<Long> remaining = new ArrayList<>();
+        LBFGSBudgetProgress progress = (x1, g, fx1, xnorm, gnorm, step, n1, k, ls, nanos, left) -> {
+            assertThat(left, is(Integer.MAX_VALUE));
+            remaining.add(nanos);
+            return 0;
+        };
+        double[] x = rosenbrockStart(n);
+        long start = System.nanoTime();
+        assertThat(new LBFGSSolver(n, params, vectorFactory).solve(x, null, slow, progress),
+                is(LBFGS.LBFGSERR_BUDGET));
+        long elapsed = System.nanoTime() - start;
+
+        // Each evaluation sleeps at least 5 ms, and none starts after the deadline.
+        assertThat(evaluations[0] > 0, is(true));
+        assertThat(evaluations[0] <= 200 / 5 + 1, is(true));
+        assertThat(remaining.isEmpty(), is(false));
+        assertThat(remaining.get(0) <= 200_000_000L, is(true));
+        for (int i = 1; i < remaining.size(); i++) {
+            assertThat(remaining.get(i) < remaining.get(i - 1), is(true));
+        }
+        // A loose bound, for a stalled solve rather than for timing.
+        assertThat(elapsed < 10_000_000_000L, is(true));
+    }
+
+    @Test
+    public void testAlreadyMinimized() throws Exception {
+        double[] x = {1, 1};
+        assertThat(LBFGS.lbfgs(2, x, null, ROSENBROCK, null, null), is(LBFGS.LBFGS_ALREADY_MINIMIZED));
+    }
+
     @Test
-    public void testLbfgs() throws Exception {
-        LBFGSProto.Params.Builder paramsBuilder = LBFGSProto.Params.newBuilder();
-//        LBFGS.lbfgs(paramsBuilder.build());
+    public void testCanceled() throws Exception {
+        double[] x = rosenbrockStart(2);
+        int ret = LBFGS.lbfgs(2, x, null, ROSENBROCK, (x1, g, fx, xnorm, gnorm, step, n, k, ls) -> 42, null);
+        assertThat(ret, is(42));
+    }
+
+    @DataProvider(name = "invalidParams")
+    public Object[][] invalidParams() {
+        return new Object[][]{
+                {LBFGSProto.Params.newBuilder().setEpsilon(-1), LBFGS.LBFGSERR_INVALID_EPSILON},
+                {LBFGSProto.Params.newBuilder().setPast(-1), LBFGS.LBFGSERR_INVALID_TESTPERIOD},
+                {LBFGSProto.Params.newBuilder().setMinStep(1).setMaxStep(0.5), LBFGS.LBFGSERR_INVALID_MAXSTEP},
+                {
+                        LBFGSProto.Params.newBuilder()
+                                .setLinesearch(LBFGSProto.Params.LineSearchAlgorithm.BACKTRACKING_WOLFE)
+                                .setWolfe(1e-5),
+                        LBFGS.LBFGSERR_INVALID_WOLFE
+                },
+                {LBFGSProto.Params.newBuilder().setMaxLinesearch(0), LBFGS.LBFGSERR_INVALID_MAXLINESEARCH},
+                {LBFGSProto.Params.newBuilder().setTimeBudget(-1), LBFGS.LBFGSERR_INVALIDPARAMETERS},
+                {LBFGSProto.Params.newBuilder().setMaxEvaluations(-1), LBFGS.LBFGSERR_INVALIDPARAMETERS},
+                {LBFGSProto.Params.newBuilder().setOrthantwiseC(1), LBFGS.LBFGSERR_INVALID_LINESEARCH},
+                {LBFGSProto.Params.newBuilder().setOrthantwiseEnd(3), LBFGS.LBFGSERR_INVALID_ORTHANTWISE_END},
+        };
+    }
+
+    @Test(dataProvider = "invalidParams")
+    public void testInvalidParams(LBFGSProto.Params.Builder params, int expected) throws Exception {
+        double[] x = rosenbrockStart(2);
+        assertThat(LBFGS.lbfgs(2, x, null, ROSENBROCK, null, params.build()), is(expected));
+        assertThat(LBFGS.lbfgs(0, x, null, ROSENBROCK, null, params.build()), is(LBFGS.LBFGSERR_INVALID_N));
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,24 @@
 package com.github.jliblbfgs;
 
 import com.google.inject.Inject;
+import org.testng.SkipException;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Guice;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.assertEquals;
 
 /**
  * Created by scr on 3/15/16.
@@ -215,4 +224,405 @@ public class LBFGSVectorTest {
         assertThat(vector, is(vector2));
         assertThat(vector.hashCode(), is(vector2.hashCode()));
     }
+
+    @Test
+    public void testFactoryThreshold() throws Exception {
+        LBFGSVector.Factory factory = new LBFGSVector.Factory(100, 10);
+        assertThat(factory.createVector(99), not(instanceOf(LBFGSForkJoinVector.class)));
+        assertThat(factory.createVector(100), instanceOf(LBFGSForkJoinVector.class));
+        assertThat(factory.createVector(new double[100]), instanceOf(LBFGSForkJoinVector.class));
+    }
+
+    @Test
+    public void testForkJoinMatchesSequential() throws Exception {
+        LBFGSVector.IFactory sequential = new LBFGSVector.Factory(Integer.MAX_VALUE, 1);
+        LBFGSVector.IFactory forkJoin = new LBFGSVector.Factory(1, 7);
+        Random random = new Random(1);
+        double[] a = new double[1001];
+        double[] b = new double[a.length];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = random.nextGaussian();
+            b[i] = random.nextGaussian();
+        }
+
+        LBFGSVector sa = sequential.createVector(a);
+        LBFGSVector sb = sequential.createVector(b);
+        LBFGSVector fa = forkJoin.createVector(a);
+        LBFGSVector fb = forkJoin.createVector(b);
+        assertEquals(fa.dot(fb), sa.dot(sb), 1e-9);
+        assertEquals(fa.norm(fa), sa.norm(sa), 1e-9);
+
+        sa.addWithMultiplier(sb, 0.5);
+        fa.addWithMultiplier(fb, 0.5);
+        assertThat(fa, is(sa));
+        sa.copyDiff(sa, sb);
+        fa.copyDiff(fa, fb);
+        assertThat(fa, is(sa));
+        sa.mul(sb);
+        fa.mul(fb);
+        assertThat(fa, is(sa));
+        sa.scale(3);
+        fa.scale(3);
+        assertThat(fa, is(sa));
+        sa.copyNegativeFrom(sb);
+        fa.copyNegativeFrom(fb);
+        assertThat(fa, is(sa));
+        fa.copyFrom(fb);
+        assertThat(fa, is(sb));
+        fa.fill(2);
+        sa.fill(2);
+        assertThat(fa, is(sa));
+
+        sa.copyFrom(sequential.createVector(a));
+        fa.copyFrom(forkJoin.createVector(a));
+        assertEquals(fa.addWithMultiplierAndDot(fb, 0.5, fb), sa.addWithMultiplierAndDot(sb, 0.5, sb), 1e-9);
+        assertThat(fa, is(sa));
+        assertEquals(fa.scaleAndDot(3, fb), sa.scaleAndDot(3, sb), 1e-9);
+        assertThat(fa, is(sa));
+        assertEquals(fa.copyDiffAndDot(fa, fb, fa), sa.copyDiffAndDot(sa, sb, sa), 1e-9);
+        assertThat(fa, is(sa));
+        assertEquals(fa.copyNegativeFromAndDot(fb, fb), sa.copyNegativeFromAndDot(sb, sb), 1e-9);
+        assertThat(fa, is(sa));
+    }
+
+    @Test
+    public void testCompensatedDot() throws Exception {
+        // Each 1 is lost when added to 1e16 in order, but not by the compensated sums.
+        double[] a = new double[10007];
+        double[] b = new double[a.length];
+        double expected = 0d;
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i % 4 == 0 ? 1e16 : i % 4 == 2 ? -1e16 : 1d;
+            b[i] = 1d;
+            expected += i % 2 == 1 ? 1d : 0d;
+        }
+        LBFGSVector.Factory factory = new LBFGSVector.Factory(Integer.MAX_VALUE, 100, true);
+        assertThat(factory.isCompensated(), is(true));
+        LBFGSVector ca = factory.createVector(a);
+        LBFGSVector cb = factory.createVector(b);
+        assertThat(new LBFGSVector.Factory(Integer.MAX_VALUE, 100).createVector(a).dot(cb), not(expected));
+        assertThat(ca.dot(cb), is(expected));
+        assertThat(LBFGSVector.Factory.compensated().createVector(a).dot(cb), is(expected));
+
+        // Each (1 + 2^-30) (1 - 2^-30) rounds to 1, but not in the compensated products.
+        double[] c = new double[1001];
+        double[] d = new double[c.length];
+        Arrays.fill(c, 1d + Math.scalb(1d, -30));
+        Arrays.fill(d, 1d - Math.scalb(1d, -30));
+        c[1000] = -1000d;
+        d[1000] = 1d;
+        assertThat(new LBFGSVector.Factory(Integer.MAX_VALUE, 100).createVector(c).dot(
+                vectorFactory.createVector(d)), is(0d));
+        assertThat(factory.createVector(c).dot(factory.createVector(d)), is(-1000d * Math.scalb(1d, -60)));
+
+        // The fused kernels compute the same updates as the plain ones.
+        LBFGSVector plain = vectorFactory.createVector(a);
+        LBFGSVector pb = vectorFactory.createVector(b);
+        assertThat(ca.addWithMultiplierAndDot(cb, 2, cb), is(expected + 2 * a.length));
+        plain.addWithMultiplier(pb, 2);
+        assertThat(ca.getValues(), is(plain.getValues()));
+        double squares = plain.copyDiffAndDot(plain, pb, plain);
+        assertEquals(ca.copyDiffAndDot(ca, cb, ca), squares, squares * 1e-12);
+        assertThat(ca.getValues(), is(plain.getValues()));
+
+        // The result does not depend on the number of threads.
+        double[] single = {0d};
+        double[] many = {0d};
+        ForkJoinPool one = new ForkJoinPool(1);
+        ForkJoinPool four = new ForkJoinPool(4);
+        try {
+            one.submit(() -> single[0] = factory.createVector(a).dot(cb)).get();
+            four.submit(() -> many[0] = factory.createVector(a).dot(cb)).get();
+        } finally {
+            one.shutdown();
+            four.shutdown();
+        }
+        assertThat(many[0], is(single[0]));
+        assertThat(single[0], is(expected));
+    }
+
+    @Test
+    public void testPoolDeterminism() throws Exception {
+        int n = 10000;
+        double[] x = LBFGSTest.rosenbrockStart(n);
+        double[] expected = x.clone();
+        int expectedRet = new LBFGSSolver(n, null, new LBFGSVector.Factory(0, 64))
+                .solve(expected, null, LBFGSTest.ROSENBROCK, null);
+
+        for (int parallelism : new int[]{1, 2, 7}) {
+            AtomicInteger threads = new AtomicInteger();
+            ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+                threads.incrementAndGet();
+                return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            }, null, false);
+            try {
+                LBFGSVector.Factory factory = new LBFGSVector.Factory(0, 64, false, pool);
+                assertThat(factory.getPool(), is(pool));
+                double[] actual = x.clone();
+                int ret = new LBFGSSolver(n, null, factory).solve(actual, null, LBFGSTest.ROSENBROCK, null);
+                assertThat(ret, is(expectedRet));
+                assertThat(actual, is(expected));
+                // The kernels ran on the given pool.
+                assertThat(threads.get() > 0, is(true));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCompensatedSolve() throws Exception {
+        int n = 1000;
+        LBFGSVector.IFactory factory = new LBFGSVector.Factory(Integer.MAX_VALUE, 64, true);
+        double[] x = LBFGSTest.rosenbrockStart(n);
+        double[] fx = new double[1];
+        int ret = new LBFGSSolver(n, null, factory).solve(x, fx, LBFGSTest.ROSENBROCK, null);
+        assertThat(ret, is(LBFGS.LBFGS_SUCCESS));
+        assertEquals(fx[0], 0d, 1e-6);
+    }
+
+    @DataProvider(name = "simdSizes")
+    public Object[][] simdSizes() {
+        return new Object[][]{{1}, {3}, {1001}};
+    }
+
+    @Test(dataProvider = "simdSizes")
+    public void testSimdMatchesSequential(int size) throws Exception {
+        LBFGSVector.IFactory simd = LBFGSVector.simdFactory();
+        if (simd == null) {
+            throw new SkipException("The Vector API is not available");
+        }
+        LBFGSVector.IFactory sequential = new LBFGSVector.Factory(Integer.MAX_VALUE, 1);
+        assertThat(LBFGSVector.preferredFactory(), is(simd));
+        Random random = new Random(1);
+        double[] a = new double[size];
+        double[] b = new double[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = random.nextGaussian();
+            b[i] = random.nextGaussian();
+        }
+
+        LBFGSVector sa = sequential.createVector(a);
+        LBFGSVector sb = sequential.createVector(b);
+        LBFGSVector va = simd.createVector(a);
+        LBFGSVector vb = simd.createVector(b);
+        assertThat(va.getClass().getSimpleName(), is("LBFGSSimdVector"));
+        assertEquals(va.dot(vb), sa.dot(sb), 1e-9);
+        assertEquals(va.norm(va), sa.norm(sa), 1e-9);
+
+        // Only the reductions are computed in a different order.
+        sa.addWithMultiplier(sb, 0.5);
+        va.addWithMultiplier(vb, 0.5);
+        assertThat(va, is(sa));
+        sa.copyDiff(sa, sb);
+        va.copyDiff(va, vb);
+        assertThat(va, is(sa));
+        sa.mul(sb);
+        va.mul(vb);
+        assertThat(va, is(sa));
+        sa.scale(3);
+        va.scale(3);
+        assertThat(va, is(sa));
+        sa.copyNegativeFrom(sb);
+        va.copyNegativeFrom(vb);
+        assertThat(va, is(sa));
+
+        sa.copyFrom(sequential.createVector(a));
+        va.copyFrom(simd.createVector(a));
+        assertEquals(va.addWithMultiplierAndDot(vb, 0.5, vb), sa.addWithMultiplierAndDot(sb, 0.5, sb), 1e-9);
+        assertThat(va, is(sa));
+        assertEquals(va.scaleAndDot(3, vb), sa.scaleAndDot(3, sb), 1e-9);
+        assertThat(va, is(sa));
+        assertEquals(va.copyDiffAndDot(va, vb, va), sa.copyDiffAndDot(sa, sb, sa), 1e-9);
+        assertThat(va, is(sa));
+        assertEquals(va.copyNegativeFromAndDot(vb, vb), sa.copyNegativeFromAndDot(sb, sb), 1e-9);
+        assertThat(va, is(sa));
+    }
+
+    @Test
+    public void testFusedOps() throws Exception {
+        LBFGSVector a = vectorFactory.createVector(new double[]{1, 2, 3});
+        LBFGSVector b = vectorFactory.createVector(new double[]{4, 5, 6});
+        LBFGSVector c = vectorFactory.createVector(new double[]{1, 0, -1});
+
+        assertThat(a.addWithMultiplierAndDot(b, 2, c), is(9d - 15d));
+        assertThat(a, is(vectorFactory.createVector(new double[]{9, 12, 15})));
+
+        assertThat(a.scaleAndDot(0.5, c), is(4.5 - 7.5));
+        assertThat(a, is(vectorFactory.createVector(new double[]{4.5, 6, 7.5})));
+
+        assertThat(a.copyDiffAndDot(b, c, a), is(9d + 25d + 49d));
+        assertThat(a, is(vectorFactory.createVector(new double[]{3, 5, 7})));
+
+        assertThat(a.copyNegativeFromAndDot(b, c), is(-4d + 6d));
+        assertThat(a, is(vectorFactory.createVector(new double[]{-4, -5, -6})));
+    }
+
+    @DataProvider(name = "bufferFactories")
+    public Object[][] bufferFactories() throws Exception {
+        File directory = Files.createTempDirectory("lbfgs").toFile();
+        directory.deleteOnExit();
+        return new Object[][]{
+                {new LBFGSBufferVector.DirectFactory()},
+                {new LBFGSBufferVector.MappedFactory(directory)},
+        };
+    }
+
+    @Test(dataProvider = "bufferFactories")
+    public void testBufferMatchesHeap(LBFGSVector.IFactory bufferFactory) throws Exception {
+        double[] a = {1, 2, 3, 4};
+        double[] b = {-2, 0.5, 7, 1};
+        LBFGSVector ha = vectorFactory.createVector(a);
+        LBFGSVector hb = vectorFactory.createVector(b);
+        LBFGSVector ba = bufferFactory.createVector(a);
+        LBFGSVector bb = bufferFactory.createVector(b);
+        assertThat(ba, is(ha));
+        assertThat(ha, is(ba));
+        assertThat(ba.hashCode(), is(ha.hashCode()));
+        assertThat(ba.toString(), is(ha.toString()));
+        assertThat(ba.getBuffer().get(2), is(3d));
+
+        assertThat(ba.dot(hb), is(ha.dot(hb)));
+        assertThat(ha.dot(bb), is(ha.dot(hb)));
+        assertThat(ha.addWithMultiplierAndDot(bb, 2, hb), is(ba.addWithMultiplierAndDot(hb, 2, bb)));
+        assertThat(ba, is(ha));
+        assertThat(ha.copyDiffAndDot(ha, bb, ha), is(ba.copyDiffAndDot(ba, hb, ba)));
+        assertThat(ba, is(ha));
+        assertThat(ha.scaleAndDot(0.5, bb), is(ba.scaleAndDot(0.5, hb)));
+        assertThat(ba, is(ha));
+        ha.mul(bb);
+        ba.mul(hb);
+        assertThat(ba, is(ha));
+        ba.copyNegativeFrom(ha);
+        assertThat(ba.dot(ba), is(ha.dot(ha)));
+
+        LBFGSVector copy = vectorFactory.createVector(bb);
+        assertThat(copy, is(hb));
+    }
+
+    @DataProvider(name = "segmentedFactories")
+    public Object[][] segmentedFactories() throws Exception {
+        File directory = Files.createTempDirectory("lbfgs").toFile();
+        directory.deleteOnExit();
+        return new Object[][]{
+                {new LBFGSBufferVector.DirectFactory(4)},
+                {new LBFGSBufferVector.MappedFactory(directory, 4)},
+        };
+    }
+
+    @Test(dataProvider = "segmentedFactories")
+    public void testSegmentedBuffer(LBFGSVector.IFactory segmentedFactory) throws Exception {
+        double[] a = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+        double[] b = {-2, 0.5, 7, 1, 3, -1, 0.25, 4, -6, 2, 9};
+        LBFGSVector ha = vectorFactory.createVector(a);
+        LBFGSVector hb = vectorFactory.createVector(b);
+        LBFGSVector sa = segmentedFactory.createVector(a);
+        LBFGSVector sb = segmentedFactory.createVector(b);
+        assertThat(sa.size(), is(a.length));
+        assertThat(sa, is(ha));
+        DoubleBuffer[] buffers = ((LBFGSBufferVector) sa).getBuffers();
+        assertThat(buffers.length, is(3));
+        assertThat(buffers[2].capacity(), is(3));
+        assertThat(buffers[1].get(0), is(5d));
+        assertThat(buffers[2].get(2), is(11d));
+
+        assertThat(sa.dot(sb), is(ha.dot(hb)));
+        assertThat(sa.addWithMultiplierAndDot(sb, 2, sa), is(ha.addWithMultiplierAndDot(hb, 2, ha)));
+        assertThat(sa, is(ha));
+        sb.copyNegativeFrom(ha);
+        hb.copyNegativeFrom(ha);
+        assertThat(sb, is(hb));
+
+        assertThat(segmentedFactory.createVector(0).size(), is(0));
+        assertThat(segmentedFactory.createVector(4).size(), is(4));
+        assertThat(((LBFGSBufferVector) segmentedFactory.createVector(4)).getBuffers().length, is(1));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testSegmentedBufferHasNoSingleBuffer() throws Exception {
+        new LBFGSBufferVector.DirectFactory(4).createVector(5).getBuffer();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testBufferHasNoArray() throws Exception {
+        new LBFGSBufferVector.DirectFactory().createVector(3).getValues();
+    }
+
+    @Test
+    public void testFloatVector() throws Exception {
+        LBFGSVector.IFactory floatFactory = new LBFGSFloatVector.Factory();
+        LBFGSVector f = floatFactory.createVector(new double[]{0.1, 2, 3});
+        assertThat(((LBFGSFloatVector) f).getFloatValues()[0], is(0.1f));
+        assertThat(f.dot(vectorFactory.createVector(new double[]{1, 0, 0})), is((double) 0.1f));
+
+        LBFGSVector a = vectorFactory.createVector(new double[]{1, 2, 3});
+        LBFGSVector b = vectorFactory.createVector(new double[]{0.5, 0.25, 0.125});
+        assertThat(f.copyDiffAndDot(a, b, f), is(0.25 + 3.0625 + 8.265625));
+        assertThat(f, is(vectorFactory.createVector(new double[]{0.5, 1.75, 2.875})));
+        assertThat(f.copyDiffAndDot(a, b, a), is(0.5 + 3.5 + 8.625));
+
+        LBFGSVector d = vectorFactory.createVector(new double[]{1, 1, 1});
+        assertThat(d.addWithMultiplierAndDot(f, 2, f), is(2 * 0.5 + 4.5 * 1.75 + 6.75 * 2.875));
+        assertThat(d, is(vectorFactory.createVector(new double[]{2, 4.5, 6.75})));
+    }
+
+    /**
+     * A float vector whose element accessors fail, so only the array kernels can read it.
+     */
+    private static LBFGSFloatVector arrayOnlyFloats(double[] values) {
+        LBFGSFloatVector ret = new LBFGSFloatVector(values.length) {
+            @Override
+            double get(int i) {
+                throw new AssertionError("float operand read through get()");
+            }
+
+            @Override
+            void set(int i, double val) {
+                throw new AssertionError("float operand written through set()");
+            }
+        };
+        for (int i = 0; i < values.length; i++) {
+            ret.getFloatValues()[i] = (float) values[i];
+        }
+        return ret;
+    }
+
+    @Test
+    public void testFloatOperandKernels() throws Exception {
+        Random random = new Random(7);
+        int n = 37;
+        double[] d0 = new double[n];
+        double[] s0 = new double[n];
+        double[] y0 = new double[n];
+        for (int i = 0; i < n; i++) {
+            d0[i] = random.nextGaussian();
+            s0[i] = random.nextGaussian();
+            y0[i] = random.nextGaussian();
+        }
+        LBFGSVector.IFactory floatFactory = new LBFGSFloatVector.Factory();
+        LBFGSVector.IFactory bufferFactory = new LBFGSBufferVector.DirectFactory();
+        LBFGSVector s = arrayOnlyFloats(s0);
+        LBFGSVector y = arrayOnlyFloats(y0);
+        LBFGSVector g = vectorFactory.createVector(d0);
+        // The buffer receiver takes the element-wise path against plain float vectors.
+        LBFGSVector rs = floatFactory.createVector(s0);
+        LBFGSVector ry = floatFactory.createVector(y0);
+        LBFGSVector d = vectorFactory.createVector(n);
+        LBFGSVector r = bufferFactory.createVector(n);
+
+        assertThat(d.copyNegativeFromAndDot(g, s), is(r.copyNegativeFromAndDot(g, rs)));
+        assertThat(d, is(r));
+        assertThat(d.addWithMultiplierAndDot(y, -0.75, s), is(r.addWithMultiplierAndDot(ry, -0.75, rs)));
+        assertThat(d, is(r));
+        assertThat(d.scaleAndDot(1.5, y), is(r.scaleAndDot(1.5, ry)));
+        assertThat(d, is(r));
+        d.addWithMultiplier(s, 0.25);
+        r.addWithMultiplier(rs, 0.25);
+        assertThat(d, is(r));
+        assertThat(d.dot(y), is(r.dot(ry)));
+
+        assertThat(s.dot(y), is(rs.dot(ry)));
+        assertThat(s.dot(d), is(r.dot(rs)));
+        assertThat(s.dot(y), is(y.dot(s)));
+    }
 }